@@ -0,0 +1,40 @@
+package digital_sig.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import digital_sig.KeyGen;
+import digital_sig.RSAKey;
+
+/*
+ * Time to generate one key pair. Prime search is random, so expect a wide spread between runs, especially at
+ * the bigger key sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class KeyGenBenchmark {
+
+	@Param({"1024", "2048", "3072", "4096"})
+	public int keySize;
+
+	@Benchmark
+	public RSAKey generate(){
+		KeyGen keygen = new KeyGen(keySize);
+		keygen.generate();
+		return keygen.getPrivateKey();
+	}
+}
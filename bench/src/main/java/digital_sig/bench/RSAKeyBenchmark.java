@@ -0,0 +1,91 @@
+package digital_sig.bench;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import digital_sig.KeyGen;
+import digital_sig.RSAKey;
+
+/*
+ * One RSAKey.encrypt() call, which is the modPow behind every signature (private key) and every verification
+ * (public key). Each private key variant is measured: plain modPow with d, CRT, and CRT with the precomputed
+ * Montgomery engines. Multi-prime keys are measured with e.g. -p keySize=4096 -p primes=4 (see
+ * KeyGen.maxPrimes() for the counts each size allows).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RSAKeyBenchmark {
+
+	@Param({"1024", "2048", "4096"})
+	public int keySize;
+
+	@Param({"2"})
+	public int primes;
+
+	private RSAKey privatePlain;
+	private RSAKey privateCrt;
+	private RSAKey privateCrtMontgomery;
+	private RSAKey publicKey;
+	private RSAKey publicMontgomery;
+	private BigInteger message;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		KeyGen keygen = new KeyGen(keySize, primes);
+		keygen.generate();
+
+		privateCrt = keygen.getPrivateKey();
+		privatePlain = new RSAKey(privateCrt.getExponent(), privateCrt.getModulus());
+		privateCrtMontgomery = new RSAKey(privateCrt.getExponent(), privateCrt.getModulus(), privateCrt.getPrimes());
+		privateCrtMontgomery.precomputeExponentiation();
+
+		publicKey = keygen.getPublicKey();
+		publicMontgomery = new RSAKey(publicKey.getExponent(), publicKey.getModulus());
+		publicMontgomery.precomputeExponentiation();
+
+		message = new BigInteger(keySize - 1, new SecureRandom());
+	}
+
+	@Benchmark
+	public BigInteger privatePlainModPow(){
+		return privatePlain.encrypt(message);
+	}
+
+	@Benchmark
+	public BigInteger privateCrt(){
+		return privateCrt.encrypt(message);
+	}
+
+	@Benchmark
+	public BigInteger privateCrtMontgomery(){
+		return privateCrtMontgomery.encrypt(message);
+	}
+
+	@Benchmark
+	public BigInteger publicModPow(){
+		return publicKey.encrypt(message);
+	}
+
+	@Benchmark
+	public BigInteger publicMontgomery(){
+		return publicMontgomery.encrypt(message);
+	}
+}
@@ -0,0 +1,129 @@
+package digital_sig.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import digital_sig.DigestAlgorithm;
+import digital_sig.DigitalSignature;
+import digital_sig.KeyGen;
+import digital_sig.RSAKey;
+import digital_sig.SigningOptions;
+
+/*
+ * End to end signing and verification of one file, from 1 KB to 1 GB, read normally or memory mapped. The
+ * files live in a temporary directory, so the numbers include the file system (and the page cache, which will
+ * usually hold the whole file after the first iteration).
+ *
+ * digest and treeHash default to plain MD5. Compare digests and tree hashing with, for example,
+ * -p digest=MD5,SHA256,SHA512 -p treeHash=false,true
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SignVerifyBenchmark {
+
+	@Param({"1024", "1048576", "104857600", "1073741824"})
+	public long payloadSize;
+
+	@Param({"false", "true"})
+	public boolean memoryMapped;
+
+	@Param({"MD5"})
+	public String digest;
+
+	@Param({"false"})
+	public boolean treeHash;
+
+	private Path directory;
+	private String message;
+	private String signedMessage;
+	private RSAKey privateKey;
+	private RSAKey publicKey;
+	private SigningOptions options;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		KeyGen keygen = new KeyGen();
+		keygen.generate();
+		privateKey = keygen.getPrivateKey();
+		publicKey = keygen.getPublicKey();
+
+		directory = Files.createTempDirectory("sign-verify-bench");
+		Path messagePath = directory.resolve("message.bin");
+		writeRandomFile(messagePath, payloadSize);
+
+		message = messagePath.toString();
+		signedMessage = message + ".signed";
+
+		options = new SigningOptions(memoryMapped);
+		options.setDigest(DigestAlgorithm.fromName(digest));
+		options.setTreeHash(treeHash);
+		if(!DigitalSignature.signFile(message, privateKey, options)
+				|| !DigitalSignature.signFileDetached(message, privateKey, options))
+			throw new IllegalStateException("Could not sign the benchmark file");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException{
+		try(Stream<Path> paths = Files.walk(directory)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public boolean signFile(){
+		return DigitalSignature.signFile(message, privateKey, options);
+	}
+
+	@Benchmark
+	public boolean signFileDetached(){
+		return DigitalSignature.signFileDetached(message, privateKey, options);
+	}
+
+	@Benchmark
+	public boolean verifySignature(){
+		return DigitalSignature.verifySignature(signedMessage, publicKey, memoryMapped);
+	}
+
+	@Benchmark
+	public boolean verifyDetachedSignature(){
+		return DigitalSignature.verifyDetachedSignature(message, message + ".sig", publicKey, memoryMapped);
+	}
+
+	private static void writeRandomFile(Path path, long size) throws IOException{
+		Random random = new Random(42);
+		byte[] buffer = new byte[1 << 20];
+		try(OutputStream out = Files.newOutputStream(path)){
+			long remaining = size;
+			while(remaining > 0){
+				random.nextBytes(buffer);
+				int count = (int)Math.min(remaining, buffer.length);
+				out.write(buffer, 0, count);
+				remaining -= count;
+			}
+		}
+	}
+}
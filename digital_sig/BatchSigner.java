@@ -0,0 +1,309 @@
+package digital_sig;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*	========================================================================================================
+ * 								---- How to use BatchSigner class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A BatchSigner signs every matching file in a directory tree, several files at a time, using
+ * 			DigitalSignature.signFile() (or signFileDetached()) on each one.
+ *
+ * 		+ Memory use stays bounded no matter how many files there are: the tree is walked lazily, only a few
+ * 			files per thread are queued at once, and each file is signed with a fixed size buffer.
+ *
+ * 		+ A file or subdirectory that can't be read is reported as FAILED, and the rest of the tree is still
+ * 			signed.
+ *
+ * 		+ Files ending in .signed or .sig are never signed, so running it twice does not sign the signatures.
+ *
+ *
+ * 	How to sign a tree from code:
+ * 		RSAKey privateKey = RSAKey.loadFromFile("privkey.rsa");
+ * 		BatchSigner signer = new BatchSigner(privateKey, 8);	// 8 worker threads
+ * 		signer.setDetached(true);								// optional, write .sig files instead of .signed
+ * 		signer.setOptions(options);								// optional, digest and tree hashing (see SigningOptions)
+ * 		BatchSigner.Summary summary = signer.signTree("release", "glob:*.jar");	// every .jar, at any depth
+ *
+ * 		// Each file gets one line on System.out (or the stream given to setOutput()):
+ * 		//		OK      <bytes> <milliseconds> <path>
+ * 		//		FAILED  <path>
+ *
+ * 		summary.print();	// files, failures, bytes and MB/s, to the same stream
+ *
+ *
+ * 	How to sign a tree from the command line:
+ * 		java digital_sig.BatchSigner <directory> <private key file> [glob] [threads] [--detached]
+ * 				[--digest md5|sha256|sha512] [--tree] [--index]
+ *
+ * 		// glob defaults to "glob:**" (every file) and threads to the number of cores. A glob without a "/", like
+ * 		// "*.jar", is matched against file names at any depth. The exit code is 0 if every file was signed, 1
+ * 		// otherwise.
+ *
+ */
+public class BatchSigner {
+
+	// Tasks allowed to wait in the queue for each worker thread
+	private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+	private RSAKey privateKey;
+	private int threads;
+	private boolean detached = false;
+	private SigningOptions options = new SigningOptions();
+	private PrintStream output = System.out;
+
+	public BatchSigner(RSAKey privateKey, int threads){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+
+		this.privateKey = privateKey;
+		this.threads = threads;
+	}
+
+	public void setDetached(boolean detached){
+		this.detached = detached;
+	}
+
+	public void setMemoryMapping(boolean useMemoryMapping){
+		options.setMemoryMapping(useMemoryMapping);
+	}
+
+	public void setOptions(SigningOptions options){
+		this.options = options;
+	}
+
+	public void setOutput(PrintStream output){
+		this.output = output;
+	}
+
+	/*
+	 * Signs every regular file under directory that matches the PathMatcher pattern (for example "glob:*.jar"
+	 * or "regex:.*\\.txt"). The pattern is tried on each file's path relative to directory and on its file
+	 * name alone, so "glob:*.jar" finds jars at any depth and "glob:lib/*.jar" only those right in lib.
+	 * Returns once every file has been handled. Files and subdirectories that can't be read are counted as
+	 * failures, and the rest of the tree is still signed. Only a directory that can't be read at all throws.
+	 */
+	public Summary signTree(String directory, String pattern) throws IOException{
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher(pattern);
+		Path root = Paths.get(directory);
+		Summary summary = new Summary(output);
+
+		// When the queue is full the walking thread signs the file itself, which keeps the queue bounded
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUED_TASKS_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		long start = System.nanoTime();
+		try{
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes){
+					if(matches(root, path, matcher) && Files.isRegularFile(path))
+						executor.execute(() -> signOne(path, summary));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException{
+					if(path.equals(root))
+						throw e;
+					failed(path, summary);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path path, IOException e){
+					// The directory could only be listed part of the way
+					if(e != null)
+						failed(path, summary);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		finally{
+			executor.shutdown();
+			try{
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			summary.elapsedNanos = System.nanoTime() - start;
+		}
+
+		return summary;
+	}
+
+	private static boolean matches(Path root, Path path, PathMatcher matcher){
+		// A root directory like / has no file name
+		Path fileName = path.getFileName();
+		if(fileName == null)
+			return false;
+
+		String name = fileName.toString();
+		if(name.endsWith(".signed") || name.endsWith(".sig"))
+			return false;
+
+		return matcher.matches(fileName) || matcher.matches(root.relativize(path));
+	}
+
+	private void signOne(Path path, Summary summary){
+		long start = System.nanoTime();
+		long size = 0;
+		boolean success;
+		try{
+			size = Files.size(path);
+			if(detached)
+				success = DigitalSignature.signFileDetached(path.toString(), privateKey, options);
+			else
+				success = DigitalSignature.signFile(path.toString(), privateKey, options);
+		}
+		catch(IOException e){
+			success = false;
+		}
+		catch(RuntimeException e){
+			// One bad file must not stop the batch, or go uncounted
+			output.println("Error: BatchSigner.signOne(" + path + ") " + e);
+			success = false;
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		if(success){
+			summary.files.incrementAndGet();
+			summary.bytes.addAndGet(size);
+			output.println("OK      " + size + " " + millis + " " + path);
+		}
+		else{
+			failed(path, summary);
+		}
+	}
+
+	private void failed(Path path, Summary summary){
+		summary.failures.incrementAndGet();
+		output.println("FAILED  " + path);
+	}
+
+
+	public static class Summary {
+		private AtomicLong files = new AtomicLong();
+		private AtomicLong failures = new AtomicLong();
+		private AtomicLong bytes = new AtomicLong();
+		private volatile long elapsedNanos;
+
+		// The BatchSigner's output, which print() writes to as well
+		private PrintStream output;
+
+		private Summary(PrintStream output){
+			this.output = output;
+		}
+
+		public long getFiles(){
+			return files.get();
+		}
+
+		public long getFailures(){
+			return failures.get();
+		}
+
+		public long getBytes(){
+			return bytes.get();
+		}
+
+		public double getElapsedSeconds(){
+			return elapsedNanos / 1e9;
+		}
+
+		public void print(){
+			double seconds = Math.max(getElapsedSeconds(), 1e-9);
+			output.println("Signed " + getFiles() + " files (" + getFailures() + " failed), " + getBytes()
+					+ " bytes in " + String.format("%.2f", getElapsedSeconds()) + " s: "
+					+ String.format("%.1f", getFiles() / seconds) + " files/s, "
+					+ String.format("%.1f", getBytes() / seconds / (1 << 20)) + " MB/s");
+		}
+	}
+
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.out.println("Usage: java digital_sig.BatchSigner <directory> <private key file> [glob] [threads]"
+					+ " [--detached] [--digest md5|sha256|sha512] [--tree] [--index]");
+			System.exit(2);
+		}
+
+		RSAKey privateKey = RSAKey.loadFromFile(args[1]);
+		if(privateKey == null)
+			System.exit(2);
+
+		String pattern = "glob:**";
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean detached = false;
+		SigningOptions options = new SigningOptions();
+		int position = 0;
+		for(int i = 2; i < args.length; i++){
+			if(args[i].equals("--detached"))
+				detached = true;
+			else if(args[i].equals("--tree"))
+				options.setTreeHash(true);
+			else if(args[i].equals("--index"))
+				options.setChunkIndex(true);
+			else if(args[i].equals("--digest") && i + 1 < args.length){
+				DigestAlgorithm digest = DigestAlgorithm.fromName(args[++i]);
+				if(digest == null){
+					System.out.println("Error: BatchSigner unknown digest " + args[i]);
+					System.exit(2);
+				}
+				options.setDigest(digest);
+			}
+			else if(position++ == 0)
+				pattern = args[i].startsWith("glob:") || args[i].startsWith("regex:") ? args[i] : "glob:" + args[i];
+			else{
+				try{
+					threads = Integer.parseInt(args[i]);
+				}
+				catch(NumberFormatException e){
+					threads = 0;
+				}
+				if(threads < 1){
+					System.out.println("Error: BatchSigner thread count must be a number above 0, not " + args[i]);
+					System.exit(2);
+				}
+			}
+		}
+
+		BatchSigner signer = new BatchSigner(privateKey, threads);
+		signer.setDetached(detached);
+		signer.setOptions(options);
+
+		Summary summary;
+		try{
+			summary = signer.signTree(args[0], pattern);
+		}
+		catch(IllegalArgumentException e){
+			// From getPathMatcher()
+			System.out.println("Error: BatchSigner bad pattern " + pattern + ": " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		catch(IOException e){
+			System.out.println("Error: BatchSigner could not walk " + args[0] + ": " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		summary.print();
+		System.exit(summary.getFailures() == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,390 @@
+package digital_sig;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*	========================================================================================================
+ * 								---- How to use BatchVerifier class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A BatchVerifier checks many signed files against one public key, several files at a time, and writes a
+ * 			CSV or JSON report saying which are valid, invalid or unreadable (see VerificationStatus).
+ *
+ * 		+ .signed files are checked with DigitalSignature.checkSignature(). .sig files are detached signatures,
+ * 			and are checked against the file with the same name minus ".sig".
+ *
+ * 		+ Report lines are written as files finish, so the report for a huge drop of files never has to be held
+ * 			in memory. The order of the lines is the order the files finished in.
+ *
+ * 		+ A file or subdirectory that can't be read gets an UNREADABLE line, and the rest are still checked.
+ *
+ *
+ * 	How to verify from code:
+ * 		RSAKey publicKey = RSAKey.loadFromFile("pubkey.rsa");
+ * 		BatchVerifier verifier = new BatchVerifier(publicKey, 8);	// 8 worker threads
+ * 		verifier.setFormat(BatchVerifier.Format.JSON);				// optional, CSV is the default
+ * 		verifier.setReport(new PrintStream("report.json"));		// optional, System.out is the default
+ *
+ * 		BatchVerifier.Summary summary = verifier.verifyTree("incoming");	// every .signed and .sig file
+ * 		BatchVerifier.Summary summary2 = verifier.verify(listOfFilesAndDirectories);
+ *
+ *
+ * 	The report:
+ * 		CSV:	status,path,bytes,millis
+ * 				VALID,"incoming/a.txt.signed",1234,3
+ *
+ * 		JSON:	{"files":[
+ * 				{"status":"VALID","path":"incoming/a.txt.signed","bytes":1234,"millis":3},
+ * 				...],
+ * 				"summary":{"valid":10,"invalid":1,"unreadable":0,"bytes":12340,"seconds":0.52}}
+ *
+ *
+ * 	How to verify from the command line:
+ * 		java digital_sig.BatchVerifier <public key file> [--json] [--report <file>] [--threads <n>] <path>...
+ *
+ * 		// Each path can be a directory (searched for .signed and .sig files) or a single file. A path of "-"
+ * 		// reads more file names from standard input, one per line. The exit code is 0 if every file was valid,
+ * 		// 1 otherwise.
+ *
+ */
+public class BatchVerifier {
+
+	public enum Format {
+		CSV,
+		JSON
+	}
+
+	// Tasks allowed to wait in the queue for each worker thread
+	private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+	private RSAKey publicKey;
+	private int threads;
+	private Format format = Format.CSV;
+	private PrintStream report = System.out;
+	private boolean useMemoryMapping = false;
+
+	// Only touched while holding the report lock
+	private boolean firstRow;
+
+	public BatchVerifier(RSAKey publicKey, int threads){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+
+		this.publicKey = publicKey;
+		this.threads = threads;
+	}
+
+	public void setFormat(Format format){
+		this.format = format;
+	}
+
+	public void setReport(PrintStream report){
+		this.report = report;
+	}
+
+	public void setMemoryMapping(boolean useMemoryMapping){
+		this.useMemoryMapping = useMemoryMapping;
+	}
+
+	/*
+	 * Verifies every .signed and .sig file under directory.
+	 */
+	public Summary verifyTree(String directory){
+		return verify(List.of(directory));
+	}
+
+	/*
+	 * Verifies each path in the list. A directory is searched for .signed and .sig files (as the files are
+	 * verified), anything else is verified as a single file. A file or directory that can't be read gets an
+	 * UNREADABLE line in the report, and the rest are still verified.
+	 */
+	public Summary verify(List<String> paths){
+		Summary summary = new Summary();
+
+		// When the queue is full the calling thread verifies the file itself, which keeps the queue bounded
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUED_TASKS_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		startReport();
+		long start = System.nanoTime();
+		try{
+			for(String name : paths){
+				Path path = Paths.get(name);
+				if(Files.isDirectory(path))
+					verifyDirectory(path, executor, summary);
+				else
+					executor.execute(() -> verifyOne(path, summary));
+			}
+		}
+		finally{
+			executor.shutdown();
+			try{
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			summary.elapsedNanos = System.nanoTime() - start;
+			finishReport(summary);
+		}
+
+		return summary;
+	}
+
+	private void verifyDirectory(Path directory, Executor executor, Summary summary){
+		try{
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes){
+					if(isSignatureFile(path) && Files.isRegularFile(path))
+						executor.execute(() -> verifyOne(path, summary));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e){
+					unreadable(path, summary);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path path, IOException e){
+					// The directory could only be listed part of the way
+					if(e != null)
+						unreadable(path, summary);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch(IOException e){
+			// The visitor never throws, so this is not expected
+			unreadable(directory, summary);
+		}
+	}
+
+	private void unreadable(Path path, Summary summary){
+		summary.count(VerificationStatus.UNREADABLE, 0);
+		writeRow(VerificationStatus.UNREADABLE, path.toString(), 0, 0);
+	}
+
+	private void verifyOne(Path path, Summary summary){
+		long start = System.nanoTime();
+		String name = path.toString();
+
+		VerificationStatus status;
+		Path messagePath = path;
+		if(name.endsWith(".sig")){
+			String original = name.substring(0, name.length() - ".sig".length());
+			messagePath = Paths.get(original);
+			status = DigitalSignature.checkDetachedSignature(original, name, publicKey, useMemoryMapping);
+		}
+		else{
+			status = DigitalSignature.checkSignature(name, publicKey, useMemoryMapping);
+		}
+
+		long bytes = 0;
+		try{
+			bytes = Files.size(messagePath);
+		}
+		catch(IOException e){
+			// leave it at 0, the status already says what went wrong
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		summary.count(status, bytes);
+		writeRow(status, name, bytes, millis);
+	}
+
+	private static boolean isSignatureFile(Path path){
+		// A root directory like / has no file name
+		Path fileName = path.getFileName();
+		if(fileName == null)
+			return false;
+
+		String name = fileName.toString();
+		return name.endsWith(".signed") || name.endsWith(".sig");
+	}
+
+	private void startReport(){
+		synchronized(report){
+			firstRow = true;
+			if(format == Format.JSON)
+				report.println("{\"files\":[");
+			else
+				report.println("status,path,bytes,millis");
+		}
+	}
+
+	private void writeRow(VerificationStatus status, String path, long bytes, long millis){
+		synchronized(report){
+			if(format == Format.JSON){
+				if(!firstRow)
+					report.println(",");
+				report.print("{\"status\":\"" + status + "\",\"path\":" + jsonString(path) + ",\"bytes\":" + bytes
+						+ ",\"millis\":" + millis + "}");
+			}
+			else{
+				report.println(status + "," + csvString(path) + "," + bytes + "," + millis);
+			}
+			firstRow = false;
+		}
+	}
+
+	private void finishReport(Summary summary){
+		synchronized(report){
+			if(format == Format.JSON){
+				if(!firstRow)
+					report.println();
+				report.println("],");
+				report.println("\"summary\":{\"valid\":" + summary.getValid() + ",\"invalid\":" + summary.getInvalid()
+						+ ",\"unreadable\":" + summary.getUnreadable() + ",\"bytes\":" + summary.getBytes()
+						+ ",\"seconds\":" + String.format("%.3f", summary.getElapsedSeconds()) + "}}");
+			}
+			report.flush();
+		}
+	}
+
+	private static String csvString(String value){
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String jsonString(String value){
+		StringBuilder builder = new StringBuilder("\"");
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if(c < 0x20)
+				builder.append(String.format("\\u%04x", (int)c));
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+
+
+	public static class Summary {
+		private AtomicLong valid = new AtomicLong();
+		private AtomicLong invalid = new AtomicLong();
+		private AtomicLong unreadable = new AtomicLong();
+		private AtomicLong bytes = new AtomicLong();
+		private volatile long elapsedNanos;
+
+		private void count(VerificationStatus status, long fileBytes){
+			if(status == VerificationStatus.VALID)
+				valid.incrementAndGet();
+			else if(status == VerificationStatus.INVALID)
+				invalid.incrementAndGet();
+			else
+				unreadable.incrementAndGet();
+			bytes.addAndGet(fileBytes);
+		}
+
+		public long getValid(){
+			return valid.get();
+		}
+
+		public long getInvalid(){
+			return invalid.get();
+		}
+
+		public long getUnreadable(){
+			return unreadable.get();
+		}
+
+		public long getBytes(){
+			return bytes.get();
+		}
+
+		public double getElapsedSeconds(){
+			return elapsedNanos / 1e9;
+		}
+
+		public boolean allValid(){
+			return getInvalid() == 0 && getUnreadable() == 0;
+		}
+
+		public void print(PrintStream out){
+			long files = getValid() + getInvalid() + getUnreadable();
+			double seconds = Math.max(getElapsedSeconds(), 1e-9);
+			out.println("Verified " + files + " files: " + getValid() + " valid, " + getInvalid() + " invalid, "
+					+ getUnreadable() + " unreadable, in " + String.format("%.2f", getElapsedSeconds()) + " s ("
+					+ String.format("%.1f", files / seconds) + " files/s, "
+					+ String.format("%.1f", getBytes() / seconds / (1 << 20)) + " MB/s)");
+		}
+	}
+
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.out.println("Usage: java digital_sig.BatchVerifier <public key file> [--json] [--report <file>]"
+					+ " [--threads <n>] <path>...");
+			System.exit(2);
+		}
+
+		RSAKey publicKey = RSAKey.loadFromFile(args[0]);
+		if(publicKey == null)
+			System.exit(2);
+
+		Format format = Format.CSV;
+		String reportFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> paths = new ArrayList<>();
+
+		try{
+			for(int i = 1; i < args.length; i++){
+				if(args[i].equals("--json"))
+					format = Format.JSON;
+				else if(args[i].equals("--csv"))
+					format = Format.CSV;
+				else if(args[i].equals("--report"))
+					reportFile = args[++i];
+				else if(args[i].equals("--threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-"))
+					CommandLine.readFileList(paths);
+				else
+					paths.add(args[i]);
+			}
+		}
+		catch(IOException | ArrayIndexOutOfBoundsException | NumberFormatException e){
+			System.out.println("Error: BatchVerifier bad arguments or could not read file list");
+			System.exit(2);
+		}
+
+		BatchVerifier verifier = new BatchVerifier(publicKey, threads);
+		verifier.setFormat(format);
+		PrintStream summaryOut = System.err;
+		if(reportFile != null){
+			try{
+				verifier.setReport(new PrintStream(new FileOutputStream(reportFile)));
+				summaryOut = System.out;
+			}
+			catch(FileNotFoundException e){
+				System.out.println("Error: BatchVerifier could not create " + reportFile);
+				System.exit(2);
+			}
+		}
+
+		Summary summary = verifier.verify(paths);
+		verifier.report.close();
+		summary.print(summaryOut);
+		System.exit(summary.allValid() ? 0 : 1);
+	}
+}
@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.Scanner;
 import java.security.SecureRandom;
 
@@ -74,6 +76,86 @@ d. Change the byte to a random value and close the file
     System.out.println("Done!");
   }
 
+  /*
+   * Changes the byte at index to a random different value, without asking anything. Returns false if the
+   * file can't be changed or is shorter than index + 1 bytes.
+   */
+  public static boolean changeByte(String filepath, long index){
+    try(RandomAccessFile raf = new RandomAccessFile(filepath, "rw")){
+      if(index < 0 || index >= raf.length())
+        return false;
+
+      raf.seek(index);
+      int original = raf.read();
+      int changed = original ^ (1 + new SecureRandom().nextInt(255));  // never xor with 0
+      raf.seek(index);
+      raf.write(changed);
+    }
+    catch(IOException e){
+      System.out.println("Error: ChangeByte.changeByte(...) Problem using RandomAccessFile");
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * The same change as changeByte(), on a copy of a file in memory: the byte at index of data (counted from 0,
+   * not from the buffer's position) gets a random different value.
+   */
+  public static void changeByte(ByteBuffer data, int index, Random rng){
+    data.put(index, (byte)(data.get(index) ^ (1 + rng.nextInt(255))));  // never xor with 0
+  }
+
+  /*
+   * Changes count different bytes of data, picked at random from index from (inclusive) to to (exclusive).
+   * Returns the first index changed. A byte is never picked twice, since a second change could undo the first.
+   * Throws an IllegalArgumentException if the range is empty or outside data, or count is less than 1.
+   */
+  public static int changeBytes(ByteBuffer data, int from, int to, int count, Random rng){
+    return changeBytesAt(data, from, to, count, rng)[0];
+  }
+
+  /*
+   * Same as changeBytes(), but returns every index changed, in the order they were picked, so the caller can
+   * put the bytes back afterwards.
+   */
+  public static int[] changeBytesAt(ByteBuffer data, int from, int to, int count, Random rng){
+    if(from < 0 || to > data.limit() || from >= to)
+      throw new IllegalArgumentException("Can't change bytes " + from + " to " + to + " of " + data.limit());
+    if(count < 1)
+      throw new IllegalArgumentException("Must change at least one byte, not " + count);
+
+    int[] picked = new int[Math.min(count, to - from)];
+    for(int i = 0; i < picked.length; i++){
+      int index;
+      boolean seen;
+      do{
+        index = from + rng.nextInt(to - from);
+        seen = false;
+        for(int j = 0; j < i; j++){
+          seen |= picked[j] == index;
+        }
+      }while(seen);
+
+      picked[i] = index;
+      changeByte(data, index, rng);
+    }
+    return picked;
+  }
+
+  /*
+   * Cuts a random number of bytes (at least one) off the end of data, by lowering its limit. Returns the new
+   * length. Throws an IllegalArgumentException if data is already empty.
+   */
+  public static int truncate(ByteBuffer data, Random rng){
+    if(data.limit() == 0)
+      throw new IllegalArgumentException("Can't truncate an empty buffer");
+
+    int length = rng.nextInt(data.limit());
+    data.limit(length);
+    return length;
+  }
+
   public long validateLong(long min, long max){
     long i = -1;
     do
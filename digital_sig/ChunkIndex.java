@@ -0,0 +1,481 @@
+package digital_sig;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*	========================================================================================================
+ * 								---- How to use ChunkIndex class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A file signed with a chunk index (SigningOptions.setChunkIndex(true)) carries the TreeHash hash of every
+ * 			4 MB chunk of the message. The signature is over the root of those hashes, so once the signature checks
+ * 			out against the index, each stored chunk hash can be trusted on its own.
+ *
+ * 		+ That makes three things cheap that otherwise need the whole file hashed:
+ * 			- re-signing a file that was appended to (only the last old chunk and the new ones are hashed)
+ * 			- finding out WHICH parts of a file were tampered with, not just that something was
+ * 			- checking one byte range of a huge file (only the chunks it touches are read)
+ *
+ * 		+ All of these work on .signed files and on detached .sig files.
+ *
+ *
+ * 	How to sign with a chunk index:
+ * 		SigningOptions options = new SigningOptions();
+ * 		options.setDigest(DigestAlgorithm.SHA256);		// optional
+ * 		options.setChunkIndex(true);
+ * 		DigitalSignature.signFileDetached("app.log", privateKey, options);		// creates app.log.sig
+ *
+ *
+ * 	How to re-sign after appending to the file:
+ * 		boolean success = ChunkIndex.resignDetached("app.log", privateKey);	// updates app.log.sig
+ * 		boolean success2 = ChunkIndex.resign("data.bin", privateKey);		// replaces data.bin.signed
+ *
+ * 		// The new signature is written to a .tmp file that is then renamed over the old one, so readers see
+ * 		// either the old signature or the new one, never a mix.
+ *
+ * 		// Everything before the old end of the file is taken to be unchanged, and only the chunk holding the
+ * 		// old end and the chunks after it are hashed. If bytes were changed earlier on, pass the first changed
+ * 		// offset, and everything from the chunk holding it on is hashed again:
+ * 		ChunkIndex.resignDetached("app.log", privateKey, 1048576);
+ *
+ * 		// Getting that offset wrong cannot produce a bad signature for someone else's data: the new signature
+ * 		// just won't verify. The old index is also checked against the old signature before it is reused.
+ *
+ *
+ * 	How to find tampered chunks:
+ * 		ChunkIndex.Report report = ChunkIndex.locateTampering("data.bin.signed", publicKey);
+ * 		ChunkIndex.Report report2 = ChunkIndex.locateDetachedTampering("app.log", "app.log.sig", publicKey);
+ *
+ * 		report.getStatus();				// VALID, INVALID or UNREADABLE, like DigitalSignature.checkSignature()
+ * 		report.getTamperedRanges();		// byte ranges of the message that don't match, in chunk sized steps
+ * 		report.isIndexTrusted();		// false if the index itself did not verify (then no ranges are known)
+ *
+ * 		// For a detached signature, bytes added past the signed length show up as one more range.
+ *
+ *
+ * 	How to check part of a file:
+ * 		VerificationStatus status = ChunkIndex.checkRange("data.bin.signed", publicKey, offset, length);
+ * 		VerificationStatus status2 = ChunkIndex.checkDetachedRange("app.log", "app.log.sig", publicKey, offset, length);
+ *
+ * 		// A range reaching past the end of the signed message is INVALID, since the signature says nothing
+ * 		// about those bytes.
+ *
+ *
+ * 	Files signed without a chunk index are UNREADABLE to all of the above. Check them as a whole with
+ * 	DigitalSignature.checkSignature() instead.
+ *
+ */
+public class ChunkIndex {
+
+	public static Report locateTampering(String filename, RSAKey publicKey){
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			IndexedSignature indexed = readTrustedIndex(channel, false, publicKey);
+			if(indexed.status != null)
+				return new Report(indexed.status, false, Collections.emptyList());
+
+			SignedFile header = indexed.header;
+			List<Range> tampered = findTampered(channel, header.getPayloadOffset(), header.getPayloadLength(),
+					indexed, 0, indexed.chunkHashes.length);
+			return new Report(tampered.isEmpty() ? VerificationStatus.VALID : VerificationStatus.INVALID, true, tampered);
+		}
+		catch(IOException | IllegalArgumentException e){
+			// IllegalArgumentException also covers bad paths
+			return new Report(VerificationStatus.UNREADABLE, false, Collections.emptyList());
+		}
+	}
+
+	public static Report locateDetachedTampering(String filename, String signatureFilename, RSAKey publicKey){
+		IndexedSignature indexed = readTrustedIndex(signatureFilename, publicKey);
+		if(indexed.status != null)
+			return new Report(indexed.status, false, Collections.emptyList());
+
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			long signedLength = indexed.header.getPayloadLength();
+			long available = channel.size();
+
+			List<Range> tampered = findTampered(channel, 0, available, indexed, 0, indexed.chunkHashes.length);
+			if(available > signedLength)
+				tampered.add(new Range(signedLength, available));
+
+			return new Report(tampered.isEmpty() ? VerificationStatus.VALID : VerificationStatus.INVALID, true, tampered);
+		}
+		catch(IOException | IllegalArgumentException e){
+			// Nothing of the message was compared, so the index can't vouch for any of it
+			return new Report(VerificationStatus.UNREADABLE, false, Collections.emptyList());
+		}
+	}
+
+	public static VerificationStatus checkRange(String filename, RSAKey publicKey, long offset, long length){
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			IndexedSignature indexed = readTrustedIndex(channel, false, publicKey);
+			if(indexed.status != null)
+				return indexed.status;
+
+			SignedFile header = indexed.header;
+			return checkRange(channel, header.getPayloadOffset(), header.getPayloadLength(), indexed, offset, length);
+		}
+		catch(IOException | IllegalArgumentException e){
+			return VerificationStatus.UNREADABLE;
+		}
+	}
+
+	public static VerificationStatus checkDetachedRange(String filename, String signatureFilename, RSAKey publicKey,
+			long offset, long length){
+
+		IndexedSignature indexed = readTrustedIndex(signatureFilename, publicKey);
+		if(indexed.status != null)
+			return indexed.status;
+
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			return checkRange(channel, 0, channel.size(), indexed, offset, length);
+		}
+		catch(IOException | IllegalArgumentException e){
+			return VerificationStatus.UNREADABLE;
+		}
+	}
+
+	/*
+	 * Updates filename.signed after filename was appended to.
+	 */
+	public static boolean resign(String filename, RSAKey privateKey){
+		return resign(filename, privateKey, Long.MAX_VALUE);
+	}
+
+	/*
+	 * Updates filename.signed after filename changed from byte changedFrom on.
+	 */
+	public static boolean resign(String filename, RSAKey privateKey, long changedFrom){
+		return update(filename, filename + ".signed", privateKey, changedFrom, false);
+	}
+
+	/*
+	 * Updates filename.sig after filename was appended to.
+	 */
+	public static boolean resignDetached(String filename, RSAKey privateKey){
+		return resignDetached(filename, privateKey, Long.MAX_VALUE);
+	}
+
+	/*
+	 * Updates filename.sig after filename changed from byte changedFrom on.
+	 */
+	public static boolean resignDetached(String filename, RSAKey privateKey, long changedFrom){
+		return update(filename, filename + ".sig", privateKey, changedFrom, true);
+	}
+
+
+	/*
+	 * The header and chunk index of a signature, once the signature has been checked against the index. If
+	 * that could not be done, status says why (and it is null otherwise).
+	 */
+	private static class IndexedSignature {
+		VerificationStatus status;
+		SignedFile header;
+		DigestAlgorithm algorithm;
+		byte[][] chunkHashes;
+
+		IndexedSignature(VerificationStatus status){
+			this.status = status;
+		}
+
+		IndexedSignature(SignedFile header, byte[][] chunkHashes){
+			this.header = header;
+			this.algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+			this.chunkHashes = chunkHashes;
+		}
+	}
+
+	private static IndexedSignature readTrustedIndex(String signatureFilename, RSAKey publicKey){
+		try(FileChannel channel = FileChannel.open(Paths.get(signatureFilename), StandardOpenOption.READ)){
+			return readTrustedIndex(channel, true, publicKey);
+		}
+		catch(IOException | IllegalArgumentException e){
+			return new IndexedSignature(VerificationStatus.UNREADABLE);
+		}
+	}
+
+	private static IndexedSignature readTrustedIndex(FileChannel channel, boolean detached, RSAKey publicKey)
+			throws IOException{
+
+		SignedFile header = SignedFile.read(channel);
+		if(header == null || header.isDetached() != detached || !header.hasChunkIndex())
+			return new IndexedSignature(VerificationStatus.UNREADABLE);
+
+		// Without the right length the index cannot be found (a .signed file keeps it after the message)
+		if(!header.hasFingerprint(publicKey.getFingerprint()) || !DigitalSignature.payloadMatchesFile(header, channel))
+			return new IndexedSignature(VerificationStatus.INVALID);
+
+		IndexedSignature indexed = new IndexedSignature(header, header.readChunkIndex(channel));
+		BigInteger signedValue = DigitalSignature.treeHashValue(indexed.chunkHashes, indexed.algorithm);
+		if(!publicKey.encrypt(header.getSignature()).equals(signedValue))
+			return new IndexedSignature(VerificationStatus.INVALID);
+
+		return indexed;
+	}
+
+	private static VerificationStatus checkRange(FileChannel channel, long payloadOffset, long available,
+			IndexedSignature indexed, long offset, long length){
+
+		long signedLength = indexed.header.getPayloadLength();
+		if(offset < 0 || length < 0 || offset > signedLength || length > signedLength - offset)
+			return VerificationStatus.INVALID;
+		if(length == 0)
+			return VerificationStatus.VALID;
+
+		int fromChunk = (int)(offset / TreeHash.CHUNK_SIZE);
+		int toChunk = (int)((offset + length - 1) / TreeHash.CHUNK_SIZE) + 1;
+		try{
+			List<Range> tampered = findTampered(channel, payloadOffset, available, indexed, fromChunk, toChunk);
+			return tampered.isEmpty() ? VerificationStatus.VALID : VerificationStatus.INVALID;
+		}
+		catch(IOException e){
+			return VerificationStatus.UNREADABLE;
+		}
+	}
+
+	/*
+	 * Hashes chunks [fromChunk, toChunk) of the message (which starts at payloadOffset in the channel, and has
+	 * available bytes there) and returns the byte ranges of those that don't match the index. Chunks that are
+	 * cut short by the end of the file count as tampered.
+	 */
+	private static List<Range> findTampered(FileChannel channel, long payloadOffset, long available,
+			IndexedSignature indexed, int fromChunk, int toChunk) throws IOException{
+
+		long signedLength = indexed.header.getPayloadLength();
+		long start = (long)fromChunk * TreeHash.CHUNK_SIZE;
+		long end = Math.min((long)toChunk * TreeHash.CHUNK_SIZE, signedLength);
+		long readable = Math.min(end, available);
+
+		byte[][] hashes = readable > start
+				? TreeHash.hashChunks(channel, payloadOffset + start, readable - start, indexed.algorithm, false)
+				: new byte[0][];
+
+		List<Range> tampered = new ArrayList<>();
+		for(int chunk = fromChunk; chunk < toChunk; chunk++){
+			int i = chunk - fromChunk;
+			if(i < hashes.length && Arrays.equals(hashes[i], indexed.chunkHashes[chunk]))
+				continue;
+
+			long chunkStart = (long)chunk * TreeHash.CHUNK_SIZE;
+			long chunkEnd = Math.min(chunkStart + TreeHash.CHUNK_SIZE, signedLength);
+			Range last = tampered.isEmpty() ? null : tampered.get(tampered.size() - 1);
+			if(last != null && last.end == chunkStart)
+				last.end = chunkEnd;
+			else
+				tampered.add(new Range(chunkStart, chunkEnd));
+		}
+		return tampered;
+	}
+
+	private static boolean update(String filename, String signatureFilename, RSAKey privateKey, long changedFrom,
+			boolean detached){
+
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer(detached ? "resign detached" : "resign", filename);
+		boolean success = rewriteSignature(filename, signatureFilename, privateKey, changedFrom, detached, timer);
+		timer.signed(success);
+		return success;
+	}
+
+	/*
+	 * Re-signs the message in filename, taking the chunk hashes before changedFrom from the index in
+	 * signatureFilename, and replaces signatureFilename (a .signed file also gets the changed part of the
+	 * message copied in). The new file is written next to it as signatureFilename.tmp and then renamed over
+	 * it, so a crash or a full disk never leaves a half updated signature behind.
+	 */
+	private static boolean rewriteSignature(String filename, String signatureFilename, RSAKey privateKey,
+			long changedFrom, boolean detached, SignatureMetrics.Timer timer){
+
+		if(changedFrom < 0){
+			System.out.println("Error: ChunkIndex.resign(...) changed offset must not be negative");
+			return false;
+		}
+
+		Path tempPath;
+		try{
+			tempPath = Paths.get(signatureFilename + ".tmp");
+		}
+		catch(InvalidPathException e){
+			System.out.println("Error: ChunkIndex.resign(...) could not read " + filename + " or update "
+					+ signatureFilename);
+			return false;
+		}
+
+		boolean written = false;
+		try(FileChannel message = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+				FileChannel signed = FileChannel.open(Paths.get(signatureFilename), StandardOpenOption.READ)){
+
+			SignedFile header = SignedFile.read(signed);
+			if(header == null || header.isDetached() != detached || !header.hasChunkIndex()
+					|| !header.hasFingerprint(privateKey.getFingerprint())
+					|| !DigitalSignature.payloadMatchesFile(header, signed)){
+				System.out.println("Error: ChunkIndex.resign(...) " + signatureFilename
+						+ " is not a signature with a chunk index made by this key");
+				return false;
+			}
+
+			DigestAlgorithm algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+			byte[][] oldHashes = header.readChunkIndex(signed);
+
+			// Signing is deterministic, so signing the old index again must give the stored signature. If it
+			// doesn't, the index was changed after it was signed, and building on it would sign those changes.
+			long rsaStart = System.nanoTime();
+			boolean authentic = privateKey.encrypt(DigitalSignature.treeHashValue(oldHashes, algorithm))
+					.equals(header.getSignature());
+			timer.rsa(System.nanoTime() - rsaStart);
+			if(!authentic){
+				System.out.println("Error: ChunkIndex.resign(...) the chunk index in " + signatureFilename
+						+ " does not match its signature");
+				return false;
+			}
+
+			long newLength = message.size();
+			changedFrom = Math.min(changedFrom, Math.min(header.getPayloadLength(), newLength));
+			int firstChunk = (int)(changedFrom / TreeHash.CHUNK_SIZE);
+			long hashFrom = (long)firstChunk * TreeHash.CHUNK_SIZE;
+
+			try(FileChannel temp = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+
+				// A .signed file keeps the unchanged chunks from the old file, and gets the rest of the message
+				// copied in while it is hashed, so the bytes written are the bytes signed
+				FileChannel copyTo = null;
+				if(!detached){
+					long writeStart = System.nanoTime();
+					temp.position(header.getPayloadOffset());
+					DigitalSignature.transferFully(signed, header.getPayloadOffset(), hashFrom, temp);
+					timer.write(System.nanoTime() - writeStart);
+					copyTo = temp;
+				}
+
+				byte[][] newHashes = TreeHash.hashChunks(message, hashFrom, newLength - hashFrom, algorithm, false,
+						timer, copyTo, header.getPayloadOffset() + hashFrom);
+				byte[][] chunkHashes = new byte[firstChunk + newHashes.length][];
+				System.arraycopy(oldHashes, 0, chunkHashes, 0, firstChunk);
+				System.arraycopy(newHashes, 0, chunkHashes, firstChunk, newHashes.length);
+
+				rsaStart = System.nanoTime();
+				BigInteger signature = privateKey.encrypt(DigitalSignature.treeHashValue(chunkHashes, algorithm));
+				timer.rsa(System.nanoTime() - rsaStart);
+
+				SignedFile newHeader = new SignedFile(header.getDigestAlgorithm(), header.getFlags(),
+						privateKey.getFingerprint(), signature, header.getSignatureLength(), newLength);
+
+				long writeStart = System.nanoTime();
+				newHeader.writeChunkIndex(temp, chunkHashes);
+				newHeader.write(temp);
+				temp.force(true);
+				timer.write(System.nanoTime() - writeStart);
+			}
+			written = true;
+		}
+		catch(IOException | IllegalArgumentException e){
+			// IllegalArgumentException also covers bad paths
+			System.out.println("Error: ChunkIndex.resign(...) could not read " + filename + " or update "
+					+ signatureFilename);
+			return false;
+		}
+		finally{
+			if(!written)
+				DigitalSignature.deleteQuietly(tempPath);
+		}
+
+		try{
+			Files.move(tempPath, Paths.get(signatureFilename), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e){
+			System.out.println("Error: ChunkIndex.resign(...) could not replace " + signatureFilename);
+			DigitalSignature.deleteQuietly(tempPath);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/*
+	 * Bytes [start, end) of a message.
+	 */
+	public static class Range {
+		private long start;
+		private long end;
+
+		public Range(long start, long end){
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart(){
+			return start;
+		}
+
+		public long getEnd(){
+			return end;
+		}
+
+		public long getLength(){
+			return end - start;
+		}
+
+		public String toString(){
+			return "[" + start + ", " + end + ")";
+		}
+	}
+
+
+	public static class Report {
+		private VerificationStatus status;
+		private boolean indexTrusted;
+		private List<Range> tamperedRanges;
+
+		private Report(VerificationStatus status, boolean indexTrusted, List<Range> tamperedRanges){
+			this.status = status;
+			this.indexTrusted = indexTrusted;
+			this.tamperedRanges = Collections.unmodifiableList(tamperedRanges);
+		}
+
+		public VerificationStatus getStatus(){
+			return status;
+		}
+
+		public boolean isIndexTrusted(){
+			return indexTrusted;
+		}
+
+		public List<Range> getTamperedRanges(){
+			return tamperedRanges;
+		}
+
+		public long getTamperedBytes(){
+			long bytes = 0;
+			for(Range range : tamperedRanges){
+				bytes += range.getLength();
+			}
+			return bytes;
+		}
+
+		public void print(PrintStream out){
+			if(!indexTrusted){
+				out.println(status + " (the chunk index could not be checked, so the damage cannot be located)");
+				return;
+			}
+
+			out.println(status + ": " + tamperedRanges.size() + " tampered ranges, " + getTamperedBytes() + " bytes");
+			for(Range range : tamperedRanges){
+				out.println("  " + range);
+			}
+		}
+	}
+}
@@ -0,0 +1,557 @@
+package digital_sig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*	========================================================================================================
+ * 								---- How to use CommandLine class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Main without arguments is the interactive menu. With arguments, it runs one command and exits, which
+ * 			is what scripts and CI jobs want:
+ *
+ * 			java -jar rsa-digital-sig.jar <command> [options] <file>...
+ *
+ * 		+ No command ever asks a question or generates keys behind your back.
+ *
+ * 		+ A file name of "-" reads more file names from standard input, one per line.
+ *
+ * 		+ Each file gets one line on System.out: <result> <file>.
+ *
+ *
+ * 	Commands:
+ * 		sign --key <private key file> [--detached] [--digest md5|sha256|sha512] [--tree] [--index] [--mmap] <file>...
+ * 			Writes <file>.signed (or <file>.sig with --detached) for each file. Result OK or FAILED.
+ *
+ * 		verify (--key <public key file> | --keystore <keystore file>) [--detached] [--mmap] <file>...
+ * 			Checks each .signed file (or each file against <file>.sig with --detached). Result VALID, INVALID or
+ * 			UNREADABLE. With --keystore the signer's key is looked up by fingerprint (see RSAKeyStore.java).
+ *
+ * 		extract (--key <public key file> | --keystore <keystore file> | --unverified) [--out <file>] <file.signed>
+ * 			Writes the message to --out, or to System.out. Nothing is written unless the signature is VALID. The
+ * 			message is read into memory once and checked there (DigitalSignature.verifyAndExtract()), so the
+ * 			bytes written are exactly the bytes that were verified, even if the file changes meanwhile. That
+ * 			limits it to messages under 2 GB. With --unverified the signature isn't checked and the message is
+ * 			streamed, so it can be of any size.
+ *
+ * 		keygen [--bits <key size>] [--primes <count>] [--private <file>] [--public <file>] [--force]
+ * 			Makes a key pair, saved to privkey.rsa and pubkey.rsa by default. Existing files are only
+ * 			overwritten with --force. --primes makes a multi-prime key (see KeyGen.maxPrimes()).
+ *
+ * 		tamper [--at <byte index>] <file>
+ * 			Changes one byte of the file (a random one unless --at is given) to a different value. An empty file
+ * 			has no byte to change, which is EXIT_FAILED.
+ *
+ * 		fuzz --key <public key file> [--cycles <n>] [--seed <n>] [--mmap] <file.signed>...
+ * 			Tampers with in-memory copies of each VALID .signed file, --cycles times (10000 by default), and prints
+ * 			how many of the changes were detected and how many cycles per second ran (see TamperFuzzer.java).
+ * 			Result OK if every change was detected, MISSED if not.
+ *
+ * 		selftest
+ * 			Signs, verifies, extracts and tampers with a temporary file using a fresh key. Useful as a smoke test,
+ * 			and as the training run for the class data sharing archive (see below).
+ *
+ *
+ * 	Exit codes:
+ * 		EXIT_OK				every file was signed, VALID, extracted, ...
+ * 		EXIT_FAILED			at least one file could not be signed or is INVALID (or, for fuzz, had tampering MISSED)
+ * 		EXIT_USAGE			bad arguments, or a key that could not be loaded
+ * 		EXIT_UNREADABLE		no file is INVALID, but at least one could not be read
+ *
+ *
+ * 	Starting fast:
+ * 		+ A command spends most of its time starting the JVM and loading classes, not signing. Two switches
+ * 			cut that down a lot for small files:
+ * 			- An application class data sharing (AppCDS) archive holds the classes already parsed and verified.
+ * 				"mvn -B package -Pappcds" builds one next to the jar, by running selftest once:
+ *
+ * 				java -XX:SharedArchiveFile=target/rsa-digital-sig.jsa -XX:TieredStopAtLevel=1 \
+ * 						-jar target/rsa-digital-sig-1.0-SNAPSHOT.jar verify --key pubkey.rsa blah.txt.signed
+ *
+ * 				The archive only works with the same JVM and the same jar it was made with, so rebuild it
+ * 				with the jar. A stale or missing archive is ignored (with a warning), never an error.
+ * 			- -XX:TieredStopAtLevel=1 skips the optimizing compiler, which a run this short never pays off.
+ *
+ * 		+ JMX registration of SignatureMetrics is skipped in command mode, since nothing can attach to a
+ * 			process that lives a few milliseconds. Pass -Ddigital_sig.jmx=true to keep it.
+ *
+ * 		+ Budget: verifying one small .signed file must take under 300 ms of wall time on one core with the
+ * 			archive and the switches above. Measured on one core (mean of 10 runs, 1024 bit key):
+ * 			- plain java -jar, JMX registered					690 ms
+ * 			- plain java -jar (command mode skips JMX)			490 ms
+ * 			- with -XX:TieredStopAtLevel=1						320 ms
+ * 			- with -XX:TieredStopAtLevel=1 and the archive		275 ms
+ * 			Rerun the measurement when adding anything to the command path:
+ *
+ * 				time java ... verify --key pubkey.rsa blah.txt.signed
+ *
+ * 		+ For thousands of files per job, pass them all to one command (or "-"), or use SigningDaemon, which
+ * 			pays for startup only once.
+ *
+ */
+public class CommandLine {
+
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FAILED = 1;
+	public static final int EXIT_USAGE = 2;
+	public static final int EXIT_UNREADABLE = 3;
+
+	public static final String USAGE =
+		"Usage: java -jar rsa-digital-sig.jar <command> [options] <file>...\n" +
+		"  sign --key <private key> [--detached] [--digest md5|sha256|sha512] [--tree] [--index] [--mmap] <file>...\n" +
+		"  verify (--key <public key> | --keystore <file>) [--detached] [--mmap] <file>...\n" +
+		"  extract (--key <public key> | --keystore <file> | --unverified) [--out <file>] <file.signed>\n" +
+		"  keygen [--bits <key size>] [--primes <count>] [--private <file>] [--public <file>] [--force]\n" +
+		"  tamper [--at <byte index>] <file>\n" +
+		"  fuzz --key <public key> [--cycles <n>] [--seed <n>] [--mmap] <file.signed>...\n" +
+		"  selftest\n" +
+		"A file name of - reads file names from standard input, one per line.";
+
+	// Options that take a value, and options that don't
+	private static final Set<String> VALUE_OPTIONS = new HashSet<>(Arrays.asList(
+			"--key", "--keystore", "--digest", "--out", "--bits", "--primes", "--private", "--public", "--at",
+			"--cycles", "--seed"));
+	private static final Set<String> FLAG_OPTIONS = new HashSet<>(Arrays.asList(
+			"--detached", "--tree", "--index", "--mmap", "--unverified", "--force"));
+
+
+	public static void main(String[] args){
+		System.exit(run(args));
+	}
+
+	/*
+	 * Runs one command and returns its exit code.
+	 */
+	public static int run(String[] args){
+		// Nothing can attach to a process this short lived, so don't pay for JMX unless asked to
+		if(System.getProperty(SignatureMetrics.JMX_PROPERTY) == null)
+			System.setProperty(SignatureMetrics.JMX_PROPERTY, "false");
+
+		if(args.length == 0){
+			System.out.println(USAGE);
+			return EXIT_USAGE;
+		}
+
+		Options options;
+		try{
+			options = Options.parse(args);
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Error: " + e.getMessage());
+			System.out.println(USAGE);
+			return EXIT_USAGE;
+		}
+		catch(IOException e){
+			System.out.println("Error: could not read the file list from standard input");
+			return EXIT_USAGE;
+		}
+
+		switch(args[0]){
+		case "sign":
+			return sign(options);
+		case "verify":
+			return verify(options);
+		case "extract":
+			return extract(options);
+		case "keygen":
+			return keygen(options);
+		case "tamper":
+			return tamper(options);
+		case "fuzz":
+			return fuzz(options);
+		case "selftest":
+			return selftest();
+		default:
+			System.out.println("Error: unknown command " + args[0]);
+			System.out.println(USAGE);
+			return EXIT_USAGE;
+		}
+	}
+
+	private static int sign(Options options){
+		if(options.files.isEmpty() || !options.values.containsKey("--key"))
+			return usage("sign needs --key and at least one file");
+
+		RSAKey privateKey = RSAKey.loadFromFile(options.values.get("--key"));
+		if(privateKey == null)
+			return EXIT_USAGE;
+
+		SigningOptions signingOptions = new SigningOptions(options.flags.contains("--mmap"));
+		signingOptions.setTreeHash(options.flags.contains("--tree"));
+		signingOptions.setChunkIndex(options.flags.contains("--index"));
+		if(options.values.containsKey("--digest")){
+			DigestAlgorithm digest = DigestAlgorithm.fromName(options.values.get("--digest"));
+			if(digest == null)
+				return usage("unknown digest " + options.values.get("--digest"));
+			signingOptions.setDigest(digest);
+		}
+
+		boolean detached = options.flags.contains("--detached");
+		int failures = 0;
+		for(String filename : options.files){
+			boolean success = detached ? DigitalSignature.signFileDetached(filename, privateKey, signingOptions)
+					: DigitalSignature.signFile(filename, privateKey, signingOptions);
+			System.out.println((success ? "OK " : "FAILED ") + filename);
+			if(!success)
+				failures++;
+		}
+
+		return failures == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	private static int verify(Options options){
+		if(options.files.isEmpty())
+			return usage("verify needs at least one file");
+
+		RSAKey publicKey = null;
+		RSAKeyStore trustedKeys = null;
+		if(options.values.containsKey("--key")){
+			publicKey = RSAKey.loadFromFile(options.values.get("--key"));
+			if(publicKey == null)
+				return EXIT_USAGE;
+		}
+		else if(options.values.containsKey("--keystore")){
+			trustedKeys = RSAKeyStore.open(options.values.get("--keystore"));
+			if(trustedKeys == null)
+				return EXIT_USAGE;
+		}
+		else{
+			return usage("verify needs --key or --keystore");
+		}
+
+		boolean detached = options.flags.contains("--detached");
+		boolean useMemoryMapping = options.flags.contains("--mmap");
+		int invalid = 0;
+		int unreadable = 0;
+		for(String filename : options.files){
+			VerificationStatus status;
+			if(detached && publicKey != null)
+				status = DigitalSignature.checkDetachedSignature(filename, filename + ".sig", publicKey, useMemoryMapping);
+			else if(detached)
+				status = DigitalSignature.checkDetachedSignature(filename, filename + ".sig", trustedKeys, useMemoryMapping);
+			else if(publicKey != null)
+				status = DigitalSignature.checkSignature(filename, publicKey, useMemoryMapping);
+			else
+				status = DigitalSignature.checkSignature(filename, trustedKeys, useMemoryMapping);
+
+			System.out.println(status + " " + filename);
+			if(status == VerificationStatus.INVALID)
+				invalid++;
+			else if(status == VerificationStatus.UNREADABLE)
+				unreadable++;
+		}
+
+		if(invalid > 0)
+			return EXIT_FAILED;
+		return unreadable > 0 ? EXIT_UNREADABLE : EXIT_OK;
+	}
+
+	private static int extract(Options options){
+		if(options.files.size() != 1)
+			return usage("extract needs exactly one file");
+		String filename = options.files.get(0);
+		String outputFilename = options.values.get("--out");
+
+		// Check and read in one pass, then write what was checked. Reading the file again to write it would
+		// let it be swapped between the check and the copy
+		VerifiedMessage received;
+		if(options.values.containsKey("--key")){
+			RSAKey publicKey = RSAKey.loadFromFile(options.values.get("--key"));
+			if(publicKey == null)
+				return EXIT_USAGE;
+			received = DigitalSignature.verifyAndExtract(filename, publicKey);
+		}
+		else if(options.values.containsKey("--keystore")){
+			RSAKeyStore trustedKeys = RSAKeyStore.open(options.values.get("--keystore"));
+			if(trustedKeys == null)
+				return EXIT_USAGE;
+			received = DigitalSignature.verifyAndExtract(filename, trustedKeys);
+		}
+		else if(options.flags.contains("--unverified")){
+			return extractUnverified(filename, outputFilename);
+		}
+		else{
+			return usage("extract needs --key, --keystore or --unverified");
+		}
+
+		if(!received.isValid()){
+			System.err.println(received.getStatus() + " " + filename);
+			return received.getStatus() == VerificationStatus.INVALID ? EXIT_FAILED : EXIT_UNREADABLE;
+		}
+
+		ByteBuffer message = received.getMessage();
+		try{
+			if(outputFilename != null){
+				try(FileChannel out = FileChannel.open(Paths.get(outputFilename), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+					writeFully(message, out);
+				}
+			}
+			else{
+				writeFully(message, Channels.newChannel(System.out));
+				System.out.flush();
+			}
+		}
+		catch(IOException | InvalidPathException e){
+			System.err.println("Error: could not write " + (outputFilename != null ? outputFilename : "the message"));
+			return EXIT_FAILED;
+		}
+		return EXIT_OK;
+	}
+
+	private static int extractUnverified(String filename, String outputFilename){
+		boolean success;
+		if(outputFilename != null)
+			success = DigitalSignature.extractMessageToFile(filename, outputFilename);
+		else
+			success = DigitalSignature.extractMessage(filename, System.out);
+
+		if(!success){
+			System.err.println("UNREADABLE " + filename);
+			return EXIT_UNREADABLE;
+		}
+		return EXIT_OK;
+	}
+
+	private static void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException{
+		while(buffer.hasRemaining()){
+			target.write(buffer);
+		}
+	}
+
+	private static int keygen(Options options){
+		if(!options.files.isEmpty())
+			return usage("keygen takes no files");
+
+		String privateFilename = options.values.getOrDefault("--private", "privkey.rsa");
+		String publicFilename = options.values.getOrDefault("--public", "pubkey.rsa");
+		if(!options.flags.contains("--force") && (new File(privateFilename).exists() || new File(publicFilename).exists()))
+			return usage(privateFilename + " or " + publicFilename + " already exists, use --force to overwrite");
+
+		KeyGen keyGen;
+		try{
+			keyGen = new KeyGen(Integer.parseInt(options.values.getOrDefault("--bits", "" + KeyGen.DEFAULT_KEY_SIZE)),
+					Integer.parseInt(options.values.getOrDefault("--primes", "2")));
+		}
+		catch(IllegalArgumentException e){
+			// NumberFormatException is an IllegalArgumentException too
+			return usage("bad key size or prime count: " + e.getMessage());
+		}
+
+		keyGen.generate();
+		if(!keyGen.getPrivateKey().saveToFile(privateFilename) || !keyGen.getPublicKey().saveToFile(publicFilename))
+			return EXIT_FAILED;
+
+		System.out.println("OK " + privateFilename + " " + publicFilename);
+		return EXIT_OK;
+	}
+
+	private static int tamper(Options options){
+		if(options.files.size() != 1)
+			return usage("tamper needs exactly one file");
+		String filename = options.files.get(0);
+
+		long size;
+		try{
+			size = Files.size(Paths.get(filename));
+		}
+		catch(IOException | InvalidPathException e){
+			System.out.println("UNREADABLE " + filename);
+			return EXIT_UNREADABLE;
+		}
+		if(size == 0){
+			System.out.println("Error: " + filename + " is empty, there is no byte to change");
+			return EXIT_FAILED;
+		}
+
+		long index;
+		try{
+			index = options.values.containsKey("--at") ? Long.parseLong(options.values.get("--at"))
+					: ThreadLocalRandom.current().nextLong(size);
+		}
+		catch(NumberFormatException e){
+			return usage("bad byte index " + options.values.get("--at"));
+		}
+		if(index < 0 || index >= size)
+			return usage("byte index must be between 0 and " + (size - 1));
+
+		if(!ChangeByte.changeByte(filename, index))
+			return EXIT_FAILED;
+
+		System.out.println("OK " + filename + " byte " + index);
+		return EXIT_OK;
+	}
+
+	private static int fuzz(Options options){
+		if(options.files.isEmpty() || !options.values.containsKey("--key"))
+			return usage("fuzz needs --key and at least one file");
+
+		RSAKey publicKey = RSAKey.loadFromFile(options.values.get("--key"));
+		if(publicKey == null)
+			return EXIT_USAGE;
+
+		TamperFuzzer fuzzer = new TamperFuzzer(publicKey);
+		fuzzer.setMemoryMapping(options.flags.contains("--mmap"));
+		int cycles;
+		try{
+			cycles = Integer.parseInt(options.values.getOrDefault("--cycles", "10000"));
+			if(options.values.containsKey("--seed"))
+				fuzzer.setSeed(Long.parseLong(options.values.get("--seed")));
+		}
+		catch(NumberFormatException e){
+			return usage("bad cycle count or seed");
+		}
+		if(cycles < 1)
+			return usage("fuzz needs at least one cycle");
+
+		int missed = 0;
+		int unreadable = 0;
+		for(String filename : options.files){
+			TamperFuzzer.Report report = fuzzer.fuzz(filename, cycles);
+			if(report == null){
+				System.out.println("UNREADABLE " + filename);
+				unreadable++;
+				continue;
+			}
+			report.print(System.out);
+			System.out.println((report.allDetected() ? "OK " : "MISSED ") + filename);
+			if(!report.allDetected())
+				missed++;
+		}
+
+		if(missed > 0)
+			return EXIT_FAILED;
+		return unreadable > 0 ? EXIT_UNREADABLE : EXIT_OK;
+	}
+
+	/*
+	 * Goes through every command path once, with a throwaway key and files.
+	 */
+	private static int selftest(){
+		Path directory = null;
+		try{
+			directory = Files.createTempDirectory("digital_sig-selftest");
+			String message = directory.resolve("message.txt").toString();
+			Files.write(directory.resolve("message.txt"), "The quick brown fox jumps over the lazy dog".getBytes());
+
+			KeyGen keyGen = new KeyGen();
+			keyGen.generate();
+			RSAKey privateKey = keyGen.getPrivateKey();
+			RSAKey publicKey = keyGen.getPublicKey();
+
+			SigningOptions treeOptions = new SigningOptions();
+			treeOptions.setDigest(DigestAlgorithm.SHA256);
+			treeOptions.setChunkIndex(true);
+
+			String failed = null;
+			if(!DigitalSignature.signFile(message, privateKey)
+					|| !DigitalSignature.signFileDetached(message, privateKey, treeOptions))
+				failed = "sign";
+			else if(!DigitalSignature.verifySignature(message + ".signed", publicKey)
+					|| !DigitalSignature.verifyDetachedSignature(message, publicKey))
+				failed = "verify";
+			else if(!DigitalSignature.extractMessageToFile(message + ".signed", message + ".out")
+					|| !Arrays.equals(Files.readAllBytes(directory.resolve("message.txt")),
+							Files.readAllBytes(directory.resolve("message.txt.out"))))
+				failed = "extract";
+			else if(!ChangeByte.changeByte(message + ".signed", new File(message + ".signed").length() - 1)
+					|| DigitalSignature.checkSignature(message + ".signed", publicKey, false) != VerificationStatus.INVALID)
+				failed = "tamper";
+
+			System.out.println(failed == null ? "selftest OK" : "selftest FAILED at " + failed);
+			return failed == null ? EXIT_OK : EXIT_FAILED;
+		}
+		catch(IOException e){
+			System.out.println("Error: selftest could not use a temporary directory: " + e.getMessage());
+			return EXIT_FAILED;
+		}
+		finally{
+			deleteDirectory(directory);
+		}
+	}
+
+	private static void deleteDirectory(Path directory){
+		if(directory == null)
+			return;
+		File[] files = directory.toFile().listFiles();
+		if(files != null){
+			for(File file : files){
+				file.delete();
+			}
+		}
+		directory.toFile().delete();
+	}
+
+	private static int usage(String problem){
+		System.out.println("Error: " + problem);
+		System.out.println(USAGE);
+		return EXIT_USAGE;
+	}
+
+	/*
+	 * The options and files after the command name.
+	 */
+	private static class Options {
+		Map<String, String> values = new HashMap<>();
+		Set<String> flags = new HashSet<>();
+		List<String> files = new ArrayList<>();
+
+		static Options parse(String[] args) throws IOException{
+			Options options = new Options();
+			for(int i = 1; i < args.length; i++){
+				if(VALUE_OPTIONS.contains(args[i])){
+					if(i + 1 == args.length)
+						throw new IllegalArgumentException(args[i] + " needs a value");
+					options.values.put(args[i], args[++i]);
+				}
+				else if(FLAG_OPTIONS.contains(args[i])){
+					options.flags.add(args[i]);
+				}
+				else if(args[i].equals("-")){
+					readFileList(options.files);
+				}
+				else if(args[i].startsWith("--")){
+					throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+				else{
+					options.files.add(args[i]);
+				}
+			}
+			return options;
+		}
+	}
+
+	/*
+	 * Adds the file names on standard input, one per line, to files. Used wherever a file list argument of "-"
+	 * is allowed (here, BatchVerifier and SigningClient).
+	 */
+	static void readFileList(List<String> files) throws IOException{
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line = in.readLine();
+		while(line != null){
+			if(!line.isEmpty())
+				files.add(line);
+			line = in.readLine();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package digital_sig;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * The message digests a .signed file can be made with. The id is what goes in the digest algorithm field of
+ * the header (see SignedFile.java), so ids must never be reused or renumbered.
+ *
+ * 		MD5		the original digest, and still the default so signatures stay readable by older versions
+ * 		SHA256	SHA-256
+ * 		SHA512	SHA-512 (needs a key of more than 512 bits, see DigitalSignature)
+ */
+public enum DigestAlgorithm {
+	MD5(SignedFile.DIGEST_MD5, "MD5", 128),
+	SHA256(SignedFile.DIGEST_SHA256, "SHA-256", 256),
+	SHA512(SignedFile.DIGEST_SHA512, "SHA-512", 512);
+
+	private int id;
+	private String javaName;
+	private int bits;
+
+	DigestAlgorithm(int id, String javaName, int bits){
+		this.id = id;
+		this.javaName = javaName;
+		this.bits = bits;
+	}
+
+	public int getId(){
+		return id;
+	}
+
+	/*
+	 * The name MessageDigest.getInstance() knows it by, for example "SHA-256".
+	 */
+	public String getJavaName(){
+		return javaName;
+	}
+
+	public int getBits(){
+		return bits;
+	}
+
+	public MessageDigest newDigest(){
+		try{
+			return MessageDigest.getInstance(javaName);
+		}
+		catch(NoSuchAlgorithmException e){
+			// Every JDK ships all three, so this only happens on a badly broken runtime
+			throw new IllegalStateException(javaName + " is not available", e);
+		}
+	}
+
+	/*
+	 * Returns the algorithm with the given header id, or null if there is none.
+	 */
+	public static DigestAlgorithm fromId(int id){
+		for(DigestAlgorithm algorithm : values()){
+			if(algorithm.id == id)
+				return algorithm;
+		}
+		return null;
+	}
+
+	/*
+	 * Looks an algorithm up by name, ignoring case and dashes ("sha256", "SHA-256" and "SHA256" all work).
+	 * Returns null if there is none.
+	 */
+	public static DigestAlgorithm fromName(String name){
+		String wanted = name.replace("-", "");
+		for(DigestAlgorithm algorithm : values()){
+			if(algorithm.name().equalsIgnoreCase(wanted))
+				return algorithm;
+		}
+		return null;
+	}
+}
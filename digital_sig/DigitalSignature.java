@@ -1,16 +1,32 @@
 package digital_sig;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Function;
 
 
 /*	========================================================================================================
@@ -58,12 +74,124 @@ import java.util.ArrayList;
  * 		//		* The digital signature was created with the Sender's private key, for the contained message
  * 		//		* The message and digital signature have not been tampered with
  * 
+ * 
+ * 	Large files:
+ * 		+ signFile() and verifySignature() never hold the whole message in memory. The message is fed to the
+ * 			digest (and copied into the .signed file) through a fixed size buffer, so a 1 GB file needs no more
+ * 			heap than a 1 KB one.
+ * 
+ * 		+ signFile() hashes each piece of the message and copies that same piece into the .signed file, in one
+ * 			pass. If the message changes while it is being signed, the signature still matches the bytes that
+ * 			were written.
+ * 
+ * 		+ extractMessageFromSignedFile() returns the message as a byte array, so it does need room for it.
+ * 
+ * 		+ To check a .signed file and get its message, call verifyAndExtract(). It reads the file once instead
+ * 			of twice:
+ * 
+ * 			VerifiedMessage received = DigitalSignature.verifyAndExtract("blah.txt.signed", alicePublicKey);
+ * 			if(received.isValid())
+ * 				ByteBuffer message = received.getMessage();
+ * 
+ * 		+ For very large files (VM images, database snapshots, ...) signing can map the file into memory instead
+ * 			of reading it, so the digest is fed straight from the page cache:
+ * 
+ * 			boolean success = DigitalSignature.signFile("disk.img", alicePrivateKey, true);
+ * 			boolean valid = DigitalSignature.verifySignature("disk.img.signed", alicePublicKey, true);
+ * 
+ * 			Files are mapped in windows of MAP_WINDOW_SIZE bytes, so files over 2 GB work fine. Files smaller
+ * 			than MAPPING_THRESHOLD are read normally, since mapping them costs more than it saves. The message
+ * 			inside an old style .signed file (see below) is split up by Java serialization, so it cannot be
+ * 			mapped and is always read normally.
+ * 
+ * 		+ To get the message out of a .signed file without loading it into memory, copy it to another file, or
+ * 			stream it to any channel or OutputStream (a socket, System.out, ...):
+ * 
+ * 			boolean success = DigitalSignature.extractMessageToFile("disk.img.signed", "disk.img");
+ * 			boolean success2 = DigitalSignature.extractMessage("disk.img.signed", socketChannel);
+ * 
+ * 
+ * 	Detached signatures (.sig files):
+ * 		+ signFile() copies the whole message into the .signed file. For big files that doubles the disk space
+ * 			and writes. A detached signature is just the header and signature, saved next to the original:
+ * 
+ * 			boolean success = DigitalSignature.signFileDetached("disk.img", alicePrivateKey);	// creates disk.img.sig
+ * 
+ * 		+ The receiver needs both the original file and the .sig file. The original is hashed where it is:
+ * 
+ * 			boolean valid = DigitalSignature.verifyDetachedSignature("disk.img", alicePublicKey);
+ * 			boolean valid2 = DigitalSignature.verifyDetachedSignature("disk.img", "elsewhere/disk.img.sig",
+ * 					alicePublicKey, true);	// true = memory mapped mode
+ * 
+ * 
+ * 	The .signed file format:
+ * 		+ A .signed file is a fixed size header (digest algorithm, key fingerprint, signature, message length)
+ * 			followed by the original message. See SignedFile.java for the exact layout.
+ * 
+ * 		+ signFile() always writes a new .signed file (an old one is removed first) with the permissions of the
+ * 			message, so the copy is never readable by anyone who can't read the original.
+ * 
+ * 		+ .signed files made by older versions (a Java serialized signature followed by the message) can still
+ * 			be verified and extracted. To convert one to the current format:
+ * 
+ * 			boolean success = DigitalSignature.upgradeSignedFile("blah.txt.signed", alicePublicKey);
+ * 
+ * 
+ * 	Digest algorithms and tree hashing:
+ * 		+ Files are hashed with MD5 unless told otherwise. SHA-256 and SHA-512 can be chosen with SigningOptions,
+ * 			and the choice is saved in the .signed (or .sig) file, so verifying needs nothing extra:
+ * 
+ * 			SigningOptions options = new SigningOptions();
+ * 			options.setDigest(DigestAlgorithm.SHA256);
+ * 			boolean success = DigitalSignature.signFile("blah.txt", alicePrivateKey, options);
+ * 
+ * 		+ One thread can only hash so fast. For multi gigabyte files, tree hashing hashes 4 MB chunks on all
+ * 			cores at once and signs the root of the chunk hashes (see TreeHash.java):
+ * 
+ * 			options.setTreeHash(true);
+ * 
+ * 		+ With options.setChunkIndex(true) the chunk hashes are also saved in the file. Then a file that was
+ * 			appended to can be re-signed without hashing it all again, and tampering can be pinned down to the
+ * 			chunks it hit (see ChunkIndex.java).
+ * 
+ * 		+ The signed number must be smaller than the key modulus, so SHA-512 needs a key of more than 512 bits
+ * 			(513 with tree hashing). signFile() prints an error and returns false if the key is too small.
+ * 
+ * 
+ * 	Checking files from many signers:
+ * 		+ Every .signed and .sig file records the fingerprint of the key that signed it. Give the check methods an
+ * 			RSAKeyStore of trusted public keys instead of one key, and the right key is looked up from there:
+ * 
+ * 			RSAKeyStore trusted = RSAKeyStore.open("trusted.rks");
+ * 			VerificationStatus status = DigitalSignature.checkSignature("blah.txt.signed", trusted, false);
+ * 
+ * 
+ * 	Checking the same files again and again:
+ * 		+ A VerificationCache remembers results until the file (or key) changes, so re-checking an unchanged file
+ * 			costs a few file attribute reads instead of reading and hashing it. See VerificationCache.java.
+ * 
+ * 
+ * 	Metrics:
+ * 		+ Every sign and verify is timed phase by phase (reading, hashing, RSA, writing) and counted in
+ * 			SignatureMetrics, which is visible over JMX and as JFR events. See SignatureMetrics.java.
+ * 
  * 	
  * 		
  */
 
 public class DigitalSignature {
 
+	// Files are read and hashed in chunks of this size, so memory use stays the same for any file size
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// Memory mapped mode: files smaller than the threshold are read normally, larger ones are mapped one
+	// window at a time (a single mapping cannot be over 2 GB)
+	private static final long MAPPING_THRESHOLD = 1L << 24;
+	private static final long MAP_WINDOW_SIZE = 1L << 28;
+
+	// Largest message that fits in one byte array or ByteBuffer
+	private static final long MAX_MESSAGE_LENGTH = Integer.MAX_VALUE - 8;
+
 	public static void main(String[] args){
 
 		RSAKey privateKey = RSAKey.loadFromFile("privkey.rsa");
@@ -89,203 +217,948 @@ public class DigitalSignature {
 
 
 	public static boolean signFile(String filename, RSAKey privateKey){
+		return signFile(filename, privateKey, false);
+	}
 
-		byte[] messageByteArray = fileToByteArray(filename);
-		if(messageByteArray == null){
+	public static boolean signFile(String filename, RSAKey privateKey, boolean useMemoryMapping){
+		return signFile(filename, privateKey, new SigningOptions(useMemoryMapping));
+	}
+
+	public static boolean signFile(String filename, RSAKey privateKey, SigningOptions options){
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("sign", filename);
+		boolean success = writeSignedFile(filename, privateKey, options, timer);
+		timer.signed(success);
+		return success;
+	}
+
+	/*
+	 * Copies the message into the .signed file while hashing it, in the same pass, so the signature covers
+	 * exactly the bytes that were written, even if the message changes meanwhile. The header (which holds the
+	 * signature) is written last, in front of the payload. The .signed file is always a new file with the
+	 * message's permissions.
+	 */
+	private static boolean writeSignedFile(String filename, RSAKey privateKey, SigningOptions options,
+			SignatureMetrics.Timer timer){
+
+		if(!keyFitsOptions(privateKey, options))
+			return false;
+
+		FileChannel messageChannel;
+		Set<PosixFilePermission> permissions;
+		Path signedPath;
+		try{
+			Path messagePath = Paths.get(filename);
+			permissions = permissionsOf(messagePath);
+			messageChannel = FileChannel.open(messagePath, StandardOpenOption.READ);
+			signedPath = Paths.get(filename + ".signed");
+		}
+		catch(IOException | InvalidPathException e){
 			System.out.println("Error: DigitalSignature.signFile(...) could not find/read file");
 			return false;
 		}
 
+		try(FileChannel message = messageChannel; FileChannel out = createWithPermissions(signedPath, permissions)){
+
+			long length = message.size();
+			PayloadDigest digest = digestPayload(message, 0, length, options.getDigest(), options.isTreeHash(),
+					options.isMemoryMapping(), timer, out, SignedFile.HEADER_LENGTH + SignedFile.signatureLength(privateKey));
+
+			long rsaStart = System.nanoTime();
+			digest.signature = privateKey.encrypt(digest.value);
+			timer.rsa(System.nanoTime() - rsaStart);
+
+			long writeStart = System.nanoTime();
+			SignedFile header = new SignedFile(options.getDigest().getId(), options.headerFlags(),
+					privateKey.getFingerprint(), digest.signature, SignedFile.signatureLength(privateKey), length);
+			header.write(out);
+			if(options.isChunkIndex())
+				header.writeChunkIndex(out, digest.chunkHashes);
+			timer.write(System.nanoTime() - writeStart);
+		}
+		catch(IOException | IllegalArgumentException e){
+			// IllegalArgumentException also covers files too big to tree hash, and signatures too wide for the key
+			System.out.println("Error: DigitalSignature.signFile(...) Could not read file or write .signed file");
+			try{
+				Files.deleteIfExists(signedPath);
+			}
+			catch(IOException e2){
+				// Left half written, and already reported
+			}
+			return false;
+		}
+
+		return true;
+	}
 
-		String messageString = new String(messageByteArray);
 
-		byte[] digestArray;
+	public static boolean signFileDetached(String filename, RSAKey privateKey){
+		return signFileDetached(filename, privateKey, false);
+	}
 
+	public static boolean signFileDetached(String filename, RSAKey privateKey, boolean useMemoryMapping){
+		return signFileDetached(filename, privateKey, new SigningOptions(useMemoryMapping));
+	}
+
+	public static boolean signFileDetached(String filename, RSAKey privateKey, SigningOptions options){
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("sign detached", filename);
+		boolean success = writeDetachedSignature(filename, privateKey, options, timer);
+		timer.signed(success);
+		return success;
+	}
+
+	private static boolean writeDetachedSignature(String filename, RSAKey privateKey, SigningOptions options,
+			SignatureMetrics.Timer timer){
+
+		long messageLength;
 		try{
-			MessageDigest digestor = MessageDigest.getInstance("MD5");
-			digestor.update(messageByteArray);
-			digestArray = digestor.digest();
+			messageLength = Files.size(Paths.get(filename));
 		}
-		catch(NoSuchAlgorithmException e){
-			System.out.println("Error: DigitalSignature.signFile(...) Problem using MD5 Message Digest");
+		catch(IOException | InvalidPathException e){
+			System.out.println("Error: DigitalSignature.signFileDetached(...) could not find/read file");
 			return false;
 		}
 
+		PayloadDigest signedDigest = signDigestOfFile(filename, privateKey, options, timer);
+		if(signedDigest == null){
+			System.out.println("Error: DigitalSignature.signFileDetached(...) could not find/read file");
+			return false;
+		}
 
-		BigInteger digest = new BigInteger(1, digestArray);
-		//System.out.println("Unencrypted Digest Before Signing:  " + digest);
-		BigInteger signedDigest = privateKey.encrypt(digest);
+		SignedFile header = new SignedFile(options.getDigest().getId(), SignedFile.FLAG_DETACHED | options.headerFlags(),
+				privateKey.getFingerprint(), signedDigest.signature, SignedFile.signatureLength(privateKey), messageLength);
 
-		if(!writeSignatureFile(filename + ".signed", signedDigest, messageString)){
-			System.out.println("Error: DigitalSignature.signFile(...) Could not write .signed file");
+		long writeStart = System.nanoTime();
+		try(FileChannel out = FileChannel.open(Paths.get(filename + ".sig"), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			header.write(out);
+			if(options.isChunkIndex())
+				header.writeChunkIndex(out, signedDigest.chunkHashes);	// fails if the file changed size meanwhile
+		}
+		catch(IOException | IllegalArgumentException e){
+			System.out.println("Error: DigitalSignature.signFileDetached(...) Could not write .sig file");
 			return false;
 		}
+		finally{
+			timer.write(System.nanoTime() - writeStart);
+		}
 
 		return true;
 	}
 
 
 	public static byte[] extractMessageFromSignedFile(String filename){
-		BigInteger signatureBigInt = BigInteger.ONE;
-		ArrayList<Byte> byteArrayList = new ArrayList<>();
-		byte[] messageByteArray = null;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			SignedFile header = SignedFile.read(channel);
+			if(header == null)
+				return extractLegacyMessage(filename);
 
-		try{
-			FileInputStream fin = new FileInputStream(filename);
-			ObjectInputStream objectIn = new ObjectInputStream(fin);
-
-			signatureBigInt = (BigInteger)objectIn.readObject();
+			if(header.isDetached() || !payloadMatchesFile(header, channel)
+					|| header.getPayloadLength() > MAX_MESSAGE_LENGTH)
+				return null;
 
-			while(true){
-				byteArrayList.add(objectIn.readByte());
+			ByteBuffer message = ByteBuffer.allocate((int)header.getPayloadLength());
+			long position = header.getPayloadOffset();
+			while(message.hasRemaining()){
+				int count = channel.read(message, position);
+				if(count < 0)
+					return null;
+				position += count;
 			}
+			return message.array();
+		}
+		catch(IOException | InvalidPathException e){
+			return null;
+		}
+	}
 
+	/*
+	 * Checks a .signed file and returns its message in one pass: the message is read once into memory and
+	 * hashed from there. Cheaper than verifySignature() followed by extractMessageFromSignedFile(), which read
+	 * the file twice. The message is only returned if the status is VALID (see VerifiedMessage.java). Messages
+	 * over 2 GB are UNREADABLE this way, use extractMessageToFile() and verifySignature() for those.
+	 *
+	 * There is no memory mapped mode here on purpose: a mapping shows later writes to the file, so the bytes
+	 * handed out could differ from the ones that were checked. The returned message is a private copy.
+	 */
+	public static VerifiedMessage verifyAndExtract(String filename, RSAKey publicKey){
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("verify and extract", filename);
+		VerifiedMessage result = readVerifiedMessage(filename, publicKey, timer);
+		timer.verified(result.getStatus());
+		return result;
+	}
+
+	/*
+	 * Same as verifyAndExtract() above, with the public key looked up in trustedKeys by the fingerprint the file
+	 * records (see checkSignature(String, RSAKeyStore, boolean)). The message is read into memory.
+	 */
+	public static VerifiedMessage verifyAndExtract(String filename, RSAKeyStore trustedKeys){
+		SignedFile header;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			header = SignedFile.read(channel);
+		}
+		catch(IOException | InvalidPathException e){
+			return new VerifiedMessage(VerificationStatus.UNREADABLE, null);
 		}
-		catch(EOFException e){
-			// This exception is expected when finished reading file
-			messageByteArray = new byte[byteArrayList.size()];
-			for(int i = 0; i < byteArrayList.size(); i++){
-				messageByteArray[i] = byteArrayList.get(i);
+		if(header == null)
+			return new VerifiedMessage(VerificationStatus.UNREADABLE, null);
+
+		// If the file is swapped after this, the fingerprint check in verifyAndExtract() fails it
+		RSAKey publicKey = trustedKeys.getPublicKey(header.getFingerprint());
+		if(publicKey == null)
+			return new VerifiedMessage(VerificationStatus.INVALID, null);
+		return verifyAndExtract(filename, publicKey);
+	}
+
+	private static VerifiedMessage readVerifiedMessage(String filename, RSAKey publicKey, SignatureMetrics.Timer timer){
+
+		ByteBuffer message;
+		BigInteger signatureBigInt;
+		BigInteger digest;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			SignedFile header = SignedFile.read(channel);
+
+			if(header == null){
+				// Old style .signed file, digest and collect the message in the same pass
+				MessageDigest md5Digestor = DigestAlgorithm.MD5.newDigest();
+				ByteArrayOutputStream messageOut = new ByteArrayOutputStream();
+				signatureBigInt = readLegacySignedFile(filename, md5Digestor, messageOut, timer);
+				if(signatureBigInt == null)
+					return new VerifiedMessage(VerificationStatus.UNREADABLE, null);
+				digest = new BigInteger(1, md5Digestor.digest());
+				message = ByteBuffer.wrap(messageOut.toByteArray());
+			}
+			else{
+				DigestAlgorithm algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+				if(header.isDetached() || algorithm == null || header.getPayloadLength() > MAX_MESSAGE_LENGTH)
+					return new VerifiedMessage(VerificationStatus.UNREADABLE, null);
+				if(!header.hasFingerprint(publicKey.getFingerprint()) || !payloadMatchesFile(header, channel))
+					return new VerifiedMessage(VerificationStatus.INVALID, null);
+
+				message = readPayload(channel, header, timer);
+				PayloadDigest payload = digestBuffer(message, algorithm, header.isTreeHash(), timer);
+				if(!chunkIndexMatches(header, channel, payload))
+					return new VerifiedMessage(VerificationStatus.INVALID, null);
+
+				digest = payload.value;
+				signatureBigInt = header.getSignature();
 			}
 		}
-		catch(FileNotFoundException e){
+		catch(IOException | InvalidPathException e){
+			return new VerifiedMessage(VerificationStatus.UNREADABLE, null);
+		}
 
+		return new VerifiedMessage(signatureMatches(signatureBigInt, digest, publicKey, timer), message);
+	}
+
+	/*
+	 * Copies the message inside a .signed file to outputFilename without passing it through the Java heap.
+	 */
+	public static boolean extractMessageToFile(String filename, String outputFilename){
+		try(FileChannel out = FileChannel.open(Paths.get(outputFilename), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			return extractMessage(filename, out);
 		}
-		catch(IOException e){
+		catch(IOException | InvalidPathException e){
+			return false;
+		}
+	}
+
+	/*
+	 * Streams the message inside a .signed file to target, starting at its current position, so memory use
+	 * does not depend on the size of the message. The copy is done with FileChannel.transferTo, which the
+	 * operating system does without copying through the Java heap when target is a FileChannel or a
+	 * SocketChannel. target must be in blocking mode, and is left open. Old style .signed files are streamed
+	 * through a small buffer instead.
+	 *
+	 * Returns false if the file can't be read or target can't be written, in which case part of the message
+	 * may already have been written. This does not check the signature.
+	 */
+	public static boolean extractMessage(String filename, WritableByteChannel target){
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			SignedFile header = SignedFile.read(channel);
+			if(header == null){
+				return readLegacySignedFile(filename, null, Channels.newOutputStream(target), null) != null;
+			}
+
+			if(header.isDetached() || !payloadMatchesFile(header, channel))
+				return false;
 
+			transferFully(channel, header.getPayloadOffset(), header.getPayloadLength(), target);
+		}
+		catch(IOException | InvalidPathException e){
+			return false;
 		}
-		catch(ClassNotFoundException e){
 
+		return true;
+	}
+
+	/*
+	 * Same as above, for an OutputStream (which is flushed, and left open).
+	 */
+	public static boolean extractMessage(String filename, OutputStream out){
+		if(!extractMessage(filename, Channels.newChannel(out)))
+			return false;
+
+		try{
+			out.flush();
 		}
-		
-		return messageByteArray;
+		catch(IOException e){
+			return false;
+		}
+		return true;
 	}
 
 
 	public static boolean verifySignature(String filename, RSAKey publicKey){
-		// !! Attention.. This method works correctly but needs updates !!
-		//		1) close ObjectInputStream after use
-		//		2) fill in exception handling sections
+		return verifySignature(filename, publicKey, false);
+	}
 
+	public static boolean verifySignature(String filename, RSAKey publicKey, boolean useMemoryMapping){
+		return checkSignature(filename, publicKey, useMemoryMapping) == VerificationStatus.VALID;
+	}
+
+	/*
+	 * Same as verifySignature(), but tells an invalid signature apart from a file that could not be read.
+	 */
+	public static VerificationStatus checkSignature(String filename, RSAKey publicKey, boolean useMemoryMapping){
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("verify", filename);
+
+		SignedDigest signed = readSignedDigest(filename, publicKey, useMemoryMapping, timer);
+		VerificationStatus status = signed.status;
+		if(status == null)
+			status = signatureMatches(signed.signature, signed.digest, publicKey, timer);
+
+		timer.verified(status);
+		return status;
+	}
 
-		// Get BigInteger and byte array from signature file
-		BigInteger signatureBigInt = BigInteger.ONE;
-		ArrayList<Byte> byteArrayList = new ArrayList<>();;
-		byte[] messageByteArray = null;
+	/*
+	 * Checks a whole .signed file that is already in memory (or mapped), from its position to its limit. The
+	 * buffer's position is not changed. Old style .signed files can only be checked from disk, so they are
+	 * UNREADABLE here.
+	 */
+	public static VerificationStatus checkSignature(ByteBuffer signedFile, RSAKey publicKey){
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("verify", null);
+		VerificationStatus status = checkBuffer(signedFile, publicKey, timer);
+		timer.verified(status);
+		return status;
+	}
 
+	private static VerificationStatus checkBuffer(ByteBuffer signedFile, RSAKey publicKey, SignatureMetrics.Timer timer){
+		SignedFile header;
 		try{
-			FileInputStream fin = new FileInputStream(filename);
-			ObjectInputStream objectIn = new ObjectInputStream(fin);
+			header = SignedFile.read(signedFile);
+		}
+		catch(IOException e){
+			return VerificationStatus.UNREADABLE;
+		}
 
-			signatureBigInt = (BigInteger)objectIn.readObject();
+		if(header == null)
+			return VerificationStatus.UNREADABLE;
+		DigestAlgorithm algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+		if(header.isDetached() || algorithm == null)
+			return VerificationStatus.UNREADABLE;
+		if(!header.hasFingerprint(publicKey.getFingerprint()) || header.getFileLength() != signedFile.remaining())
+			return VerificationStatus.INVALID;
+
+		ByteBuffer message = signedFile.duplicate();
+		message.position(signedFile.position() + (int)header.getPayloadOffset());
+		message.limit(message.position() + (int)header.getPayloadLength());
+		PayloadDigest payload = digestBuffer(message, algorithm, header.isTreeHash(), timer);
+		if(header.hasChunkIndex() && !Arrays.deepEquals(header.readChunkIndex(signedFile), payload.chunkHashes))
+			return VerificationStatus.INVALID;
+
+		return signatureMatches(header.getSignature(), payload.value, publicKey, timer);
+	}
+
+	public static boolean verifySignature(String filename, RSAKeyStore trustedKeys){
+		return checkSignature(filename, trustedKeys, false) == VerificationStatus.VALID;
+	}
+
+	/*
+	 * Same as checkSignature() above, with the public key looked up in trustedKeys by the fingerprint the file
+	 * records. A file signed by a key the store doesn't have is INVALID. Old style .signed files don't record
+	 * their signer, so they are UNREADABLE this way.
+	 */
+	public static VerificationStatus checkSignature(String filename, RSAKeyStore trustedKeys, boolean useMemoryMapping){
+		return checkWithSignerKey(filename, trustedKeys,
+				publicKey -> checkSignature(filename, publicKey, useMemoryMapping));
+	}
+
+	/*
+	 * Looks up the public key that signed signatureFilename and checks the signature with it.
+	 */
+	private static VerificationStatus checkWithSignerKey(String signatureFilename, RSAKeyStore trustedKeys,
+			Function<RSAKey, VerificationStatus> check){
+
+		SignedFile header;
+		try(FileChannel channel = FileChannel.open(Paths.get(signatureFilename), StandardOpenOption.READ)){
+			header = SignedFile.read(channel);
+		}
+		catch(IOException | InvalidPathException e){
+			return VerificationStatus.UNREADABLE;
+		}
+		if(header == null)
+			return VerificationStatus.UNREADABLE;
+
+		RSAKey publicKey = trustedKeys.getPublicKey(header.getFingerprint());
+		if(publicKey == null)
+			return VerificationStatus.INVALID;
+		return check.apply(publicKey);
+	}
+
+	/*
+	 * The signature and message digest of a .signed file, before the RSA step. If the file could not be read
+	 * that far, status says why (and it is null otherwise).
+	 */
+	static class SignedDigest {
+		VerificationStatus status;
+		BigInteger signature;
+		BigInteger digest;
+
+		SignedDigest(VerificationStatus status){
+			this.status = status;
+		}
+
+		SignedDigest(BigInteger signature, BigInteger digest){
+			this.signature = signature;
+			this.digest = digest;
+		}
+	}
+
+	static SignedDigest readSignedDigest(String filename, RSAKey publicKey, boolean useMemoryMapping,
+			SignatureMetrics.Timer timer){
 
-			while(true){
-				byteArrayList.add(objectIn.readByte());
+		// Get signature from signature file, feeding the message into the digest as it is read (digest2)
+		BigInteger signatureBigInt;
+		BigInteger digest;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			SignedFile header = SignedFile.read(channel);
+
+			if(header == null){
+				// Old style .signed file (always MD5), the message can only be streamed out of it
+				MessageDigest md5Digestor = DigestAlgorithm.MD5.newDigest();
+				signatureBigInt = readLegacySignedFile(filename, md5Digestor, null, timer);
+				if(signatureBigInt == null)
+					return new SignedDigest(VerificationStatus.UNREADABLE);
+				digest = new BigInteger(1, md5Digestor.digest());
 			}
+			else{
+				DigestAlgorithm algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+				if(header.isDetached() || algorithm == null)
+					return new SignedDigest(VerificationStatus.UNREADABLE);
+				if(!header.hasFingerprint(publicKey.getFingerprint()) || !payloadMatchesFile(header, channel))
+					return new SignedDigest(VerificationStatus.INVALID);
+
+				PayloadDigest payload = digestPayload(channel, header.getPayloadOffset(), header.getPayloadLength(),
+						algorithm, header.isTreeHash(), useMemoryMapping, timer);
+				if(!chunkIndexMatches(header, channel, payload))
+					return new SignedDigest(VerificationStatus.INVALID);
 
+				digest = payload.value;
+				signatureBigInt = header.getSignature();
+			}
+		}
+		catch(IOException | InvalidPathException e){
+			return new SignedDigest(VerificationStatus.UNREADABLE);
 		}
-		catch(EOFException e){
-			// This exception is expected when finished reading file
-			messageByteArray = new byte[byteArrayList.size()];
-			for(int i = 0; i < byteArrayList.size(); i++){
-				messageByteArray[i] = byteArrayList.get(i);
+
+		return new SignedDigest(signatureBigInt, digest);
+	}
+
+	public static boolean verifyDetachedSignature(String filename, RSAKey publicKey){
+		return verifyDetachedSignature(filename, filename + ".sig", publicKey, false);
+	}
+
+	public static boolean verifyDetachedSignature(String filename, String signatureFilename, RSAKey publicKey,
+			boolean useMemoryMapping){
+		return checkDetachedSignature(filename, signatureFilename, publicKey, useMemoryMapping)
+				== VerificationStatus.VALID;
+	}
+
+	public static VerificationStatus checkDetachedSignature(String filename, String signatureFilename,
+			RSAKey publicKey, boolean useMemoryMapping){
+
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("verify detached", filename);
+		VerificationStatus status = readDetachedSignature(filename, signatureFilename, publicKey, useMemoryMapping,
+				timer);
+		timer.verified(status);
+		return status;
+	}
+
+	/*
+	 * Same as above, with the public key looked up in trustedKeys by the fingerprint the .sig file records.
+	 */
+	public static VerificationStatus checkDetachedSignature(String filename, String signatureFilename,
+			RSAKeyStore trustedKeys, boolean useMemoryMapping){
+		return checkWithSignerKey(signatureFilename, trustedKeys,
+				publicKey -> checkDetachedSignature(filename, signatureFilename, publicKey, useMemoryMapping));
+	}
+
+	private static VerificationStatus readDetachedSignature(String filename, String signatureFilename,
+			RSAKey publicKey, boolean useMemoryMapping, SignatureMetrics.Timer timer){
+
+		SignedFile header;
+		DigestAlgorithm algorithm;
+		byte[][] storedChunkHashes = null;
+		try(FileChannel signatureChannel = FileChannel.open(Paths.get(signatureFilename), StandardOpenOption.READ)){
+			header = SignedFile.read(signatureChannel);
+			if(header == null || !header.isDetached() || signatureChannel.size() != header.getFileLength())
+				return VerificationStatus.UNREADABLE;
+			algorithm = DigestAlgorithm.fromId(header.getDigestAlgorithm());
+			if(algorithm == null)
+				return VerificationStatus.UNREADABLE;
+			if(header.hasChunkIndex())
+				storedChunkHashes = header.readChunkIndex(signatureChannel);
+			if(!header.hasFingerprint(publicKey.getFingerprint()))
+				return VerificationStatus.INVALID;
+		}
+		catch(IOException | InvalidPathException e){
+			return VerificationStatus.UNREADABLE;
+		}
+
+		// Hash the original file where it is
+		BigInteger digest;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			if(channel.size() != header.getPayloadLength())
+				return VerificationStatus.INVALID;
+
+			PayloadDigest payload = digestPayload(channel, 0, header.getPayloadLength(), algorithm, header.isTreeHash(),
+					useMemoryMapping, timer);
+			if(storedChunkHashes != null && !Arrays.deepEquals(storedChunkHashes, payload.chunkHashes))
+				return VerificationStatus.INVALID;
+			digest = payload.value;
+		}
+		catch(IOException | InvalidPathException e){
+			return VerificationStatus.UNREADABLE;
+		}
+
+		return signatureMatches(header.getSignature(), digest, publicKey, timer);
+	}
+
+	/*
+	 * Rewrites an old style (Java serialized) .signed file in the current format. The signature is checked
+	 * with publicKey first, and the file is left alone if it does not verify. Files that are already in the
+	 * current format are left alone too (and true is returned). The new file is written next to the old one
+	 * and renamed over it, so a crash leaves either the old file or the new one, never half of each.
+	 */
+	public static boolean upgradeSignedFile(String filename, RSAKey publicKey){
+		Path path;
+		Path tempPath;
+		try{
+			path = Paths.get(filename);
+			tempPath = Paths.get(filename + ".tmp");
+
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+				if(SignedFile.read(channel) != null)
+					return true;
 			}
 		}
-		catch(FileNotFoundException e){
+		catch(IOException | InvalidPathException e){
 			return false;
 		}
+
+		SignatureMetrics.Timer timer = new SignatureMetrics.Timer("upgrade", filename);
+		VerificationStatus status = VerificationStatus.UNREADABLE;
+		try{
+			MessageDigest md5Digestor = DigestAlgorithm.MD5.newDigest();
+			int signatureLength = SignedFile.signatureLength(publicKey);
+
+			try(FileChannel out = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+
+				// Copy the message to where it goes in the new file, then write the header in front of it
+				out.position(SignedFile.HEADER_LENGTH + signatureLength);
+				BigInteger signatureBigInt = readLegacySignedFile(filename, md5Digestor, Channels.newOutputStream(out),
+						timer);
+
+				if(signatureBigInt != null){
+					status = signatureMatches(signatureBigInt, new BigInteger(1, md5Digestor.digest()), publicKey,
+							timer);
+				}
+				if(status == VerificationStatus.VALID){
+					long payloadLength = out.size() - SignedFile.HEADER_LENGTH - signatureLength;
+					new SignedFile(SignedFile.DIGEST_MD5, 0, publicKey.getFingerprint(), signatureBigInt,
+							signatureLength, payloadLength).write(out);
+					out.force(true);
+				}
+			}
+
+			if(status != VerificationStatus.VALID){
+				deleteQuietly(tempPath);
+				return false;
+			}
+
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
 		catch(IOException e){
+			status = VerificationStatus.UNREADABLE;
+			deleteQuietly(tempPath);
 			return false;
 		}
-		catch(ClassNotFoundException e){
-			return false;
+		finally{
+			timer.verified(status);
 		}
 
+		return true;
+	}
+
+	private static VerificationStatus signatureMatches(BigInteger signatureBigInt, BigInteger unencryptedDigestBigInt2,
+			RSAKey publicKey, SignatureMetrics.Timer timer){
+		//System.out.println("Unencrypted digest2:   " + unencryptedDigestBigInt2);
+
 
 		// Convert BigInteger into unencrypted digest (digest1)
+		long rsaStart = System.nanoTime();
 		BigInteger decryptedDigestBigInt = publicKey.encrypt(signatureBigInt);
+		timer.rsa(System.nanoTime() - rsaStart);
 		//System.out.println("Decrypted Digest:   " + decryptedDigestBigInt);
-		byte[] digest1 = decryptedDigestBigInt.toByteArray();
 
-		// Convert byte array into unencrypted digest (digest2)
-		byte[] digest2 = null;
-		try{
-			MessageDigest md5Digestor = MessageDigest.getInstance("MD5");
-			md5Digestor.update(messageByteArray);
-			digest2 = md5Digestor.digest();
+
+		// Compare digest1 and digest 2 as unsigned numbers, so a leading 0x00 (or a high first bit) in either
+		// byte form cannot make matching digests look different
+		if(decryptedDigestBigInt.equals(unencryptedDigestBigInt2))
+			return VerificationStatus.VALID;
+
+		return VerificationStatus.INVALID;
+	}
+
+	/*
+	 * Hashes a file the way the options say and signs the digest. Returns null if the file could not be read,
+	 * or if the key is too small for the digest.
+	 */
+	private static PayloadDigest signDigestOfFile(String filename, RSAKey privateKey, SigningOptions options,
+			SignatureMetrics.Timer timer){
+
+		if(!keyFitsOptions(privateKey, options))
+			return null;
+
+		PayloadDigest digest;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			digest = digestPayload(channel, 0, channel.size(), options.getDigest(), options.isTreeHash(),
+					options.isMemoryMapping(), timer);
 		}
-		catch(NoSuchAlgorithmException e){
-			return false;
+		catch(IOException | IllegalArgumentException e){
+			// IllegalArgumentException also covers bad paths, and files too big to tree hash
+			return null;
 		}
 
-		BigInteger unencryptedDigestBigInt2 = new BigInteger(digest2);
-		//System.out.println("Unencrypted digest2:   " + unencryptedDigestBigInt2);
+		//System.out.println("Unencrypted Digest Before Signing:  " + digest);
+		long rsaStart = System.nanoTime();
+		digest.signature = privateKey.encrypt(digest.value);
+		timer.rsa(System.nanoTime() - rsaStart);
+		return digest;
+	}
 
+	/*
+	 * What gets signed for a payload: value is the number that goes through RSA, chunkHashes the TreeHash chunk
+	 * hashes it came from (null without tree hashing), and signature is value once signed.
+	 */
+	private static class PayloadDigest {
+		BigInteger value;
+		byte[][] chunkHashes;
+		BigInteger signature;
 
-		// Compare digest1 and digest 2
-		if(digest1 == null || digest2 == null || digest1.length != digest2.length)
-			return false;
+		PayloadDigest(BigInteger value, byte[][] chunkHashes){
+			this.value = value;
+			this.chunkHashes = chunkHashes;
+		}
+	}
 
-		//System.out.println("Digest1 length: " + digest1.length + "  Digest2 length: " + digest2.length);
-		boolean valid = true;
-		for(int i = 0; i < digest1.length; i++){
-			//System.out.println(digest1[i] + "  " + digest2[i]);
-			if(digest1[i] != digest2[i]){
-				valid = false;
-			}
+	private static PayloadDigest digestPayload(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean treeHash, boolean useMemoryMapping, SignatureMetrics.Timer timer) throws IOException{
+		return digestPayload(channel, position, length, algorithm, treeHash, useMemoryMapping, timer, null, 0);
+	}
+
+	/*
+	 * Same as above, also writing the bytes it hashes to copyTo (starting at copyPosition), unless copyTo is
+	 * null.
+	 */
+	private static PayloadDigest digestPayload(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean treeHash, boolean useMemoryMapping, SignatureMetrics.Timer timer, FileChannel copyTo,
+			long copyPosition) throws IOException{
+
+		if(treeHash){
+			boolean mapped = useMemoryMapping && length >= MAPPING_THRESHOLD;
+			byte[][] chunkHashes = TreeHash.hashChunks(channel, position, length, algorithm, mapped, timer, copyTo,
+					copyPosition);
+			return new PayloadDigest(treeHashValue(chunkHashes, algorithm), chunkHashes);
 		}
 
-		return valid;
+		MessageDigest digestor = algorithm.newDigest();
+		digestRange(channel, position, length, digestor, useMemoryMapping, timer, copyTo, copyPosition);
+		return new PayloadDigest(new BigInteger(1, digestor.digest()), null);
 	}
 
-	private static boolean writeSignatureFile(String filename, BigInteger signedDigest, String originalMessage){
-		try{
-			FileOutputStream fout = new FileOutputStream(filename);
-			ObjectOutputStream objectOut = new ObjectOutputStream(fout);
+	/*
+	 * Same as digestPayload(), for a message that is already in memory. The buffer's position is not changed.
+	 */
+	private static PayloadDigest digestBuffer(ByteBuffer message, DigestAlgorithm algorithm, boolean treeHash,
+			SignatureMetrics.Timer timer){
 
-			objectOut.writeObject(signedDigest);
-			objectOut.write(originalMessage.getBytes());
+		if(treeHash){
+			byte[][] chunkHashes = TreeHash.hashChunks(message, algorithm, timer);
+			return new PayloadDigest(treeHashValue(chunkHashes, algorithm), chunkHashes);
+		}
+
+		long hashStart = System.nanoTime();
+		MessageDigest digestor = algorithm.newDigest();
+		digestor.update(message.duplicate());
+		timer.hashed(System.nanoTime() - hashStart, message.remaining());
+		return new PayloadDigest(new BigInteger(1, digestor.digest()), null);
+	}
 
-			objectOut.close();
+	/*
+	 * Reads the whole payload into a heap buffer that nothing else can change.
+	 */
+	private static ByteBuffer readPayload(FileChannel channel, SignedFile header, SignatureMetrics.Timer timer)
+			throws IOException{
+
+		long readStart = System.nanoTime();
+		ByteBuffer message = ByteBuffer.allocate((int)header.getPayloadLength());
+		long position = header.getPayloadOffset();
+		while(message.hasRemaining()){
+			int count = channel.read(message, position);
+			if(count < 0)
+				throw new EOFException("File ended before the expected length");
+			position += count;
+		}
+		message.flip();
+		timer.read(System.nanoTime() - readStart);
+		return message;
+	}
+
+	/*
+	 * The number that gets signed for a tree hash: the TreeHash root with one extra bit set just above it. The
+	 * header flags are not covered by the signature, so without that bit the root of one file would also be
+	 * the plain digest of another (a file holding the chunk hashes), and flipping the flag would make the
+	 * signature fit it.
+	 */
+	static BigInteger treeHashValue(byte[][] chunkHashes, DigestAlgorithm algorithm){
+		return new BigInteger(1, TreeHash.root(chunkHashes, algorithm)).setBit(algorithm.getBits());
+	}
+
+	/*
+	 * A chunk index must hold exactly the chunk hashes of the payload. The signature already covers it, but a
+	 * damaged index would make ChunkIndex blame the wrong chunks later.
+	 */
+	private static boolean chunkIndexMatches(SignedFile header, FileChannel channel, PayloadDigest payload)
+			throws IOException{
+		return !header.hasChunkIndex() || Arrays.deepEquals(header.readChunkIndex(channel), payload.chunkHashes);
+	}
+
+	/*
+	 * The signed number has to be smaller than the key modulus, or the RSA step would lose part of it.
+	 */
+	private static boolean keyFitsOptions(RSAKey key, SigningOptions options){
+		if(keyFitsDigest(key, options.getDigest(), options.isTreeHash()))
+			return true;
+
+		System.out.println("Error: DigitalSignature " + key.getModulus().bitLength() + " bit key is too small"
+				+ " for " + options.getDigest().getJavaName() + (options.isTreeHash() ? " tree hashes" : ""));
+		return false;
+	}
+
+	private static boolean keyFitsDigest(RSAKey key, DigestAlgorithm algorithm, boolean treeHash){
+		return key.getModulus().bitLength() > algorithm.getBits() + (treeHash ? 1 : 0);
+	}
+
+	private static byte[] extractLegacyMessage(String filename){
+		ByteArrayOutputStream messageOut = new ByteArrayOutputStream();
+
+		if(readLegacySignedFile(filename, null, messageOut, null) == null)
+			return null;
+
+		return messageOut.toByteArray();
+	}
+
+	/*
+	 * Reads an old style .signed file (a Java serialized BigInteger followed by the message written as
+	 * serialization block data). The message is streamed through a fixed size buffer into the digestor
+	 * and/or messageOut (either may be null). Returns the signature, or null if the file could not be read.
+	 * The phases are timed into timer, unless it is null.
+	 */
+	private static BigInteger readLegacySignedFile(String filename, MessageDigest digestor, OutputStream messageOut,
+			SignatureMetrics.Timer timer){
+		BigInteger signatureBigInt;
+
+		try(ObjectInputStream objectIn = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE))){
+
+			signatureBigInt = (BigInteger)objectIn.readObject();
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long readStart = System.nanoTime();
+			int count = objectIn.read(buffer);
+			while(count >= 0){
+				long hashStart = System.nanoTime();
+				if(digestor != null)
+					digestor.update(buffer, 0, count);
+				long writeStart = System.nanoTime();
+				if(messageOut != null)
+					messageOut.write(buffer, 0, count);
+
+				if(timer != null){
+					timer.read(hashStart - readStart);
+					if(digestor != null)
+						timer.hashed(writeStart - hashStart, count);
+					timer.write(System.nanoTime() - writeStart);
+				}
+
+				readStart = System.nanoTime();
+				count = objectIn.read(buffer);
+			}
 		}
 		catch(FileNotFoundException e){
-			return false;
+			return null;
 		}
 		catch(IOException e){
-			return false;
+			return null;
+		}
+		catch(ClassNotFoundException | ClassCastException e){
+			return null;
 		}
 
-		return true;
+		return signatureBigInt;
 	}
 
-	private static byte[] fileToByteArray(String filename){
-		ArrayList<Byte> byteArrayList = new ArrayList<>();
+	/*
+	 * The payload (and chunk index, if any) must run exactly to the end of the file. Anything else means the
+	 * file was truncated or had bytes added to it.
+	 */
+	static boolean payloadMatchesFile(SignedFile header, FileChannel channel) throws IOException{
+		return header.getFileLength() == channel.size();
+	}
 
-		try{
-			FileInputStream fin = new FileInputStream(filename);
+	/*
+	 * Copies length bytes of source (starting at position) to the current position of target, letting the
+	 * operating system move the bytes directly where it can.
+	 */
+	static void transferFully(FileChannel source, long position, long length, WritableByteChannel target)
+			throws IOException{
 
-			int inputInt = fin.read();
-			while(inputInt >= 0){
-				byte b = (byte) inputInt;
-				byteArrayList.add(b);
+		while(length > 0){
+			long count = source.transferTo(position, length, target);
+			if(count <= 0)
+				throw new EOFException("File ended before the expected length");
 
-				inputInt = fin.read();
-			}
-			fin.close();
+			position += count;
+			length -= count;
 		}
-		catch(FileNotFoundException e){
+	}
+
+	/*
+	 * The POSIX permissions of path, or null where the file system has none.
+	 */
+	private static Set<PosixFilePermission> permissionsOf(Path path) throws IOException{
+		try{
+			return Files.getPosixFilePermissions(path);
+		}
+		catch(UnsupportedOperationException e){
 			return null;
 		}
+	}
+
+	/*
+	 * Creates path for writing with exactly permissions (unless null), for a file that will hold a copy of the
+	 * message: no one who can't read the message may read the copy. A file already at path is removed first
+	 * rather than truncated, since anyone who has it open could still read what is written to it.
+	 */
+	private static FileChannel createWithPermissions(Path path, Set<PosixFilePermission> permissions) throws IOException{
+		Files.deleteIfExists(path);
+		if(permissions == null)
+			return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+
+		FileChannel channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW),
+				PosixFilePermissions.asFileAttribute(permissions));
+		try{
+			// The umask may have taken some away
+			Files.setPosixFilePermissions(path, permissions);
+		}
 		catch(IOException e){
-			return null;
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/*
+	 * Removes a leftover .tmp file. The file it was meant to replace is untouched either way.
+	 */
+	static void deleteQuietly(Path path){
+		try{
+			Files.deleteIfExists(path);
+		}
+		catch(IOException e){
+			// Only a leftover .tmp file
 		}
+	}
+
+	/*
+	 * Feeds length bytes of the channel, starting at position, into the digestor. Either reads them one
+	 * BUFFER_SIZE chunk at a time, or (for big enough ranges in memory mapped mode) maps them one
+	 * MAP_WINDOW_SIZE window at a time. Memory use does not grow with the size of the range either way.
+	 * Time spent reading (or mapping) and hashing is added to timer.
+	 */
+	private static void digestRange(FileChannel channel, long position, long length, MessageDigest digestor,
+			boolean useMemoryMapping, SignatureMetrics.Timer timer, FileChannel copyTo, long copyPosition)
+			throws IOException{
 
-		byte[] byteArray = new byte[byteArrayList.size()];
-		for(int i = 0; i < byteArrayList.size(); i++){
-			byteArray[i] = (byte)byteArrayList.get(i);
+		if(useMemoryMapping && length >= MAPPING_THRESHOLD){
+			while(length > 0){
+				long windowSize = Math.min(length, MAP_WINDOW_SIZE);
+				long readStart = System.nanoTime();
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+				long hashStart = System.nanoTime();
+				digestor.update(window.duplicate());
+				timer.read(hashStart - readStart);
+				timer.hashed(System.nanoTime() - hashStart, windowSize);
+				copyPosition += copy(window, copyTo, copyPosition, timer);
+
+				position += windowSize;
+				length -= windowSize;
+			}
+			return;
 		}
 
-		return byteArray;
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, BUFFER_SIZE));
+		while(length > 0){
+			buffer.limit((int)Math.min(length, buffer.capacity()));
+			long readStart = System.nanoTime();
+			int count = channel.read(buffer, position);
+			if(count < 0)
+				throw new EOFException("File ended before the expected length");
+
+			long hashStart = System.nanoTime();
+			buffer.flip();
+			digestor.update(buffer.duplicate());
+			timer.read(hashStart - readStart);
+			timer.hashed(System.nanoTime() - hashStart, count);
+			copyPosition += copy(buffer, copyTo, copyPosition, timer);
+			buffer.clear();
+
+			position += count;
+			length -= count;
+		}
+	}
+
+	/*
+	 * Writes the remaining bytes of buffer to target at position, unless target is null. Returns the number of
+	 * bytes written.
+	 */
+	private static long copy(ByteBuffer buffer, FileChannel target, long position, SignatureMetrics.Timer timer)
+			throws IOException{
+
+		if(target == null)
+			return 0;
+
+		long writeStart = System.nanoTime();
+		int count = buffer.remaining();
+		while(buffer.hasRemaining()){
+			position += target.write(buffer, position);
+		}
+		timer.write(System.nanoTime() - writeStart);
+		return count;
 	}
 
 }
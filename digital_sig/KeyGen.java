@@ -1,7 +1,17 @@
 package digital_sig;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.security.SecureRandom;
 
 /*	========================================================================================================
@@ -17,6 +27,20 @@ import java.security.SecureRandom;
  * 	How to create a Key Generator:
  * 		KeyGen keyGen = new KeyGen();
  * 
+ * 		// The public exponent e defaults to 65537. A small e makes verification (which uses the public key)
+ * 		// very cheap. Another odd exponent can be chosen instead:
+ * 		KeyGen keyGen3 = new KeyGen(BigInteger.valueOf(3));
+ * 
+ * 		// Keys made by older versions (with a large random e) still work with every class here.
+ * 
+ * 		// Keys are 1024 bits by default. Bigger keys are slower to make and use, but much harder to break:
+ * 		KeyGen keyGen2048 = new KeyGen(2048);
+ * 		KeyGen keyGen4096 = new KeyGen(4096, KeyGen.DEFAULT_PUBLIC_EXPONENT);
+ * 
+ * 		// Big keys can be made of more than 2 primes, which makes the private key much faster to use (see
+ * 		// "Multi-prime keys" in RSAKey.java). maxPrimes() says how many primes a key size allows:
+ * 		KeyGen keyGenMulti = new KeyGen(4096, 4);		// 4 primes of 1024 bits
+ * 
  * 
  * 	How to generate a new public/private key pair:
  * 		keyGen.generate();
@@ -27,11 +51,28 @@ import java.security.SecureRandom;
  * 		RSAKey privateKey = keyGen.getPrivateKey();
  * 
  * 
+ * 	generate() searches for the primes (p and q, and any others) on all cores at once (using the common ForkJoinPool), so key
+ * 		generation gets faster with more cores. This matters most for 2048 and 4096 bit keys. To keep the
+ * 		searchers off the common pool (KeyPairPool does, so background key generation can't starve other
+ * 		work), give the KeyGen its own executor and the number of searchers to run on it:
+ * 
+ * 		keyGen.setExecutor(executor, 2);
+ * 
+ * 
+ * 	The primes come from a PrimeGenerator, which sieves out candidates with small factors and picks the
+ * 		number of Miller-Rabin rounds by size (see PrimeGenerator.java). On one core, a 3072 bit key takes
+ * 		about 0.4 seconds on average and a 4096 bit key about 1 second.
+ * 
+ * 
+ * 	Each generate() is timed (prime search and total) and counted in SignatureMetrics, and shows up in JFR
+ * 		recordings as a "digital_sig.KeyGen" event.
+ * 
+ * 
  * 	A KeyGen object generate() method is called, it will remember the generated key pair until generate() is called
  * 		again.
  * 
  * 
- * 	A KeyGen object also remembers the data associated with creating those keys (p, q, n, totient, e, d). To
+ * 	A KeyGen object also remembers the data associated with creating those keys (primes, n, totient, e, d). To
  * 	print out this data:
  * 		keyGen.print();
  * 
@@ -41,10 +82,24 @@ import java.security.SecureRandom;
  */
 public class KeyGen {
 
+	public static final BigInteger DEFAULT_PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+	public static final int DEFAULT_KEY_SIZE = 1024;
+
+	// Put in the queue of found primes by a searcher that failed (see findPrimes())
+	private static final BigInteger SEARCH_FAILED = new BigInteger("0");
+
 	private Random rng = new SecureRandom();
+	private PrimeGenerator primeGenerator = new PrimeGenerator(rng);
 
-	private BigInteger p = BigInteger.ZERO;
-	private BigInteger q = BigInteger.ZERO;
+	// Where the prime searchers run (see findPrimes()), the common ForkJoinPool unless setExecutor() is called
+	private Executor executor = ForkJoinPool.commonPool();
+	private int searchers = Math.max(2, ForkJoinPool.getCommonPoolParallelism());
+
+	private int keySize;
+	private BigInteger publicExponent;
+	private int primeCount;
+
+	private BigInteger[] primes = new BigInteger[0];
 	private BigInteger n = BigInteger.ZERO;
 	private BigInteger totient = BigInteger.ZERO;
 	private BigInteger e = BigInteger.ZERO;
@@ -53,34 +108,220 @@ public class KeyGen {
 	private RSAKey privateKey = new RSAKey(BigInteger.ZERO, BigInteger.ZERO);
 	private RSAKey publicKey = new RSAKey(BigInteger.ZERO, BigInteger.ZERO);
 
-	public void generate(){
-		p = new BigInteger(512, 100, rng);
+	public KeyGen(){
+		this(DEFAULT_KEY_SIZE, DEFAULT_PUBLIC_EXPONENT);
+	}
+
+	public KeyGen(int keySize){
+		this(keySize, DEFAULT_PUBLIC_EXPONENT);
+	}
 
-		do{
-			q = new BigInteger(512, 100, rng);
-		}while(q.compareTo(p) == 0);
+	public KeyGen(BigInteger publicExponent){
+		this(DEFAULT_KEY_SIZE, publicExponent);
+	}
+
+	public KeyGen(int keySize, BigInteger publicExponent){
+		this(keySize, publicExponent, 2);
+	}
 
-		n = p.multiply(q);
+	public KeyGen(int keySize, int primeCount){
+		this(keySize, DEFAULT_PUBLIC_EXPONENT, primeCount);
+	}
 
-		totient = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+	public KeyGen(int keySize, BigInteger publicExponent, int primeCount){
+		if(keySize < 512 || keySize % 2 != 0)
+			throw new IllegalArgumentException("Key size must be even and at least 512 bits");
+		if(publicExponent.compareTo(BigInteger.valueOf(3)) < 0 || !publicExponent.testBit(0))
+			throw new IllegalArgumentException("Public exponent must be odd and at least 3");
+		if(primeCount < 2 || primeCount > maxPrimes(keySize))
+			throw new IllegalArgumentException("A " + keySize + " bit key can have 2 to " + maxPrimes(keySize) + " primes");
 
-		do{
-			e = new BigInteger(511, rng).setBit(512);
-		}while(e.gcd(totient).compareTo(BigInteger.ONE) != 0);
+		this.keySize = keySize;
+		this.publicExponent = publicExponent;
+		this.primeCount = primeCount;
+	}
+
+	/*
+	 * The most primes a key of keySize bits may be made of (the same limits as OpenSSL). With more, the
+	 * primes get small enough that factoring the modulus gets easier than for a 2 prime key of that size.
+	 */
+	public static int maxPrimes(int keySize){
+		if(keySize < 1024)
+			return 2;
+		if(keySize < 4096)
+			return 3;
+		if(keySize < 8192)
+			return 4;
+		return 5;
+	}
+
+	/*
+	 * Runs the prime searchers of generate() on executor instead of the common ForkJoinPool. searchers should
+	 * not be more than the threads executor has, since each searcher keeps its thread until the primes are
+	 * found.
+	 */
+	public void setExecutor(Executor executor, int searchers){
+		if(searchers < 1)
+			throw new IllegalArgumentException("KeyGen needs at least 1 searcher");
+
+		this.executor = executor;
+		this.searchers = searchers;
+	}
+
+	/*
+	 * Lets tests give the searchers a PrimeGenerator that misbehaves.
+	 */
+	void setPrimeGenerator(PrimeGenerator primeGenerator){
+		this.primeGenerator = primeGenerator;
+	}
+
+	public void generate(){
+		SignatureMetrics.KeyGenTimer timer = new SignatureMetrics.KeyGenTimer(keySize);
+		try{
+			generateKeys(timer);
+		}
+		catch(RuntimeException ex){
+			timer.finished(false);
+			throw ex;
+		}
+		timer.finished(true);
+	}
+
+	private void generateKeys(SignatureMetrics.KeyGenTimer timer){
+		e = publicExponent;
+
+		findPrimes();
+		timer.primesFound();
+
+		n = BigInteger.ONE;
+		totient = BigInteger.ONE;
+		for(BigInteger prime : primes){
+			n = n.multiply(prime);
+			totient = totient.multiply(prime.subtract(BigInteger.ONE));
+		}
 
 		d = e.modInverse(totient);
 
-		privateKey = new RSAKey(d, n);
+		privateKey = new RSAKey(d, n, primes);
 		publicKey = new RSAKey(e, n);
 	}
 
+	/*
+	 * Sets primes to primeCount different primes that multiply to exactly keySize bits. One searcher per core
+	 * (or as many as setExecutor() was given) draws primes and hands them over through a queue, so the primes
+	 * are found at the same time, and whichever searcher gets lucky first wins. The searchers are told to stop
+	 * before this returns, and give up the prime they are working on. If a searcher fails, this throws
+	 * IllegalStateException with its exception as the cause, instead of waiting for primes that never come.
+	 *
+	 * The primes are keySize / primeCount bits (some one bit more, when it doesn't divide evenly). Their
+	 * product can still come out a few bits short, in which case the (relatively) smallest prime is swapped
+	 * for a new one until it doesn't.
+	 *
+	 * e is fixed, so each prime must have gcd(e, prime - 1) = 1. Then gcd(e, totient) = 1 too. PrimeGenerator
+	 * checks this before testing a candidate, so no finished prime is thrown away.
+	 */
+	private void findPrimes(){
+		int[] sizes = new int[primeCount];
+		for(int i = 0; i < primeCount; i++){
+			sizes[i] = keySize / primeCount + (i < keySize % primeCount ? 1 : 0);
+		}
+
+		BlockingQueue<BigInteger> found = new LinkedBlockingQueue<>();
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger wantedBits = new AtomicInteger(sizes[0]);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		BigInteger exponent = e;
+		PrimeGenerator generator = primeGenerator;
+
+		primes = new BigInteger[primeCount];
+		List<BigInteger> spares = new ArrayList<>();
+		try{
+			// Started inside the try, so searchers that did start are stopped if the executor refuses one
+			for(int i = 0; i < searchers; i++){
+				executor.execute(() -> {
+					try{
+						while(!done.get()){
+							BigInteger prime = generator.nextPrime(wantedBits.get(), exponent, done::get);
+							if(prime != null)
+								found.add(prime);
+						}
+					}
+					catch(RuntimeException | Error ex){
+						// Wake up generate(), which would otherwise wait for primes that never come
+						failure.compareAndSet(null, ex);
+						found.add(SEARCH_FAILED);
+					}
+				});
+			}
+
+			for(int i = 0; i < primeCount; i++){
+				primes[i] = takePrime(found, spares, sizes[i], wantedBits, failure);
+			}
+
+			// Sizes differ, so compare the primes scaled to the same size: the smallest is the one furthest
+			// from the top of its range
+			while(product(primes).bitLength() < keySize){
+				int smallest = 0;
+				for(int i = 1; i < primeCount; i++){
+					BigInteger scaled = primes[i].shiftLeft(keySize - sizes[i]);
+					if(scaled.compareTo(primes[smallest].shiftLeft(keySize - sizes[smallest])) < 0)
+						smallest = i;
+				}
+				primes[smallest] = takePrime(found, spares, sizes[smallest], wantedBits, failure);
+			}
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("KeyGen.generate() was interrupted", ex);
+		}
+		finally{
+			// Also ends the nextPrime() calls still running, at their next candidate
+			done.set(true);
+		}
+	}
+
+	/*
+	 * The next prime of the given size that isn't one of primes already. Primes of the other size (drawn
+	 * before the searchers switched) are kept in spares for later.
+	 */
+	private BigInteger takePrime(BlockingQueue<BigInteger> found, List<BigInteger> spares, int bits,
+			AtomicInteger wantedBits, AtomicReference<Throwable> failure) throws InterruptedException{
+
+		wantedBits.set(bits);
+		for(int i = 0; i < spares.size(); i++){
+			if(spares.get(i).bitLength() == bits && !Arrays.asList(primes).contains(spares.get(i)))
+				return spares.remove(i);
+		}
+
+		while(true){
+			BigInteger prime = found.take();
+			if(prime == SEARCH_FAILED)
+				throw new IllegalStateException("KeyGen.generate() could not search for primes", failure.get());
+			if(Arrays.asList(primes).contains(prime))
+				continue;
+			if(prime.bitLength() == bits)
+				return prime;
+			spares.add(prime);
+		}
+	}
+
+	private static BigInteger product(BigInteger[] numbers){
+		BigInteger product = BigInteger.ONE;
+		for(BigInteger number : numbers){
+			product = product.multiply(number);
+		}
+		return product;
+	}
+
 	public void print(){
 		System.out.println();
 		System.out.println("============================================================");
 		System.out.println("  KeyGen contents");
 		System.out.println("------------------------------------------------------------");
-		System.out.println("p:  \t\t" + p);
-		System.out.println("q:  \t\t" + q);
+		for(int i = 0; i < primes.length; i++){
+			String name = i == 0 ? "p" : i == 1 ? "q" : "r" + (i + 1);
+			System.out.println(name + ":  \t\t" + primes[i]);
+		}
 		System.out.println("n:  \t\t" + n);
 		System.out.println("totient:  \t" + totient);
 		System.out.println("e:  \t\t" + e);
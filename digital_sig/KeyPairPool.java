@@ -0,0 +1,214 @@
+package digital_sig;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*	========================================================================================================
+ * 								---- How to use KeyPairPool class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Generating a key pair takes a while (see KeyGen). A KeyPairPool keeps a few key pairs ready, so one can
+ * 			be handed out right away, and makes new ones on a background thread to replace them.
+ *
+ * 		+ Key pairs are returned as an RSAKey array, like Main does: index 0 is the private key, index 1 is the
+ * 			public key.
+ *
+ * 		+ The pool runs its KeyGen prime searchers on its own fixed set of SEARCHER_THREADS daemon threads,
+ * 			not on the common ForkJoinPool, so refills never hold up parallel streams, batch signing or
+ * 			the fuzzer, and never use more than those threads however many pools there are.
+ *
+ *
+ * 	How to create a pool:
+ * 		KeyPairPool pool = new KeyPairPool(4);			// keeps up to 4 ready 1024 bit key pairs
+ * 		KeyPairPool pool2 = new KeyPairPool(2, 2048);	// keeps up to 2 ready 2048 bit key pairs
+ *
+ * 		// The background thread starts filling the pool right away.
+ *
+ *
+ * 	How to get a key pair:
+ * 		RSAKey[] keys = pool.take();
+ * 		RSAKey privateKey = keys[0];
+ * 		RSAKey publicKey = keys[1];
+ *
+ * 		// If the pool is empty (a "miss"), take() waits for the pair being generated in the background, so it
+ * 		// always returns one, and never sooner than a pair of its own would have been done. If the background
+ * 		// thread has died, take() makes the pair itself, and getRefillFailure() says why.
+ *
+ *
+ * 	How to size the pool:
+ * 		+ The pool counts hits (a ready pair was handed out) and misses (the caller had to wait for a new pair),
+ * 			and times every refill. If there are many misses, make the pool bigger.
+ *
+ * 		pool.printStats();
+ * 		long misses = pool.getMisses();
+ *
+ *
+ * 	When done with the pool, close() stops the background thread.
+ *
+ */
+public class KeyPairPool {
+
+	// Threads each pool runs prime searchers on, at most half the cores so the foreground keeps the rest
+	public static final int SEARCHER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	private BlockingQueue<RSAKey[]> pairs;
+	private int keySize;
+	private Thread refillThread;
+	private ExecutorService searchers;
+	private volatile boolean closed = false;
+
+	// Why the background thread stopped making pairs, if it was not close()
+	private volatile Throwable refillFailure;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong refills = new AtomicLong();
+	private AtomicLong refillNanos = new AtomicLong();
+	private AtomicLong maxRefillNanos = new AtomicLong();
+
+	public KeyPairPool(int capacity){
+		this(capacity, KeyGen.DEFAULT_KEY_SIZE);
+	}
+
+	public KeyPairPool(int capacity, int keySize){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Pool capacity must be at least 1");
+
+		this.pairs = new ArrayBlockingQueue<>(capacity);
+		this.keySize = keySize;
+		this.searchers = Executors.newFixedThreadPool(SEARCHER_THREADS, task -> {
+			Thread thread = new Thread(task, "KeyPairPool-search");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		refillThread = new Thread(this::refill, "KeyPairPool-refill");
+		refillThread.setDaemon(true);
+		refillThread.start();
+	}
+
+	/*
+	 * Returns a ready key pair if there is one, otherwise waits for the one the background thread is making.
+	 * If the pool is closed, or the background thread failed (see getRefillFailure()), the pair is generated
+	 * right here instead, on the common ForkJoinPool like a plain KeyGen.
+	 */
+	public RSAKey[] take(){
+		RSAKey[] pair = pairs.poll();
+		if(pair != null){
+			hits.incrementAndGet();
+			return pair;
+		}
+
+		misses.incrementAndGet();
+		try{
+			// Checks now and then whether the background thread stopped, so this can't wait forever
+			while(!closed && refillFailure == null){
+				pair = pairs.poll(100, TimeUnit.MILLISECONDS);
+				if(pair != null)
+					return pair;
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("KeyPairPool.take() was interrupted", e);
+		}
+		return generatePair(false);
+	}
+
+	public void close(){
+		closed = true;
+		refillThread.interrupt();
+		searchers.shutdown();
+	}
+
+	/*
+	 * What stopped the background thread, or null if it is still running (or was stopped by close()). The pool
+	 * makes no more pairs in the background once this is set, and take() generates each pair itself.
+	 */
+	public Throwable getRefillFailure(){
+		return refillFailure;
+	}
+
+	public int getAvailable(){
+		return pairs.size();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public long getRefillCount(){
+		return refills.get();
+	}
+
+	public double getAverageRefillMillis(){
+		long count = refills.get();
+		return count == 0 ? 0 : refillNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxRefillMillis(){
+		return maxRefillNanos.get() / 1e6;
+	}
+
+	public void printStats(){
+		System.out.println("KeyPairPool: " + getAvailable() + " ready, " + getHits() + " hits, " + getMisses()
+				+ " misses, " + getRefillCount() + " refills (avg " + String.format("%.1f", getAverageRefillMillis())
+				+ " ms, max " + String.format("%.1f", getMaxRefillMillis()) + " ms)");
+	}
+
+	private void refill(){
+		while(!closed){
+			long start = System.nanoTime();
+			RSAKey[] pair;
+			try{
+				pair = generatePair(true);
+			}
+			catch(RuntimeException | Error e){
+				// Expected after close() (KeyGen interrupted, or the searchers shut down). Anything else is
+				// recorded, so take() stops waiting for this thread
+				if(!closed){
+					refillFailure = e;
+					System.out.println("Error: KeyPairPool could not generate a key pair in the background: " + e);
+				}
+				return;
+			}
+			long elapsed = System.nanoTime() - start;
+
+			refills.incrementAndGet();
+			refillNanos.addAndGet(elapsed);
+			maxRefillNanos.accumulateAndGet(elapsed, Math::max);
+
+			try{
+				pairs.put(pair);	// waits here while the pool is full
+			}
+			catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Only the background thread uses the pool's searchers. take() generates on the common pool, so it never
+	 * runs into searchers that close() has just shut down.
+	 */
+	private RSAKey[] generatePair(boolean background){
+		KeyGen keygen = new KeyGen(keySize);
+		if(background)
+			keygen.setExecutor(searchers, SEARCHER_THREADS);
+		keygen.generate();
+
+		RSAKey[] pair = new RSAKey[2];
+		pair[0] = keygen.getPrivateKey();
+		pair[1] = keygen.getPublicKey();
+		return pair;
+	}
+}
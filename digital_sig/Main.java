@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import java.util.Scanner;
 
@@ -20,27 +23,47 @@ public class Main {
 		"6. Quit\n\n" +
 		"Please enter the task number [1-6]: ";
 
+	// Number of spare key pairs kept ready, so "Generate new keys" does not have to wait for KeyGen
+	public static final int KEY_POOL_SIZE = 2;
+
+	// Started by the first newKeys()
+	private static KeyPairPool keyPool;
+
+	// Saves new keys one after the other, so the menu doesn't wait on the disk (main() waits for it on quit)
+	private static ExecutorService keySaver = Executors.newSingleThreadExecutor(task -> {
+		Thread thread = new Thread(task, "Main-saveKeys");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 
 	public static void main(String[] args){
+		// With arguments, run one command and exit instead of showing the menu (see CommandLine.java)
+		if(args.length > 0){
+			System.exit(CommandLine.run(args));
+		}
+
 		Scanner scanner = new Scanner(System.in);
 		int input = 0;
 
-		RSAKey[] keys = initKeys();
-
-		RSAKey privateKey = keys[0];
-		RSAKey publicKey = keys[1];
+		// initKeys() is only called once a task needs the keys, so the menu shows right away
+		RSAKey[] keys = null;
 
 		while (input != 6){
 			System.out.println(PROMPT);
 			input = scanner.nextInt();
 			scanner.nextLine();
 
+			if ((input == 1 || input == 2 || input == 5) && keys == null){
+				keys = initKeys();
+			}
+
 			if (input == 1){
-				send(scanner, privateKey);
+				send(scanner, keys[0]);
 			}
 
 			else if (input == 2){
-				receive(scanner, publicKey);
+				receive(scanner, keys[1]);
 			}
 
 			else if (input == 3){
@@ -49,15 +72,26 @@ public class Main {
 
 			else if (input == 4){
 				keys = changeKeys();
-				privateKey = keys[0];
-				publicKey = keys[1];
 			}
 
 			else if (input == 5){
-				showKeys(privateKey, publicKey);
+				showKeys(keys[0], keys[1]);
 			}
 
 		}
+
+		if(keyPool != null){
+			keyPool.close();
+		}
+
+		// don't quit halfway through saving keys
+		keySaver.shutdown();
+		try{
+			keySaver.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
 		System.exit(0);
 	}
 
@@ -68,17 +102,13 @@ public class Main {
 
 		// If on key does not exist
 		if(privateKey == null || publicKey == null){
-			// make new keys
-			KeyGen keygen = new KeyGen();
-			keygen.generate();
-
-			// save the keys
-			keygen.getPrivateKey().saveToFile("privkey.rsa");
-			keygen.getPublicKey().saveToFile("pubkey.rsa");
+			// take new keys from the pool (or make them if there is no pool), and save them
+			RSAKey[] keys = newKeys();
+			saveKeys(keys);
 
 			// assign the keys
-			privateKey = keygen.getPrivateKey();
-			publicKey = keygen.getPublicKey();
+			privateKey = keys[0];
+			publicKey = keys[1];
 		}
 
 		// return the kyes as an array
@@ -128,21 +158,15 @@ public class Main {
 			return;
 		}
 
-		boolean valid = DigitalSignature.verifySignature(signedMessage.getName(), publicKey);
-		if(valid){
+		// Check the signature and read the message in one pass over the file
+		VerifiedMessage received = DigitalSignature.verifyAndExtract(signedMessage.getName(), publicKey);
+		if(received.isValid()){
 			System.out.println("It's Valid! Here's the message: ");
 			System.out.println();
 
-			byte[] messageBytes = DigitalSignature.extractMessageFromSignedFile(signedMessage.getName());
-			if(messageBytes == null){
-				System.out.println("Could not extract message");
-			}
-			else{
-				String messageString = new String(messageBytes);
-				System.out.println(messageString);
-				System.out.println();
-			}
-
+			String messageString = new String(received.getMessageBytes());
+			System.out.println(messageString);
+			System.out.println();
 		}
 		else{
 			System.out.println("It's not valid :(");
@@ -155,24 +179,40 @@ public class Main {
 	}
 
 	public static RSAKey[] changeKeys(){
-		KeyGen keygen = new KeyGen();
-		keygen.generate();
+		RSAKey[] keys = newKeys();
 
 		// save the keys
-		keygen.getPrivateKey().saveToFile("privkey.rsa");
-		keygen.getPublicKey().saveToFile("pubkey.rsa");
-
-		// assign the keys
-		RSAKey privateKey = keygen.getPrivateKey();
-		RSAKey publicKey = keygen.getPublicKey();
+		saveKeys(keys);
 
 		// return the keys as an array
+		return keys;
+	}
+
+	// take a ready pair from the pool. The first time, make the pair here and only then start the pool, so
+	// no key pairs are made in the background for users who never ask for new keys
+	private static RSAKey[] newKeys(){
+		if(keyPool != null){
+			return keyPool.take();
+		}
+
+		KeyGen keygen = new KeyGen();
+		keygen.generate();
+		keyPool = new KeyPairPool(KEY_POOL_SIZE);
+
 		RSAKey[] keys = new RSAKey[2];
-		keys[0] = privateKey;
-		keys[1] = publicKey;
+		keys[0] = keygen.getPrivateKey();
+		keys[1] = keygen.getPublicKey();
 		return keys;
 	}
 
+	// saves on the keySaver thread, in the order keys were made, so the last keys made are the ones on disk
+	private static void saveKeys(RSAKey[] keys){
+		keySaver.execute(() -> {
+			keys[0].saveToFile("privkey.rsa");
+			keys[1].saveToFile("pubkey.rsa");
+		});
+	}
+
 	public static void showKeys(RSAKey privateKey, RSAKey publicKey){
 		System.out.println("e: " + publicKey.getExponent());
 		System.out.println("d: " + privateKey.getExponent());
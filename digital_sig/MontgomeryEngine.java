@@ -0,0 +1,311 @@
+package digital_sig;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/*	========================================================================================================
+ * 								---- How to use MontgomeryEngine class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A MontgomeryEngine computes base^exponent mod modulus for one fixed (odd) modulus and one fixed exponent,
+ * 			again and again with different bases. That is exactly what an RSAKey does when it signs or verifies
+ * 			many messages.
+ *
+ * 		+ BigInteger.modPow() redoes all of its modulus dependent setup on every call, and allocates many
+ * 			temporary BigIntegers. The engine does the setup once:
+ * 			- the Montgomery constants (-n^-1 mod 2^64 and R^2 mod n, with R = 2^(64 * limbs))
+ * 			- the sliding window recoding of the exponent (which window values to multiply in, and how many
+ * 				squarings come before each)
+ *
+ * 		+ Numbers are kept as arrays of 64 bit limbs (unsigned longs, least significant limb first), and each
+ * 			thread gets its own scratch arrays, which are reused. After the first call on a thread, the
+ * 			exponentiation itself allocates nothing. Only turning the base and result into and out of BigIntegers
+ * 			allocates.
+ *
+ * 		+ Engines are safe to share between threads.
+ *
+ * 		+ The engine is SLOWER than BigInteger.modPow() on HotSpot, which runs modPow()'s inner loops as CPU
+ * 			specific intrinsics. Measured on one core, a 4096 bit CRT signature took about 3.5 times as long
+ * 			through engines as with modPow(). So nothing uses an engine by default. It is only worth it where
+ * 			allocation and GC pressure matter more than speed, or on JVMs without those intrinsics, and only
+ * 			after measuring (the bench module has RSAKeyBenchmark for that).
+ *
+ *
+ * 	How to use an engine directly:
+ * 		MontgomeryEngine engine = new MontgomeryEngine(modulus, exponent);
+ * 		BigInteger result = engine.modPow(base);	// same as base.modPow(exponent, modulus)
+ *
+ *
+ * 	Normally you don't create engines yourself. Call RSAKey.precomputeExponentiation() and the key will build
+ * 	and use them (one per prime for CRT private keys), keeping in mind the caution above.
+ *
+ */
+public class MontgomeryEngine {
+
+	private BigInteger modulus;
+	private BigInteger exponent;
+
+	private int limbs;
+	private long[] n;
+	private long[] r2;		// R^2 mod n, turns a number into Montgomery form
+	private long nPrime;	// -n^-1 mod 2^64
+
+	// Exponent recoding: start with table[windows[0]], then for each later step square squarings[i] times and
+	// multiply by table[windows[i]]. Finish with finalSquarings squarings. table[j] holds base^(2j + 1).
+	private int windowBits;
+	private int[] squarings;
+	private int[] windows;
+	private int finalSquarings;
+
+	private ThreadLocal<Scratch> scratch;
+
+	public MontgomeryEngine(BigInteger modulus, BigInteger exponent){
+		if(modulus.signum() <= 0 || !modulus.testBit(0) || modulus.bitLength() < 2)
+			throw new IllegalArgumentException("Montgomery modulus must be odd and greater than 1");
+		if(exponent.signum() <= 0)
+			throw new IllegalArgumentException("Exponent must be positive");
+
+		this.modulus = modulus;
+		this.exponent = exponent;
+
+		limbs = (modulus.bitLength() + 63) / 64;
+		n = toLimbs(modulus, limbs);
+		r2 = toLimbs(BigInteger.ONE.shiftLeft(128 * limbs).mod(modulus), limbs);
+
+		// Newton iteration for n^-1 mod 2^64 (n * n = 1 mod 8, and each step doubles the correct bits)
+		long inverse = n[0];
+		for(int i = 0; i < 5; i++){
+			inverse *= 2 - n[0] * inverse;
+		}
+		nPrime = -inverse;
+
+		recodeExponent();
+
+		int tableSize = 1 << (windowBits - 1);
+		scratch = ThreadLocal.withInitial(() -> new Scratch(limbs, tableSize));
+	}
+
+	public BigInteger getModulus(){
+		return modulus;
+	}
+
+	public BigInteger getExponent(){
+		return exponent;
+	}
+
+	public BigInteger modPow(BigInteger base){
+		if(base.signum() < 0 || base.compareTo(modulus) >= 0)
+			base = base.mod(modulus);
+
+		Scratch s = scratch.get();
+		toLimbs(base, s.result);
+		modPow(s.result, s.result, s);
+		return fromLimbs(s.result, s.bytes);
+	}
+
+	/*
+	 * result = base^exponent mod n, with both given as limb arrays (base < n). result may be the same array as
+	 * base.
+	 */
+	private void modPow(long[] base, long[] result, Scratch s){
+		long[][] table = s.table;
+
+		// table[0] = base * R mod n, square = base^2 * R mod n, table[j] = table[j - 1] * square
+		montgomeryMultiply(base, r2, table[0], s.t);
+		montgomeryMultiply(table[0], table[0], s.square, s.t);
+		for(int j = 1; j < table.length; j++){
+			montgomeryMultiply(table[j - 1], s.square, table[j], s.t);
+		}
+
+		long[] accumulator = s.accumulator;
+		System.arraycopy(table[windows[0]], 0, accumulator, 0, limbs);
+
+		for(int i = 1; i < windows.length; i++){
+			for(int k = 0; k < squarings[i]; k++){
+				montgomeryMultiply(accumulator, accumulator, accumulator, s.t);
+			}
+			montgomeryMultiply(accumulator, table[windows[i]], accumulator, s.t);
+		}
+		for(int k = 0; k < finalSquarings; k++){
+			montgomeryMultiply(accumulator, accumulator, accumulator, s.t);
+		}
+
+		// Out of Montgomery form: multiply by plain 1
+		Arrays.fill(s.one, 0);
+		s.one[0] = 1;
+		montgomeryMultiply(accumulator, s.one, result, s.t);
+	}
+
+	/*
+	 * out = a * b * R^-1 mod n (CIOS method). t is scratch space of limbs + 2 longs. out may be the same array
+	 * as a or b.
+	 *
+	 * Limbs are unsigned 64 bit values. A limb product plus two limbs always fits in 128 bits (hi:lo), so the
+	 * high word never overflows. Carries out of the low word are found with unsigned compares.
+	 */
+	private void montgomeryMultiply(long[] a, long[] b, long[] out, long[] t){
+		int k = limbs;
+		Arrays.fill(t, 0);
+
+		for(int i = 0; i < k; i++){
+			long ai = a[i];
+			long carry = 0;
+			for(int j = 0; j < k; j++){
+				long lo = ai * b[j];
+				long hi = multiplyHighUnsigned(ai, b[j]);
+				long sum = t[j] + lo;
+				hi += Long.compareUnsigned(sum, lo) < 0 ? 1 : 0;
+				long sum2 = sum + carry;
+				hi += Long.compareUnsigned(sum2, carry) < 0 ? 1 : 0;
+				t[j] = sum2;
+				carry = hi;
+			}
+			long sum = t[k] + carry;
+			t[k + 1] = Long.compareUnsigned(sum, carry) < 0 ? 1 : 0;
+			t[k] = sum;
+
+			long m = t[0] * nPrime;
+			long lo = m * n[0];
+			long hi = multiplyHighUnsigned(m, n[0]);
+			sum = t[0] + lo;	// low word is 0 by the choice of m
+			carry = hi + (Long.compareUnsigned(sum, lo) < 0 ? 1 : 0);
+			for(int j = 1; j < k; j++){
+				lo = m * n[j];
+				hi = multiplyHighUnsigned(m, n[j]);
+				sum = t[j] + lo;
+				hi += Long.compareUnsigned(sum, lo) < 0 ? 1 : 0;
+				long sum2 = sum + carry;
+				hi += Long.compareUnsigned(sum2, carry) < 0 ? 1 : 0;
+				t[j - 1] = sum2;
+				carry = hi;
+			}
+			sum = t[k] + carry;
+			t[k - 1] = sum;
+			t[k] = t[k + 1] + (Long.compareUnsigned(sum, carry) < 0 ? 1 : 0);
+		}
+
+		// t < 2n here, so at most one subtraction is needed
+		if(t[k] != 0 || !lessThanModulus(t)){
+			long borrow = 0;
+			for(int j = 0; j < k; j++){
+				long x = t[j];
+				long y = n[j];
+				long difference = x - y - borrow;
+				borrow = ((~x & y) | (~(x ^ y) & difference)) >>> 63;
+				out[j] = difference;
+			}
+		}
+		else{
+			System.arraycopy(t, 0, out, 0, k);
+		}
+	}
+
+	private boolean lessThanModulus(long[] t){
+		for(int j = limbs - 1; j >= 0; j--){
+			if(t[j] != n[j])
+				return Long.compareUnsigned(t[j], n[j]) < 0;
+		}
+		return false;
+	}
+
+	private static long multiplyHighUnsigned(long x, long y){
+		return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	/*
+	 * Left to right sliding window recoding of the exponent. Windows are odd values of up to windowBits bits.
+	 */
+	private void recodeExponent(){
+		int bits = exponent.bitLength();
+		windowBits = bits > 671 ? 6 : bits > 239 ? 5 : bits > 79 ? 4 : bits > 23 ? 3 : bits > 1 ? 2 : 1;
+
+		int[] squaringList = new int[bits];
+		int[] windowList = new int[bits];
+		int steps = 0;
+		int pendingSquarings = 0;
+
+		int i = bits - 1;
+		while(i >= 0){
+			if(!exponent.testBit(i)){
+				pendingSquarings++;
+				i--;
+				continue;
+			}
+
+			// Longest window starting at bit i, ending on a 1 bit
+			int low = Math.max(i - windowBits + 1, 0);
+			while(!exponent.testBit(low)){
+				low++;
+			}
+
+			int value = 0;
+			for(int bit = i; bit >= low; bit--){
+				value = (value << 1) | (exponent.testBit(bit) ? 1 : 0);
+			}
+
+			int width = i - low + 1;
+			squaringList[steps] = steps == 0 ? 0 : pendingSquarings + width;
+			windowList[steps] = (value - 1) / 2;
+			steps++;
+
+			pendingSquarings = 0;
+			i = low - 1;
+		}
+
+		squarings = Arrays.copyOf(squaringList, steps);
+		windows = Arrays.copyOf(windowList, steps);
+		finalSquarings = pendingSquarings;
+	}
+
+	private static long[] toLimbs(BigInteger value, int limbs){
+		long[] result = new long[limbs];
+		toLimbs(value, result);
+		return result;
+	}
+
+	private static void toLimbs(BigInteger value, long[] result){
+		Arrays.fill(result, 0);
+		byte[] bytes = value.toByteArray();
+		for(int b = 0; b < bytes.length; b++){
+			int fromLow = bytes.length - 1 - b;		// byte index counted from the least significant end
+			int limb = fromLow / 8;
+			if(limb < result.length)
+				result[limb] |= (bytes[b] & 0xFFL) << (8 * (fromLow % 8));
+		}
+	}
+
+	private static BigInteger fromLimbs(long[] value, byte[] bytes){
+		int length = bytes.length;
+		for(int limb = 0; limb < value.length; limb++){
+			for(int b = 0; b < 8; b++){
+				bytes[length - 1 - (8 * limb + b)] = (byte)(value[limb] >>> (8 * b));
+			}
+		}
+		return new BigInteger(1, bytes);
+	}
+
+
+	/*
+	 * Per thread working space, so modPow() can be called from several threads at once.
+	 */
+	private static class Scratch {
+		long[][] table;
+		long[] square;
+		long[] accumulator;
+		long[] result;
+		long[] one;
+		long[] t;
+		byte[] bytes;
+
+		Scratch(int limbs, int tableSize){
+			table = new long[tableSize][limbs];
+			square = new long[limbs];
+			accumulator = new long[limbs];
+			result = new long[limbs];
+			one = new long[limbs];
+			t = new long[limbs + 2];
+			bytes = new byte[8 * limbs];
+		}
+	}
+}
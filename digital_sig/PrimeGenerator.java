@@ -0,0 +1,208 @@
+package digital_sig;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/*	========================================================================================================
+ * 								---- How to use PrimeGenerator class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A PrimeGenerator finds random primes for RSA keys. KeyGen uses one for you.
+ *
+ * 		+ It draws one random odd start and looks for a prime among the numbers after it, instead of drawing a
+ * 			new random number for every try. The numbers in that window that have a factor below SIEVE_LIMIT are
+ * 			crossed out all at once (a sieve), which removes about 9 in 10 of them for the cost of one division
+ * 			per small prime. Only the rest get the expensive Miller-Rabin test.
+ *
+ * 		+ The number of Miller-Rabin rounds depends on the size of the prime, from the standard table for
+ * 			random candidates (HAC table 4.4, as used by OpenSSL): the chance that a composite gets through is
+ * 			below 2^-80 at any size, and bigger candidates need fewer rounds. See millerRabinRounds().
+ *
+ * 		+ The top two bits of every prime are set, so the product of two primes of b bits always has exactly
+ * 			2b bits.
+ *
+ * 		+ Primes can be 64 to 8192 bits, which covers 1024 to 8192 bit keys with any allowed number of primes.
+ *
+ *
+ * 	How to find a prime:
+ * 		PrimeGenerator generator = new PrimeGenerator(new SecureRandom());
+ * 		BigInteger p = generator.nextPrime(1536);
+ *
+ * 		// For RSA, p - 1 must have no factor in common with the public exponent e:
+ * 		BigInteger q = generator.nextPrime(1536, KeyGen.DEFAULT_PUBLIC_EXPONENT);
+ *
+ * 		// One generator may be used by several threads at once, as long as its Random can.
+ *
+ */
+public class PrimeGenerator {
+
+	public static final int MIN_BITS = 64;
+	public static final int MAX_BITS = 8192;
+
+	// Candidates with a factor below this are sieved out before Miller-Rabin
+	public static final int SIEVE_LIMIT = 1 << 16;
+
+	// The odd primes below SIEVE_LIMIT
+	private static final int[] SMALL_PRIMES = smallPrimes(SIEVE_LIMIT);
+
+	private Random rng;
+
+	public PrimeGenerator(Random rng){
+		this.rng = rng;
+	}
+
+	/*
+	 * A random prime of exactly bits bits.
+	 */
+	public BigInteger nextPrime(int bits){
+		return nextPrime(bits, BigInteger.ONE);
+	}
+
+	/*
+	 * A random prime p of exactly bits bits with gcd(exponent, p - 1) = 1.
+	 */
+	public BigInteger nextPrime(int bits, BigInteger exponent){
+		return nextPrime(bits, exponent, () -> false);
+	}
+
+	/*
+	 * Like nextPrime(bits, exponent), but gives up and returns null once stop returns true. stop is asked before
+	 * each Miller-Rabin test, so a search nobody waits for anymore ends within one test.
+	 */
+	public BigInteger nextPrime(int bits, BigInteger exponent, BooleanSupplier stop){
+		if(bits < MIN_BITS || bits > MAX_BITS)
+			throw new IllegalArgumentException("Primes must be " + MIN_BITS + " to " + MAX_BITS + " bits");
+
+		int rounds = millerRabinRounds(bits);
+
+		// Enough odd numbers that a window holds about 10 primes, so a window without any is rare
+		int window = 4 * bits;
+
+		while(true){
+			BigInteger start = new BigInteger(bits, rng).setBit(bits - 1).setBit(bits - 2).setBit(0);
+			BitSet composite = sieve(start, window);
+
+			// Candidate j of the window is start + 2j
+			for(int j = composite.nextClearBit(0); j < window; j = composite.nextClearBit(j + 1)){
+				BigInteger candidate = start.add(BigInteger.valueOf(2L * j));
+				if(candidate.bitLength() != bits)
+					break;
+				if(!exponent.gcd(candidate.subtract(BigInteger.ONE)).equals(BigInteger.ONE))
+					continue;
+				if(stop.getAsBoolean())
+					return null;
+				if(passesMillerRabin(candidate, rounds, rng))
+					return candidate;
+			}
+		}
+	}
+
+	/*
+	 * How many Miller-Rabin rounds (with random bases) a random odd candidate of bits bits needs for a composite
+	 * to get through with probability below 2^-80.
+	 */
+	public static int millerRabinRounds(int bits){
+		if(bits >= 1300)
+			return 2;
+		if(bits >= 850)
+			return 3;
+		if(bits >= 650)
+			return 4;
+		if(bits >= 550)
+			return 5;
+		if(bits >= 450)
+			return 6;
+		if(bits >= 400)
+			return 7;
+		if(bits >= 350)
+			return 8;
+		if(bits >= 300)
+			return 9;
+		if(bits >= 250)
+			return 12;
+		if(bits >= 200)
+			return 15;
+		if(bits >= 150)
+			return 18;
+		return 27;
+	}
+
+	/*
+	 * Marks bit j if start + 2j (for j below window) has a factor in SMALL_PRIMES. start must be odd, and
+	 * bigger than SIEVE_LIMIT so that no small prime crosses out itself.
+	 */
+	private static BitSet sieve(BigInteger start, int window){
+		BitSet composite = new BitSet(window);
+		for(int prime : SMALL_PRIMES){
+			// start + 2j = 0 (mod prime) when j = -start / 2, and 1/2 = (prime + 1) / 2 (mod prime)
+			int residue = start.mod(BigInteger.valueOf(prime)).intValue();
+			int first = (int)((long)(prime - residue) * ((prime + 1) / 2) % prime);
+			for(int j = first; j < window; j += prime){
+				composite.set(j);
+			}
+		}
+		return composite;
+	}
+
+	/*
+	 * True if n (odd and above 3) passes rounds rounds of Miller-Rabin with random bases: a composite passes
+	 * one round with probability at most 1/4, and a prime always passes.
+	 */
+	static boolean passesMillerRabin(BigInteger n, int rounds, Random rng){
+		BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+		int twos = nMinusOne.getLowestSetBit();
+		BigInteger odd = nMinusOne.shiftRight(twos);
+
+		for(int round = 0; round < rounds; round++){
+			// A base in [2, n - 2]: anything shorter than n and at least 2 will do
+			BigInteger base = new BigInteger(n.bitLength() - 1, rng);
+			if(base.compareTo(BigInteger.TWO) < 0)
+				base = BigInteger.TWO;
+
+			BigInteger x = base.modPow(odd, n);
+			if(x.equals(BigInteger.ONE) || x.equals(nMinusOne))
+				continue;
+
+			boolean passed = false;
+			for(int i = 1; i < twos && !passed; i++){
+				x = x.multiply(x).mod(n);
+				if(x.equals(BigInteger.ONE))
+					return false;
+				passed = x.equals(nMinusOne);
+			}
+			if(!passed)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The odd primes below limit (sieve of Eratosthenes).
+	 */
+	private static int[] smallPrimes(int limit){
+		BitSet composite = new BitSet(limit);
+		for(int i = 3; i * i < limit; i += 2){
+			if(!composite.get(i)){
+				for(int j = i * i; j < limit; j += 2 * i){
+					composite.set(j);
+				}
+			}
+		}
+
+		int count = 0;
+		for(int i = 3; i < limit; i += 2){
+			if(!composite.get(i))
+				count++;
+		}
+		int[] primes = new int[count];
+		count = 0;
+		for(int i = 3; i < limit; i += 2){
+			if(!composite.get(i))
+				primes[count++] = i;
+		}
+		return primes;
+	}
+}
@@ -1,5 +1,6 @@
 package digital_sig;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -7,6 +8,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /*	========================================================================================================
  * 								---- How to use RSAKey class ----
@@ -58,6 +64,59 @@ import java.math.BigInteger;
  * 																			// the same.
  * 
  * 
+ * 	Private keys and the Chinese Remainder Theorem (CRT):
+ * 		+ A private key created by KeyGen also remembers the primes p and q that make up its modulus, along with
+ * 			dP = d mod (p-1), dQ = d mod (q-1) and qInv = q^-1 mod p.
+ * 
+ * 		+ When these are present, encrypt() does two half-size exponentiations (mod p and mod q) and recombines
+ * 			them, instead of one full-size exponentiation with d. The result is the same, just 3-4x faster.
+ * 
+ * 		+ The CRT values are saved and loaded along with the key. Key files without them still load fine and
+ * 			simply use the plain exponentiation.
+ * 
+ * 		// To create a CRT private key directly from its primes:
+ * 		RSAKey privateKey = new RSAKey(d, n, p, q);
+ * 		boolean crt = privateKey.hasCrtParameters();	// true
+ * 
+ * 
+ * 	Multi-prime keys:
+ * 		+ A modulus can also be the product of 3 or more primes (see KeyGen for how to make one). Each extra
+ * 			prime r comes with d mod (r-1) and the inverse, mod r, of the product of the primes before it, the
+ * 			same way PKCS #1 does it. encrypt() then does one exponentiation per prime and recombines them all.
+ * 
+ * 		+ Smaller primes mean cheaper exponentiations. Measured on one core, a 4096 bit key with 4 primes signed
+ * 			about 3 times as fast as one with 2 primes, and a 3072 bit key with 3 primes about 2 times as fast.
+ * 			The public key, and so verifying, is the same either way.
+ * 
+ * 		// To create a multi-prime private key directly from its primes:
+ * 		RSAKey privateKey = new RSAKey(d, n, new BigInteger[]{p, q, r});
+ * 		int primes = privateKey.getPrimeCount();	// 3
+ * 
+ * 		+ The extra primes are saved after the two prime CRT values, so key files with 2 primes don't change.
+ * 			loadFromFile() checks that the primes multiply to the modulus. Older versions ignore the extra
+ * 			primes and would sign wrongly, so don't give them multi-prime key files.
+ * 
+ * 
+ * 	Precomputed exponentiation (usually slower, not used by default):
+ * 		+ precomputeExponentiation() builds a MontgomeryEngine for the key (one per prime for CRT private keys).
+ * 			The modulus dependent setup and the exponent recoding are then done once, and each encrypt() runs
+ * 			without allocating temporary numbers.
+ * 
+ * 		+ It is SLOWER on HotSpot, where modPow() uses CPU intrinsics: measured on one core, signing took about
+ * 			3.5 times as long with the engines (34 ms instead of 9.6 ms for a 4096 bit key), and verifying
+ * 			with a 2048 bit key about 1.6 times as long. Nothing in this project calls it; only use it after
+ * 			measuring that it helps, for example on a JVM without those intrinsics or where garbage matters
+ * 			more than speed.
+ * 
+ * 		privateKey.precomputeExponentiation();
+ * 		BigInteger signature = privateKey.encrypt(digest);	// same result as before, using the engines
+ * 
+ * 
+ * 	Key fingerprints:
+ * 		+ getFingerprint() returns the SHA-256 hash of the modulus. Both keys of a pair share the modulus, so
+ * 			they have the same fingerprint. .signed files record the fingerprint of the key that signed them.
+ * 
+ * 
  * 	How to save a key (or key pair) to file(s):
  * 		boolean success1 = publicKey.saveToFile("mypublickey.rsa");
  * 		boolean success2 = privateKey.saveToFile("myprivatekey.rsa");	// You cannot save both keys to the same file
@@ -72,6 +131,11 @@ import java.math.BigInteger;
  * 																		// returned.
  * 
  * 
+ * 	Many keys in one file:
+ * 		+ Programs that trust many signers can keep all their keys in one RSAKeyStore file instead of one file
+ * 			per key, and look them up by fingerprint (see RSAKeyStore.java).
+ * 
+ * 
  * 	See the KeyGen.java main() method for more examples on how to use the RSAKey class.
  * 
  */
@@ -80,13 +144,132 @@ public class RSAKey {
 	private BigInteger exponent;
 	private BigInteger modulus;
 	
+	// CRT parameters, only set for private keys that know their primes
+	private BigInteger p;
+	private BigInteger q;
+	private BigInteger dP;
+	private BigInteger dQ;
+	private BigInteger qInv;
+	
+	// Extra primes of multi-prime keys, each with its CRT exponent and coefficient (empty for 2 primes)
+	private BigInteger[] otherPrimes = new BigInteger[0];
+	private BigInteger[] otherExponents = new BigInteger[0];
+	private BigInteger[] otherCoefficients = new BigInteger[0];
+	
+	private byte[] fingerprint;
+	
+	// Optional precomputed exponentiation (see precomputeExponentiation())
+	private volatile MontgomeryEngine engine;
+	private volatile MontgomeryEngine engineP;
+	private volatile MontgomeryEngine engineQ;
+	private volatile MontgomeryEngine[] otherEngines;
+	
 	public RSAKey(BigInteger exponent, BigInteger modulus){
 		this.exponent = exponent;
 		this.modulus = modulus;
 	}
 	
+	public RSAKey(BigInteger exponent, BigInteger modulus, BigInteger p, BigInteger q){
+		this(exponent, modulus, p, q,
+				exponent.mod(p.subtract(BigInteger.ONE)),
+				exponent.mod(q.subtract(BigInteger.ONE)),
+				q.modInverse(p));
+	}
+	
+	/*
+	 * A CRT private key whose modulus is the product of primes (2 or more, all different).
+	 */
+	public RSAKey(BigInteger exponent, BigInteger modulus, BigInteger[] primes){
+		this(exponent, modulus, requireTwoPrimes(primes)[0], primes[1]);
+		
+		int others = primes.length - 2;
+		otherPrimes = Arrays.copyOfRange(primes, 2, primes.length);
+		otherExponents = new BigInteger[others];
+		otherCoefficients = new BigInteger[others];
+		
+		BigInteger product = p.multiply(q);
+		for(int i = 0; i < others; i++){
+			BigInteger r = otherPrimes[i];
+			otherExponents[i] = exponent.mod(r.subtract(BigInteger.ONE));
+			otherCoefficients[i] = product.modInverse(r);
+			product = product.multiply(r);
+		}
+	}
+	
+	private static BigInteger[] requireTwoPrimes(BigInteger[] primes){
+		if(primes.length < 2)
+			throw new IllegalArgumentException("Need at least 2 primes");
+		return primes;
+	}
+	
+	private RSAKey(BigInteger exponent, BigInteger modulus, BigInteger p, BigInteger q,
+			BigInteger dP, BigInteger dQ, BigInteger qInv){
+		this.exponent = exponent;
+		this.modulus = modulus;
+		this.p = p;
+		this.q = q;
+		this.dP = dP;
+		this.dQ = dQ;
+		this.qInv = qInv;
+	}
+	
 	public BigInteger encrypt(BigInteger message){
-		return message.modPow(exponent, modulus);
+		if(!hasCrtParameters()){
+			MontgomeryEngine engine = this.engine;
+			if(engine != null)
+				return engine.modPow(message);
+			return message.modPow(exponent, modulus);
+		}
+		
+		MontgomeryEngine engineP = this.engineP;
+		MontgomeryEngine engineQ = this.engineQ;
+		
+		// Garner's recombination: m = m2 + q * (qInv * (m1 - m2) mod p)
+		BigInteger m1 = engineP != null ? engineP.modPow(message.mod(p)) : message.mod(p).modPow(dP, p);
+		BigInteger m2 = engineQ != null ? engineQ.modPow(message.mod(q)) : message.mod(q).modPow(dQ, q);
+		BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+		BigInteger m = m2.add(h.multiply(q));
+		
+		// Then fold in each extra prime r: m = m + R * (t * (mr - m) mod r), R being the product of the primes so far
+		MontgomeryEngine[] otherEngines = this.otherEngines;
+		BigInteger product = p.multiply(q);
+		for(int i = 0; i < otherPrimes.length; i++){
+			BigInteger r = otherPrimes[i];
+			BigInteger mr = otherEngines != null ? otherEngines[i].modPow(message.mod(r))
+					: message.mod(r).modPow(otherExponents[i], r);
+			h = otherCoefficients[i].multiply(mr.subtract(m)).mod(r);
+			m = m.add(h.multiply(product));
+			product = product.multiply(r);
+		}
+		return m;
+	}
+	
+	public boolean hasCrtParameters(){
+		return p != null;
+	}
+	
+	/*
+	 * Builds the Montgomery engines used by encrypt() from now on. This makes encrypt() slower on HotSpot (see
+	 * the class comment), so only call it where measurements show it helps. Even moduli cannot use
+	 * Montgomery arithmetic, and keep using BigInteger.modPow().
+	 */
+	public void precomputeExponentiation(){
+		if(hasCrtParameters()){
+			MontgomeryEngine[] engines = new MontgomeryEngine[otherPrimes.length];
+			for(int i = 0; i < engines.length; i++){
+				engines[i] = new MontgomeryEngine(otherPrimes[i], otherExponents[i]);
+			}
+			otherEngines = engines;
+			engineP = new MontgomeryEngine(p, dP);
+			engineQ = new MontgomeryEngine(q, dQ);
+		}
+		else if(modulus.testBit(0) && modulus.bitLength() > 1 && exponent.signum() > 0){
+			engine = new MontgomeryEngine(modulus, exponent);
+		}
+	}
+	
+	public boolean hasPrecomputedExponentiation(){
+		return engine != null || engineP != null;
 	}
 	
 	public BigInteger getExponent(){
@@ -97,12 +280,110 @@ public class RSAKey {
 		return modulus;
 	}
 	
+	public byte[] getFingerprint(){
+		if(fingerprint == null){
+			try{
+				fingerprint = MessageDigest.getInstance("SHA-256").digest(modulus.toByteArray());
+			}
+			catch(NoSuchAlgorithmException e){
+				// Every Java platform is required to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+		return fingerprint.clone();
+	}
+	
+	public BigInteger getP(){
+		return p;
+	}
+	
+	public BigInteger getQ(){
+		return q;
+	}
+	
+	/*
+	 * The number of primes in the modulus, or 0 if this key does not know them.
+	 */
+	public int getPrimeCount(){
+		return hasCrtParameters() ? 2 + otherPrimes.length : 0;
+	}
+	
+	/*
+	 * All the primes of the modulus (p, q, then any others), or null if this key does not know them.
+	 */
+	public BigInteger[] getPrimes(){
+		if(!hasCrtParameters())
+			return null;
+		
+		BigInteger[] primes = new BigInteger[getPrimeCount()];
+		primes[0] = p;
+		primes[1] = q;
+		System.arraycopy(otherPrimes, 0, primes, 2, otherPrimes.length);
+		return primes;
+	}
+	
+	/*
+	 * The numbers that make up this key, in the order they are saved: exponent and modulus, then p, q, dP, dQ
+	 * and qInv for CRT private keys, then a (prime, exponent, coefficient) triple for each extra prime of a
+	 * multi-prime key. fromNumbers() turns them back into a key.
+	 */
+	BigInteger[] getNumbers(){
+		if(!hasCrtParameters())
+			return new BigInteger[]{exponent, modulus};
+		
+		BigInteger[] numbers = new BigInteger[7 + 3 * otherPrimes.length];
+		numbers[0] = exponent;
+		numbers[1] = modulus;
+		numbers[2] = p;
+		numbers[3] = q;
+		numbers[4] = dP;
+		numbers[5] = dQ;
+		numbers[6] = qInv;
+		for(int i = 0; i < otherPrimes.length; i++){
+			numbers[7 + 3 * i] = otherPrimes[i];
+			numbers[8 + 3 * i] = otherExponents[i];
+			numbers[9 + 3 * i] = otherCoefficients[i];
+		}
+		return numbers;
+	}
+	
+	/*
+	 * Returns null if numbers does not have a length getNumbers() can return, or if the primes don't
+	 * multiply to the modulus.
+	 */
+	static RSAKey fromNumbers(BigInteger[] numbers){
+		if(numbers.length == 2)
+			return new RSAKey(numbers[0], numbers[1]);
+		if(numbers.length < 7 || (numbers.length - 7) % 3 != 0)
+			return null;
+		
+		RSAKey key = new RSAKey(numbers[0], numbers[1], numbers[2], numbers[3], numbers[4], numbers[5], numbers[6]);
+		int others = (numbers.length - 7) / 3;
+		key.otherPrimes = new BigInteger[others];
+		key.otherExponents = new BigInteger[others];
+		key.otherCoefficients = new BigInteger[others];
+		for(int i = 0; i < others; i++){
+			key.otherPrimes[i] = numbers[7 + 3 * i];
+			key.otherExponents[i] = numbers[8 + 3 * i];
+			key.otherCoefficients[i] = numbers[9 + 3 * i];
+		}
+		
+		// A CRT key whose primes aren't those of the modulus would sign wrongly without any error
+		BigInteger product = BigInteger.ONE;
+		for(BigInteger prime : key.getPrimes()){
+			product = product.multiply(prime);
+		}
+		return product.equals(key.modulus) ? key : null;
+	}
+	
 	public boolean saveToFile(String filename){
 		try{
 			ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream(filename) );
 			
-			out.writeObject(exponent);
-			out.writeObject(modulus);
+			// exponent and modulus, then the CRT values and extra primes if there are any (see getNumbers())
+			for(BigInteger number : getNumbers()){
+				out.writeObject(number);
+			}
 			
 			out.close();
 		}
@@ -119,14 +400,20 @@ public class RSAKey {
 	}
 	
 	public static RSAKey loadFromFile(String filename){
-		BigInteger exponent = BigInteger.ZERO;
-		BigInteger modulus = BigInteger.ZERO;
+		List<BigInteger> numbers = new ArrayList<>();
 		
 		try{
 			ObjectInputStream in = new ObjectInputStream( new FileInputStream(filename) );
 			
-			exponent = (BigInteger)in.readObject();
-			modulus = (BigInteger)in.readObject();
+			// exponent and modulus, then (for CRT private keys) the CRT values and any extra primes
+			try{
+				while(true){
+					numbers.add((BigInteger)in.readObject());
+				}
+			}
+			catch(EOFException e){
+				// End of the key
+			}
 			
 			in.close();
 		}
@@ -138,11 +425,14 @@ public class RSAKey {
 			System.out.println("Error: RSAKey.loadFromFile(" + filename + ") could not load");
 			return null;
 		}
-		catch(ClassNotFoundException e){
+		catch(ClassNotFoundException | ClassCastException e){
 			System.out.println("Error: RSAKey.loadFromFile(" + filename + ") could not load");
 			return null;
 		}
 		
-		return new RSAKey(exponent, modulus);
+		RSAKey key = fromNumbers(numbers.toArray(new BigInteger[0]));
+		if(key == null)
+			System.out.println("Error: RSAKey.loadFromFile(" + filename + ") incomplete or wrong CRT parameters");
+		return key;
 	}
 }
@@ -0,0 +1,337 @@
+package digital_sig;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*	========================================================================================================
+ * 								---- How to use RSAKeyStore class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ RSAKey.loadFromFile() reads one key per file, through an ObjectInputStream. A verifier that trusts
+ * 			hundreds of signers would open hundreds of files, and would still have to guess which key to try.
+ *
+ * 		+ An RSAKeyStore file holds any number of public and private keys in a compact binary layout, with a
+ * 			hash table of key fingerprints (see RSAKey.getFingerprint()) at the front.
+ *
+ * 		+ open() maps the file into memory and checks its header, nothing more. A lookup hashes the fingerprint
+ * 			to a slot of the table and reads the key it points to, so it costs the same with 10 keys or 10000.
+ * 			Each key is only decoded the first time it is looked up.
+ *
+ * 		+ Every .signed and .sig file records the fingerprint of the key that signed it, so a verifier can pick
+ * 			the right public key at once (see DigitalSignature.checkSignature(String, RSAKeyStore, boolean)).
+ *
+ * 		+ A store is read only once written, and safe to share between threads. To add keys, save a new one.
+ *
+ *
+ * 	How to make a keystore:
+ * 		List<RSAKey> publicKeys = Arrays.asList(alicePublicKey, bobPublicKey, carolPublicKey);
+ * 		List<RSAKey> privateKeys = Arrays.asList(myPrivateKey);
+ * 		boolean success = RSAKeyStore.save("trusted.rks", publicKeys, privateKeys);
+ *
+ * 		// Or from the command line, from existing key files:
+ * 		// java digital_sig.RSAKeyStore trusted.rks --public alice.rsa bob.rsa carol.rsa --private mine.rsa
+ *
+ *
+ * 	How to use a keystore:
+ * 		RSAKeyStore store = RSAKeyStore.open("trusted.rks");	// null if it could not be opened
+ *
+ * 		boolean valid = DigitalSignature.verifySignature("blah.txt.signed", store);	// signer's key looked up
+ * 		RSAKey publicKey = store.getPublicKey(fingerprint);		// null if the store has no such key
+ * 		RSAKey privateKey = store.getPrivateKey(fingerprint);
+ *
+ * 		// Caution: whoever can write the keystore file decides which signers are trusted. Keep it somewhere
+ * 		// only trusted users can write to, just like the key files themselves.
+ *
+ *
+ * 	File layout (all numbers big endian):
+ * 		offset	size		field
+ * 		0		4			magic "RKS1"
+ * 		4		4			version (1)
+ * 		8		4			number of keys
+ * 		12		4			number of slots (a power of two, at least twice the number of keys)
+ * 		16		4 * slots	offset of the key in each slot, 0 for an empty slot
+ *
+ * 		Each key:
+ * 		0		32			fingerprint
+ * 		32		1			KIND_PUBLIC or KIND_PRIVATE
+ * 		33		4			count of numbers (see RSAKey.getNumbers())
+ * 		37		...			each number: 4 byte length, then BigInteger.toByteArray()
+ *
+ * 		A key lives in the slot its fingerprint hashes to, or the first empty slot after it (wrapping around).
+ *
+ */
+public class RSAKeyStore {
+
+	public static final byte KIND_PUBLIC = 0;
+	public static final byte KIND_PRIVATE = 1;
+
+	private static final int MAGIC = 0x524B5331;	// "RKS1"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 16;
+	private static final int FINGERPRINT_LENGTH = 32;
+
+	// More numbers than any key has, so a damaged count is caught before allocating for it
+	private static final int MAX_NUMBERS = 16;
+
+	private String filename;
+	private MappedByteBuffer map;
+	private int keyCount;
+	private int slotMask;
+
+	// Keys already decoded, by slot
+	private AtomicReferenceArray<RSAKey> keys;
+
+	private RSAKeyStore(String filename, MappedByteBuffer map, int keyCount, int slotCount){
+		this.filename = filename;
+		this.map = map;
+		this.keyCount = keyCount;
+		this.slotMask = slotCount - 1;
+		this.keys = new AtomicReferenceArray<>(slotCount);
+	}
+
+	/*
+	 * Maps a keystore file into memory. Returns null if it is missing or is not a keystore.
+	 */
+	public static RSAKeyStore open(String filename){
+		MappedByteBuffer map;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			long size = channel.size();
+			if(size < HEADER_LENGTH || size > Integer.MAX_VALUE){
+				System.out.println("Error: RSAKeyStore.open(" + filename + ") is not a keystore");
+				return null;
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch(IOException | InvalidPathException e){
+			System.out.println("Error: RSAKeyStore.open(" + filename + ") could not open");
+			return null;
+		}
+
+		int keyCount = map.getInt(8);
+		int slotCount = map.getInt(12);
+		if(map.getInt(0) != MAGIC || map.getInt(4) != VERSION || keyCount < 0 || slotCount < 1
+				|| Integer.bitCount(slotCount) != 1 || slotCount <= keyCount
+				|| HEADER_LENGTH + 4L * slotCount > map.capacity()){
+			System.out.println("Error: RSAKeyStore.open(" + filename + ") is not a keystore, or is damaged");
+			return null;
+		}
+
+		return new RSAKeyStore(filename, map, keyCount, slotCount);
+	}
+
+	public int size(){
+		return keyCount;
+	}
+
+	/*
+	 * The public key with this fingerprint, or null if the store has none.
+	 */
+	public RSAKey getPublicKey(byte[] fingerprint){
+		return getKey(fingerprint, KIND_PUBLIC);
+	}
+
+	/*
+	 * The private key with this fingerprint, or null if the store has none.
+	 */
+	public RSAKey getPrivateKey(byte[] fingerprint){
+		return getKey(fingerprint, KIND_PRIVATE);
+	}
+
+	private RSAKey getKey(byte[] fingerprint, byte kind){
+		if(fingerprint == null || fingerprint.length != FINGERPRINT_LENGTH)
+			return null;
+
+		try{
+			int slot = slotOf(fingerprint, kind) & slotMask;
+			for(int probes = 0; probes <= slotMask; probes++){
+				int offset = map.getInt(HEADER_LENGTH + 4 * slot);
+				if(offset == 0)
+					return null;
+
+				if(map.get(offset + FINGERPRINT_LENGTH) == kind && fingerprintAt(offset, fingerprint))
+					return decodeKey(slot, offset, fingerprint);
+
+				slot = (slot + 1) & slotMask;
+			}
+		}
+		catch(IndexOutOfBoundsException e){
+			System.out.println("Error: RSAKeyStore.getKey(...) " + filename + " is damaged");
+		}
+		return null;
+	}
+
+	private boolean fingerprintAt(int offset, byte[] fingerprint){
+		for(int i = 0; i < FINGERPRINT_LENGTH; i++){
+			if(map.get(offset + i) != fingerprint[i])
+				return false;
+		}
+		return true;
+	}
+
+	private RSAKey decodeKey(int slot, int offset, byte[] fingerprint){
+		RSAKey key = keys.get(slot);
+		if(key != null)
+			return key;
+
+		int position = offset + FINGERPRINT_LENGTH + 1;
+		int count = map.getInt(position);
+		if(count < 0 || count > MAX_NUMBERS)
+			throw new IndexOutOfBoundsException("Bad count of numbers");
+		position += 4;
+
+		BigInteger[] numbers = new BigInteger[count];
+		for(int i = 0; i < count; i++){
+			int length = map.getInt(position);
+			if(length < 1 || length > map.capacity() - position - 4)
+				throw new IndexOutOfBoundsException("Bad number length");
+
+			byte[] bytes = new byte[length];
+			map.get(position + 4, bytes);
+			numbers[i] = new BigInteger(bytes);
+			position += 4 + length;
+		}
+
+		key = RSAKey.fromNumbers(numbers);
+		if(key == null || !Arrays.equals(key.getFingerprint(), fingerprint)){
+			System.out.println("Error: RSAKeyStore.getKey(...) " + filename + " has a damaged key");
+			return null;
+		}
+
+		// Another thread may have decoded the same key meanwhile, hand out a single instance
+		keys.compareAndSet(slot, null, key);
+		return keys.get(slot);
+	}
+
+	/*
+	 * The fingerprint is a SHA-256 hash, so its first bytes are already evenly spread.
+	 */
+	private static int slotOf(byte[] fingerprint, byte kind){
+		int hash = ((fingerprint[0] & 0xff) << 24) | ((fingerprint[1] & 0xff) << 16)
+				| ((fingerprint[2] & 0xff) << 8) | (fingerprint[3] & 0xff);
+		return hash ^ kind;
+	}
+
+	/*
+	 * Writes publicKeys and privateKeys to a new keystore file (through a temporary file, so readers never
+	 * see half a store). Either list may be empty. Returns false if two keys of the same kind have the same
+	 * fingerprint, or the file can't be written.
+	 */
+	public static boolean save(String filename, Collection<RSAKey> publicKeys, Collection<RSAKey> privateKeys){
+		List<RSAKey> all = new ArrayList<>(publicKeys);
+		all.addAll(privateKeys);
+
+		int slotCount = Integer.highestOneBit(Math.max(1, all.size())) << 2;
+		int[] slots = new int[slotCount];
+		byte[][] fingerprints = new byte[slotCount][];
+		byte[] kinds = new byte[slotCount];
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		int recordsStart = HEADER_LENGTH + 4 * slotCount;
+
+		try{
+			DataOutputStream out = new DataOutputStream(records);
+			for(int i = 0; i < all.size(); i++){
+				RSAKey key = all.get(i);
+				byte kind = i < publicKeys.size() ? KIND_PUBLIC : KIND_PRIVATE;
+				byte[] fingerprint = key.getFingerprint();
+
+				int slot = slotOf(fingerprint, kind) & (slotCount - 1);
+				while(slots[slot] != 0){
+					if(kinds[slot] == kind && Arrays.equals(fingerprints[slot], fingerprint)){
+						System.out.println("Error: RSAKeyStore.save(" + filename + ") two keys of the same kind"
+								+ " have the same fingerprint");
+						return false;
+					}
+					slot = (slot + 1) & (slotCount - 1);
+				}
+				slots[slot] = recordsStart + records.size();
+				fingerprints[slot] = fingerprint;
+				kinds[slot] = kind;
+
+				out.write(fingerprint);
+				out.writeByte(kind);
+				BigInteger[] numbers = key.getNumbers();
+				out.writeInt(numbers.length);
+				for(BigInteger number : numbers){
+					byte[] bytes = number.toByteArray();
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+
+				if((long)recordsStart + records.size() > Integer.MAX_VALUE){
+					System.out.println("Error: RSAKeyStore.save(" + filename + ") too many keys for one file");
+					return false;
+				}
+			}
+
+			Path path = Paths.get(filename);
+			Path tempPath = Paths.get(filename + ".tmp");
+			try(DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename + ".tmp")))){
+				file.writeInt(MAGIC);
+				file.writeInt(VERSION);
+				file.writeInt(all.size());
+				file.writeInt(slotCount);
+				for(int offset : slots){
+					file.writeInt(offset);
+				}
+				records.writeTo(file);
+			}
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(IOException | InvalidPathException e){
+			System.out.println("Error: RSAKeyStore.save(" + filename + ") could not write");
+			return false;
+		}
+
+		return true;
+	}
+
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.out.println("Usage: java digital_sig.RSAKeyStore <keystore file> [--public <key file>...]"
+					+ " [--private <key file>...]");
+			System.exit(2);
+		}
+
+		List<RSAKey> publicKeys = new ArrayList<>();
+		List<RSAKey> privateKeys = new ArrayList<>();
+		List<RSAKey> current = publicKeys;
+		for(int i = 1; i < args.length; i++){
+			if(args[i].equals("--public")){
+				current = publicKeys;
+			}
+			else if(args[i].equals("--private")){
+				current = privateKeys;
+			}
+			else{
+				RSAKey key = RSAKey.loadFromFile(args[i]);
+				if(key == null)
+					System.exit(2);
+				current.add(key);
+			}
+		}
+
+		if(!save(args[0], publicKeys, privateKeys))
+			System.exit(1);
+		System.out.println("Saved " + publicKeys.size() + " public and " + privateKeys.size() + " private keys to "
+				+ args[0]);
+	}
+}
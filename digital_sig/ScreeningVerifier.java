@@ -0,0 +1,147 @@
+package digital_sig;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/*	========================================================================================================
+ * 								---- How to use ScreeningVerifier class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Checking a signature costs one exponentiation with the public key: digest == signature^e mod n.
+ *
+ * 		+ Because (s1 * s2 * ... * sN)^e = s1^e * s2^e * ... * sN^e (mod n), a whole batch of signatures made with
+ * 			the same key can be checked with ONE exponentiation: multiply the signatures together, raise the
+ * 			product to e, and compare it with the product of the digests. This is called "screening".
+ *
+ * 		+ If the batch check fails, the batch is split in half and each half is checked again, until the bad
+ * 			signatures are found. A batch with a few bad signatures costs a few extra exponentiations, not one per
+ * 			signature.
+ *
+ * 		+ Caution: a passing batch proves that the key holder signed the messages as a group, not that each
+ * 			signature is correct on its own. Someone could multiply one signature by x and another by 1/x and the
+ * 			batch would still pass. That is why files that pass are reported as SCREENED, never VALID. Use
+ * 			screening where the sender is the one being checked (for example a publisher sending thousands of
+ * 			signed records), and use DigitalSignature.checkSignature() where each signature must stand on its own.
+ *
+ *
+ * 	How to screen a batch of .signed files:
+ * 		RSAKey publicKey = RSAKey.loadFromFile("pubkey.rsa");
+ * 		VerificationStatus[] results = ScreeningVerifier.verifyFiles(listOfFilenames, publicKey);
+ *
+ * 		// results[i] is the status of listOfFilenames.get(i): SCREENED if it passed screening, INVALID if it
+ * 		// did not. Files that cannot be read are UNREADABLE, and files signed with a different key are INVALID,
+ * 		// without being part of the batch.
+ *
+ *
+ * 	How to screen signatures and digests that are already in memory:
+ * 		boolean[] valid = ScreeningVerifier.screen(signatures, digests, publicKey);
+ *
+ */
+public class ScreeningVerifier {
+
+	public static VerificationStatus[] verifyFiles(List<String> filenames, RSAKey publicKey){
+		int count = filenames.size();
+		VerificationStatus[] results = new VerificationStatus[count];
+		BigInteger[] signatures = new BigInteger[count];
+		BigInteger[] digests = new BigInteger[count];
+		SignatureMetrics.Timer[] timers = new SignatureMetrics.Timer[count];
+
+		// Reading and hashing is the slow part for big files, so do that on all cores
+		IntStream.range(0, count).parallel().forEach(i -> {
+			timers[i] = new SignatureMetrics.Timer("screen", filenames.get(i));
+			DigitalSignature.SignedDigest signed =
+					DigitalSignature.readSignedDigest(filenames.get(i), publicKey, false, timers[i]);
+			results[i] = signed.status;
+			signatures[i] = signed.signature;
+			digests[i] = signed.digest;
+		});
+
+		// Screen only the files that got as far as the RSA step
+		int[] readable = IntStream.range(0, count).filter(i -> results[i] == null).toArray();
+		BigInteger[] readableSignatures = new BigInteger[readable.length];
+		BigInteger[] readableDigests = new BigInteger[readable.length];
+		for(int i = 0; i < readable.length; i++){
+			readableSignatures[i] = signatures[readable[i]];
+			readableDigests[i] = digests[readable[i]];
+		}
+
+		boolean[] valid = screen(readableSignatures, readableDigests, publicKey);
+		for(int i = 0; i < readable.length; i++){
+			results[readable[i]] = valid[i] ? VerificationStatus.SCREENED : VerificationStatus.INVALID;
+		}
+
+		// The RSA work is shared by the whole batch, so it is not timed per file
+		for(int i = 0; i < count; i++){
+			timers[i].verified(results[i]);
+		}
+
+		return results;
+	}
+
+	/*
+	 * Returns, for each (signature, digest) pair, whether it passed screening under publicKey.
+	 */
+	public static boolean[] screen(BigInteger[] signatures, BigInteger[] digests, RSAKey publicKey){
+		if(signatures.length != digests.length)
+			throw new IllegalArgumentException("Need one digest per signature");
+
+		// A signature outside [1, n) could be swapped for an equivalent one, so it never passes. Leave those out
+		// (as invalid) in one pass, so the halving below only ever sees pairs that can pass
+		BigInteger modulus = publicKey.getModulus();
+		int[] inRange = IntStream.range(0, signatures.length)
+				.filter(i -> signatures[i].signum() > 0 && signatures[i].compareTo(modulus) < 0
+						&& digests[i].compareTo(modulus) < 0)
+				.toArray();
+
+		BigInteger[] screenedSignatures = new BigInteger[inRange.length];
+		BigInteger[] screenedDigests = new BigInteger[inRange.length];
+		for(int i = 0; i < inRange.length; i++){
+			screenedSignatures[i] = signatures[inRange[i]];
+			screenedDigests[i] = digests[inRange[i]];
+		}
+
+		boolean[] screened = new boolean[inRange.length];
+		screen(screenedSignatures, screenedDigests, publicKey, 0, inRange.length, screened);
+
+		boolean[] valid = new boolean[signatures.length];
+		for(int i = 0; i < inRange.length; i++){
+			valid[inRange[i]] = screened[i];
+		}
+		return valid;
+	}
+
+	/*
+	 * Screens the pairs in [from, to), splitting the range in half whenever the combined check fails. Every
+	 * signature and digest must already be in [1, n).
+	 */
+	private static void screen(BigInteger[] signatures, BigInteger[] digests, RSAKey publicKey, int from, int to,
+			boolean[] valid){
+
+		if(from >= to)
+			return;
+
+		BigInteger modulus = publicKey.getModulus();
+		BigInteger signatureProduct = BigInteger.ONE;
+		BigInteger digestProduct = BigInteger.ONE;
+		for(int i = from; i < to; i++){
+			signatureProduct = signatureProduct.multiply(signatures[i]).mod(modulus);
+			digestProduct = digestProduct.multiply(digests[i]).mod(modulus);
+		}
+
+		if(publicKey.encrypt(signatureProduct).equals(digestProduct)){
+			for(int i = from; i < to; i++){
+				valid[i] = true;
+			}
+			return;
+		}
+
+		if(to - from == 1)
+			return;
+
+		int middle = (from + to) >>> 1;
+		screen(signatures, digests, publicKey, from, middle, valid);
+		screen(signatures, digests, publicKey, middle, to, valid);
+	}
+}
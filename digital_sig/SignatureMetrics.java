@@ -0,0 +1,502 @@
+package digital_sig;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ConstructorParameters;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*	========================================================================================================
+ * 								---- How to use SignatureMetrics class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Every sign and verify done by DigitalSignature, and every key pair made by KeyGen, is timed phase by
+ * 			phase, so a slow operation can be pinned on the part that was slow:
+ * 			- read		reading the file (or mapping it, in memory mapped mode)
+ * 			- hash		feeding the bytes into the digest
+ * 			- rsa		the modPow in RSAKey.encrypt()
+ * 			- write		writing the .signed or .sig file
+ * 			- prime search	finding p and q (key generation only)
+ *
+ * 		+ There is one SignatureMetrics object per JVM, shared by all threads. It counts operations, failures
+ * 			and bytes hashed, and keeps a latency histogram for each operation and phase. Recording is a few
+ * 			atomic adds per operation, not per byte.
+ *
+ * 		+ In memory mapped mode the pages are read from disk while they are hashed, so most of the I/O time
+ * 			shows up as hash time.
+ *
+ *
+ * 	How to see the numbers from code:
+ * 		SignatureMetrics metrics = SignatureMetrics.get();
+ * 		long signed = metrics.getSignCount();
+ * 		double p99 = metrics.getHashLatency().getP99Micros();
+ * 		metrics.printStats();
+ *
+ *
+ * 	How to see the numbers without touching the code:
+ * 		+ JMX: the metrics are registered as the MXBean "digital_sig:type=SignatureMetrics" (see
+ * 			SignatureMetricsMXBean.java), so JConsole, VisualVM or a JMX exporter can read them from a running
+ * 			process. reset() is there too. -Ddigital_sig.jmx=false turns the registration off, for short
+ * 			lived processes that want to start fast (CommandLine does this unless told otherwise).
+ *
+ * 		+ Java Flight Recorder: each operation is also a JFR event ("digital_sig.Signature" for sign and verify,
+ * 			"digital_sig.KeyGen" for key generation) carrying the time spent in each phase:
+ *
+ * 			java -XX:StartFlightRecording=filename=signing.jfr,settings=profile ...
+ * 			jfr print --events digital_sig.Signature signing.jfr
+ *
+ * 			Events cost nothing while no recording is running.
+ *
+ *
+ * 	Histogram percentiles are accurate to within a factor of two (buckets are powers of two nanoseconds),
+ * 	which is plenty to tell a 2 ms hash from a 200 ms one.
+ *
+ */
+public class SignatureMetrics implements SignatureMetricsMXBean {
+
+	public static final String OBJECT_NAME = "digital_sig:type=SignatureMetrics";
+
+	// Set to "false" to skip JMX registration (it starts the platform MBean server, which takes a while)
+	public static final String JMX_PROPERTY = "digital_sig.jmx";
+
+	private static final SignatureMetrics INSTANCE = new SignatureMetrics();
+
+	static{
+		if(!"false".equals(System.getProperty(JMX_PROPERTY))){
+			try{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+			}
+			catch(JMException | SecurityException e){
+				System.out.println("Error: SignatureMetrics could not register with JMX: " + e.getMessage());
+			}
+		}
+	}
+
+	private LongAdder signs = new LongAdder();
+	private LongAdder signFailures = new LongAdder();
+	private LongAdder verifications = new LongAdder();
+	private LongAdder verifyInvalid = new LongAdder();
+	private LongAdder verifyUnreadable = new LongAdder();
+	private LongAdder keyGens = new LongAdder();
+	private LongAdder keyGenFailures = new LongAdder();
+	private LongAdder bytesHashed = new LongAdder();
+
+	private Histogram signLatency = new Histogram();
+	private Histogram verifyLatency = new Histogram();
+	private Histogram keyGenLatency = new Histogram();
+	private Histogram readLatency = new Histogram();
+	private Histogram hashLatency = new Histogram();
+	private Histogram rsaLatency = new Histogram();
+	private Histogram writeLatency = new Histogram();
+	private Histogram primeSearchLatency = new Histogram();
+
+	private SignatureMetrics(){
+	}
+
+	public static SignatureMetrics get(){
+		return INSTANCE;
+	}
+
+	public long getSignCount(){
+		return signs.sum();
+	}
+
+	public long getSignFailures(){
+		return signFailures.sum();
+	}
+
+	public long getVerifyCount(){
+		return verifications.sum();
+	}
+
+	public long getVerifyInvalid(){
+		return verifyInvalid.sum();
+	}
+
+	public long getVerifyUnreadable(){
+		return verifyUnreadable.sum();
+	}
+
+	public long getKeyGenCount(){
+		return keyGens.sum();
+	}
+
+	public long getKeyGenFailures(){
+		return keyGenFailures.sum();
+	}
+
+	public long getBytesHashed(){
+		return bytesHashed.sum();
+	}
+
+	public LatencySnapshot getSignLatency(){
+		return signLatency.snapshot();
+	}
+
+	public LatencySnapshot getVerifyLatency(){
+		return verifyLatency.snapshot();
+	}
+
+	public LatencySnapshot getKeyGenLatency(){
+		return keyGenLatency.snapshot();
+	}
+
+	public LatencySnapshot getReadLatency(){
+		return readLatency.snapshot();
+	}
+
+	public LatencySnapshot getHashLatency(){
+		return hashLatency.snapshot();
+	}
+
+	public LatencySnapshot getRsaLatency(){
+		return rsaLatency.snapshot();
+	}
+
+	public LatencySnapshot getWriteLatency(){
+		return writeLatency.snapshot();
+	}
+
+	public LatencySnapshot getPrimeSearchLatency(){
+		return primeSearchLatency.snapshot();
+	}
+
+	/*
+	 * Sets every counter and histogram back to zero. Operations running at the time may be half counted.
+	 */
+	public void reset(){
+		for(LongAdder counter : new LongAdder[]{signs, signFailures, verifications, verifyInvalid, verifyUnreadable,
+				keyGens, keyGenFailures, bytesHashed}){
+			counter.reset();
+		}
+		for(Histogram histogram : new Histogram[]{signLatency, verifyLatency, keyGenLatency, readLatency, hashLatency,
+				rsaLatency, writeLatency, primeSearchLatency}){
+			histogram.reset();
+		}
+	}
+
+	public void printStats(){
+		System.out.println("SignatureMetrics: " + getSignCount() + " signed (" + getSignFailures() + " failed), "
+				+ getVerifyCount() + " verified (" + getVerifyInvalid() + " invalid, " + getVerifyUnreadable()
+				+ " unreadable), " + getKeyGenCount() + " key pairs (" + getKeyGenFailures() + " failed), "
+				+ getBytesHashed() + " bytes hashed");
+		System.out.println("  sign         " + getSignLatency());
+		System.out.println("  verify       " + getVerifyLatency());
+		System.out.println("  keygen       " + getKeyGenLatency());
+		System.out.println("  read         " + getReadLatency());
+		System.out.println("  hash         " + getHashLatency());
+		System.out.println("  rsa          " + getRsaLatency());
+		System.out.println("  write        " + getWriteLatency());
+		System.out.println("  prime search " + getPrimeSearchLatency());
+	}
+
+	private void recordPhases(Timer timer){
+		bytesHashed.add(timer.bytesHashed);
+		recordPhase(readLatency, timer.readNanos);
+		recordPhase(hashLatency, timer.hashNanos);
+		recordPhase(rsaLatency, timer.rsaNanos);
+		recordPhase(writeLatency, timer.writeNanos);
+	}
+
+	/*
+	 * A phase that never ran (no write when verifying, for example) is left out, so it doesn't drag the
+	 * percentiles down.
+	 */
+	private static void recordPhase(Histogram histogram, long nanos){
+		if(nanos > 0)
+			histogram.record(nanos);
+	}
+
+
+	/*
+	 * Times one sign or verify. Made by DigitalSignature at the start of the operation and handed down to the
+	 * code doing each phase. Only used by one thread at a time.
+	 */
+	static class Timer {
+		private String operation;
+		private String filename;
+		private long start;
+		private long readNanos;
+		private long hashNanos;
+		private long rsaNanos;
+		private long writeNanos;
+		private long bytesHashed;
+		private SignatureEvent event = new SignatureEvent();
+
+		Timer(String operation, String filename){
+			this.operation = operation;
+			this.filename = filename;
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		void read(long nanos){
+			readNanos += nanos;
+		}
+
+		void hashed(long nanos, long bytes){
+			hashNanos += nanos;
+			bytesHashed += bytes;
+		}
+
+		void rsa(long nanos){
+			rsaNanos += nanos;
+		}
+
+		void write(long nanos){
+			writeNanos += nanos;
+		}
+
+		void signed(boolean success){
+			SignatureMetrics metrics = get();
+			metrics.signs.increment();
+			if(!success)
+				metrics.signFailures.increment();
+			metrics.signLatency.record(System.nanoTime() - start);
+			metrics.recordPhases(this);
+			commitEvent(success ? "OK" : "FAILED");
+		}
+
+		void verified(VerificationStatus status){
+			SignatureMetrics metrics = get();
+			metrics.verifications.increment();
+			if(status == VerificationStatus.INVALID)
+				metrics.verifyInvalid.increment();
+			else if(status == VerificationStatus.UNREADABLE)
+				metrics.verifyUnreadable.increment();
+			metrics.verifyLatency.record(System.nanoTime() - start);
+			metrics.recordPhases(this);
+			commitEvent(status.toString());
+		}
+
+		private void commitEvent(String result){
+			event.end();
+			if(!event.shouldCommit())
+				return;
+
+			event.operation = operation;
+			event.file = filename;
+			event.result = result;
+			event.bytesHashed = bytesHashed;
+			event.readTime = readNanos;
+			event.hashTime = hashNanos;
+			event.rsaTime = rsaNanos;
+			event.writeTime = writeNanos;
+			event.commit();
+		}
+	}
+
+	/*
+	 * Times one KeyGen.generate().
+	 */
+	static class KeyGenTimer {
+		private int keySize;
+		private long start;
+		private long primeSearchNanos;
+		private KeyGenEvent event = new KeyGenEvent();
+
+		KeyGenTimer(int keySize){
+			this.keySize = keySize;
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		void primesFound(){
+			primeSearchNanos = System.nanoTime() - start;
+		}
+
+		void finished(boolean success){
+			SignatureMetrics metrics = get();
+			metrics.keyGens.increment();
+			if(!success)
+				metrics.keyGenFailures.increment();
+			metrics.keyGenLatency.record(System.nanoTime() - start);
+			recordPhase(metrics.primeSearchLatency, primeSearchNanos);
+
+			event.end();
+			if(event.shouldCommit()){
+				event.keySize = keySize;
+				event.primeSearchTime = primeSearchNanos;
+				event.success = success;
+				event.commit();
+			}
+		}
+	}
+
+
+	/*
+	 * Log scale latency histogram: bucket i counts latencies of i bits (2^(i-1) to 2^i - 1 nanoseconds).
+	 */
+	private static class Histogram {
+		private AtomicLongArray buckets = new AtomicLongArray(64);
+		private LongAdder count = new LongAdder();
+		private LongAdder totalNanos = new LongAdder();
+		private AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos){
+			nanos = Math.max(nanos, 0);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		void reset(){
+			for(int i = 0; i < buckets.length(); i++){
+				buckets.set(i, 0);
+			}
+			count.reset();
+			totalNanos.reset();
+			maxNanos.set(0);
+		}
+
+		LatencySnapshot snapshot(){
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for(int i = 0; i < counts.length; i++){
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+
+			long max = maxNanos.get();
+			double mean = total == 0 ? 0 : totalNanos.sum() / 1e3 / total;
+			return new LatencySnapshot(total, mean, percentile(counts, total, 0.50, max),
+					percentile(counts, total, 0.90, max), percentile(counts, total, 0.99, max), max / 1e3);
+		}
+
+		/*
+		 * Upper end of the bucket holding the given fraction of the samples, in microseconds (never more than
+		 * the largest sample).
+		 */
+		private static double percentile(long[] counts, long total, double fraction, long max){
+			if(total == 0)
+				return 0;
+
+			long rank = (long)Math.ceil(total * fraction);
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++){
+				seen += counts[i];
+				if(seen >= rank)
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max) / 1e3;
+			}
+			return max / 1e3;
+		}
+	}
+
+
+	/*
+	 * Latency figures at one moment, in microseconds. Shown by JMX clients as a composite value.
+	 */
+	public static class LatencySnapshot {
+		private long count;
+		private double meanMicros;
+		private double p50Micros;
+		private double p90Micros;
+		private double p99Micros;
+		private double maxMicros;
+
+		@ConstructorParameters({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+		public LatencySnapshot(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros,
+				double maxMicros){
+			this.count = count;
+			this.meanMicros = meanMicros;
+			this.p50Micros = p50Micros;
+			this.p90Micros = p90Micros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount(){
+			return count;
+		}
+
+		public double getMeanMicros(){
+			return meanMicros;
+		}
+
+		public double getP50Micros(){
+			return p50Micros;
+		}
+
+		public double getP90Micros(){
+			return p90Micros;
+		}
+
+		public double getP99Micros(){
+			return p99Micros;
+		}
+
+		public double getMaxMicros(){
+			return maxMicros;
+		}
+
+		public String toString(){
+			return count + " ops, mean " + String.format("%.1f", meanMicros) + " us, p50 "
+					+ String.format("%.1f", p50Micros) + " us, p90 " + String.format("%.1f", p90Micros) + " us, p99 "
+					+ String.format("%.1f", p99Micros) + " us, max " + String.format("%.1f", maxMicros) + " us";
+		}
+	}
+
+
+	@Name("digital_sig.Signature")
+	@Label("Sign / Verify")
+	@Category("Digital Signature")
+	@Description("One DigitalSignature sign or verify, with the time spent in each phase")
+	static class SignatureEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("File")
+		String file;
+
+		@Label("Result")
+		String result;
+
+		@Label("Bytes Hashed")
+		@DataAmount
+		long bytesHashed;
+
+		@Label("Read Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long readTime;
+
+		@Label("Hash Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long hashTime;
+
+		@Label("RSA Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long rsaTime;
+
+		@Label("Write Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long writeTime;
+	}
+
+	@Name("digital_sig.KeyGen")
+	@Label("Key Generation")
+	@Category("Digital Signature")
+	@Description("One KeyGen.generate()")
+	static class KeyGenEvent extends Event {
+		@Label("Key Size")
+		int keySize;
+
+		@Label("Prime Search Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long primeSearchTime;
+
+		@Label("Success")
+		boolean success;
+	}
+}
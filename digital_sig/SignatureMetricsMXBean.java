@@ -0,0 +1,43 @@
+package digital_sig;
+
+/*
+ * The management interface of SignatureMetrics, as seen in JConsole, VisualVM or any other JMX client under
+ * the name "digital_sig:type=SignatureMetrics". Each latency attribute shows up as a composite value with the
+ * count, mean, percentiles and maximum in microseconds.
+ */
+public interface SignatureMetricsMXBean {
+
+	long getSignCount();
+
+	long getSignFailures();
+
+	long getVerifyCount();
+
+	long getVerifyInvalid();
+
+	long getVerifyUnreadable();
+
+	long getKeyGenCount();
+
+	long getKeyGenFailures();
+
+	long getBytesHashed();
+
+	SignatureMetrics.LatencySnapshot getSignLatency();
+
+	SignatureMetrics.LatencySnapshot getVerifyLatency();
+
+	SignatureMetrics.LatencySnapshot getKeyGenLatency();
+
+	SignatureMetrics.LatencySnapshot getReadLatency();
+
+	SignatureMetrics.LatencySnapshot getHashLatency();
+
+	SignatureMetrics.LatencySnapshot getRsaLatency();
+
+	SignatureMetrics.LatencySnapshot getWriteLatency();
+
+	SignatureMetrics.LatencySnapshot getPrimeSearchLatency();
+
+	void reset();
+}
@@ -0,0 +1,390 @@
+package digital_sig;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*	========================================================================================================
+ * 								---- How to use SignedFile class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A SignedFile describes the header of a .signed file: which digest was used, which key signed it, the
+ * 			signature itself, and where the message (payload) sits in the file.
+ *
+ * 		+ You normally don't need this class. DigitalSignature reads and writes .signed files for you. It is
+ * 			useful if you want to look inside a .signed file without verifying it.
+ *
+ *
+ * 	The .signed file layout (all numbers big-endian):
+ *
+ * 		offset  size        field
+ * 		0       4           magic "RSIG"
+ * 		4       1           format version (currently 1)
+ * 		5       1           digest algorithm id (1 = MD5, 2 = SHA-256, 3 = SHA-512, see DigestAlgorithm.java)
+ * 		6       2           flags (bit 0 = detached, bit 1 = tree hash, bit 2 = chunk index, see below)
+ * 		8       32          key fingerprint (see RSAKey.getFingerprint())
+ * 		40      4           signature length in bytes (the byte length of the key modulus)
+ * 		44      8           payload length in bytes
+ * 		52      sigLength   signature, unsigned and left padded with zeros to sigLength bytes
+ * 		...     payload     the original message, unchanged
+ * 		...     index       chunk index, only with the chunk index flag (see below)
+ *
+ * 		Because every field before the payload has a known size, a reader can seek straight to the payload.
+ *
+ * 		The signature doesn't cover the flags, so a flag a reader doesn't know makes the file unreadable
+ * 		instead of being ignored. Otherwise changing an unused flag bit would leave the file VALID.
+ *
+ * 		A detached signature (.sig file) has the detached flag set and ends right after the signature. Its
+ * 		payload length is the length of the original file it was made for.
+ *
+ * 		With the tree hash flag set, the signature is over the TreeHash root of the payload instead of its plain
+ * 		digest (see TreeHash.java and DigitalSignature.java).
+ *
+ * 		With the chunk index flag set (which needs the tree hash flag too), the file ends with the hash of every
+ * 		TreeHash chunk of the payload, in order, each as long as one digest. The signature covers the index,
+ * 		since the signed root is the hash of exactly those chunk hashes. A .sig file has its index right after
+ * 		the signature. See ChunkIndex.java for what the index is used for.
+ *
+ * 		Older .signed files are a Java serialized BigInteger followed by the message. They do not start with
+ * 		the magic, so read() returns null for them and DigitalSignature falls back to its legacy reader.
+ *
+ *
+ * 	How to read the header of a .signed file:
+ * 		try(FileChannel channel = FileChannel.open(Paths.get("blah.txt.signed"))){
+ * 			SignedFile header = SignedFile.read(channel);	// null if this is an old style .signed file
+ * 			long messageStart = header.getPayloadOffset();
+ * 		}
+ *
+ */
+public class SignedFile {
+
+	public static final int MAGIC = 0x52534947;	// "RSIG"
+	public static final int VERSION = 1;
+	public static final int DIGEST_MD5 = 1;
+	public static final int DIGEST_SHA256 = 2;
+	public static final int DIGEST_SHA512 = 3;
+	public static final int FLAG_DETACHED = 1;
+	public static final int FLAG_TREE_HASH = 2;
+	public static final int FLAG_CHUNK_INDEX = 4;
+	public static final int FINGERPRINT_LENGTH = 32;
+	public static final int HEADER_LENGTH = 52;
+
+	// Flags this reader understands (see the layout above for why any other flag is refused)
+	private static final int KNOWN_FLAGS = FLAG_DETACHED | FLAG_TREE_HASH | FLAG_CHUNK_INDEX;
+
+	// Largest signature we accept, so a corrupt header cannot make us allocate a huge buffer
+	private static final int MAX_SIGNATURE_LENGTH = 4096;
+
+	// Chunk hashes read or written per I/O call
+	private static final int BUFFER_CHUNK_HASHES = 4096;
+
+	private int version;
+	private int digestAlgorithm;
+	private int flags;
+	private byte[] fingerprint;
+	private BigInteger signature;
+	private int signatureLength;
+	private long payloadLength;
+
+	public SignedFile(int digestAlgorithm, int flags, byte[] fingerprint, BigInteger signature,
+			int signatureLength, long payloadLength){
+		this(VERSION, digestAlgorithm, flags, fingerprint, signature, signatureLength, payloadLength);
+	}
+
+	private SignedFile(int version, int digestAlgorithm, int flags, byte[] fingerprint, BigInteger signature,
+			int signatureLength, long payloadLength){
+		this.version = version;
+		this.digestAlgorithm = digestAlgorithm;
+		this.flags = flags;
+		this.fingerprint = fingerprint;
+		this.signature = signature;
+		this.signatureLength = signatureLength;
+		this.payloadLength = payloadLength;
+	}
+
+	public int getVersion(){
+		return version;
+	}
+
+	public int getDigestAlgorithm(){
+		return digestAlgorithm;
+	}
+
+	public int getFlags(){
+		return flags;
+	}
+
+	public boolean isDetached(){
+		return (flags & FLAG_DETACHED) != 0;
+	}
+
+	public boolean isTreeHash(){
+		return (flags & FLAG_TREE_HASH) != 0;
+	}
+
+	public boolean hasChunkIndex(){
+		return (flags & FLAG_CHUNK_INDEX) != 0;
+	}
+
+	public byte[] getFingerprint(){
+		return fingerprint.clone();
+	}
+
+	public boolean hasFingerprint(byte[] otherFingerprint){
+		return Arrays.equals(fingerprint, otherFingerprint);
+	}
+
+	public BigInteger getSignature(){
+		return signature;
+	}
+
+	public long getPayloadOffset(){
+		return HEADER_LENGTH + signatureLength;
+	}
+
+	public long getPayloadLength(){
+		return payloadLength;
+	}
+
+	public int getSignatureLength(){
+		return signatureLength;
+	}
+
+	/*
+	 * Where the chunk index starts: right after the payload, or right after the signature in a .sig file.
+	 */
+	public long getIndexOffset(){
+		return getPayloadOffset() + (isDetached() ? 0 : payloadLength);
+	}
+
+	/*
+	 * Length of the chunk index in bytes (0 if there is none).
+	 */
+	public long getIndexLength(){
+		if(!hasChunkIndex())
+			return 0;
+		return (long)TreeHash.chunkCount(payloadLength) * (DigestAlgorithm.fromId(digestAlgorithm).getBits() / 8);
+	}
+
+	/*
+	 * How long the whole file should be. Anything else means it was truncated or had bytes added to it.
+	 */
+	public long getFileLength(){
+		return getIndexOffset() + getIndexLength();
+	}
+
+	/*
+	 * Reads the chunk index (one hash per TreeHash chunk of the payload) from a file with this header.
+	 */
+	public byte[][] readChunkIndex(FileChannel channel) throws IOException{
+		if(!hasChunkIndex())
+			throw new IllegalStateException("This file has no chunk index");
+
+		int hashLength = DigestAlgorithm.fromId(digestAlgorithm).getBits() / 8;
+		byte[][] chunkHashes = new byte[TreeHash.chunkCount(payloadLength)][hashLength];
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_CHUNK_HASHES * hashLength);
+		long position = getIndexOffset();
+		int chunk = 0;
+		while(chunk < chunkHashes.length){
+			int count = Math.min(BUFFER_CHUNK_HASHES, chunkHashes.length - chunk);
+			buffer.clear();
+			buffer.limit(count * hashLength);
+			if(!readFully(channel, buffer, position))
+				throw new EOFException("File ended inside the chunk index");
+			buffer.flip();
+			for(int i = 0; i < count; i++){
+				buffer.get(chunkHashes[chunk++]);
+			}
+			position += count * hashLength;
+		}
+		return chunkHashes;
+	}
+
+	/*
+	 * Same as above, for a whole file with this header that is in memory, starting at the buffer's position.
+	 */
+	public byte[][] readChunkIndex(ByteBuffer data){
+		if(!hasChunkIndex())
+			throw new IllegalStateException("This file has no chunk index");
+
+		int hashLength = DigestAlgorithm.fromId(digestAlgorithm).getBits() / 8;
+		byte[][] chunkHashes = new byte[TreeHash.chunkCount(payloadLength)][hashLength];
+		ByteBuffer index = data.duplicate();
+		index.position(data.position() + (int)getIndexOffset());
+		for(byte[] chunkHash : chunkHashes){
+			index.get(chunkHash);
+		}
+		return chunkHashes;
+	}
+
+	/*
+	 * Writes the chunk index where it belongs in a file with this header.
+	 */
+	public void writeChunkIndex(FileChannel channel, byte[][] chunkHashes) throws IOException{
+		if(!hasChunkIndex() || chunkHashes.length != TreeHash.chunkCount(payloadLength))
+			throw new IllegalArgumentException("Chunk index does not match the header");
+
+		int hashLength = DigestAlgorithm.fromId(digestAlgorithm).getBits() / 8;
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_CHUNK_HASHES * hashLength);
+		long position = getIndexOffset();
+		int chunk = 0;
+		while(chunk < chunkHashes.length){
+			buffer.clear();
+			while(chunk < chunkHashes.length && buffer.remaining() >= hashLength){
+				if(chunkHashes[chunk].length != hashLength)
+					throw new IllegalArgumentException("Chunk hash " + chunk + " has the wrong length");
+				buffer.put(chunkHashes[chunk++]);
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()){
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+
+	/*
+	 * Returns the header and signature as they are laid out at the start of the file.
+	 */
+	public ByteBuffer toByteBuffer(){
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + signatureLength);
+		buffer.putInt(MAGIC);
+		buffer.put((byte)version);
+		buffer.put((byte)digestAlgorithm);
+		buffer.putShort((short)flags);
+		buffer.put(fingerprint);
+		buffer.putInt(signatureLength);
+		buffer.putLong(payloadLength);
+		buffer.put(toFixedWidth(signature, signatureLength));
+		buffer.flip();
+		return buffer;
+	}
+
+	public void write(FileChannel channel) throws IOException{
+		ByteBuffer buffer = toByteBuffer();
+		long position = 0;
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/*
+	 * Reads the header at the start of the channel. Returns null if the file does not start with the magic
+	 * (an old style .signed file), and throws an IOException if the header is damaged or truncated.
+	 */
+	public static SignedFile read(FileChannel channel) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		if(!readFully(channel, buffer, 0)){
+			return null;
+		}
+		buffer.flip();
+
+		if(buffer.getInt(0) != MAGIC)
+			return null;
+
+		int signatureLength = buffer.getInt(40);
+		if(signatureLength <= 0 || signatureLength > MAX_SIGNATURE_LENGTH)
+			throw new IOException("Bad signature length in .signed header: " + signatureLength);
+
+		ByteBuffer signatureBuffer = ByteBuffer.allocate(signatureLength);
+		if(!readFully(channel, signatureBuffer, HEADER_LENGTH))
+			throw new EOFException("File ended inside the signature");
+		signatureBuffer.flip();
+
+		return parse(buffer, signatureBuffer);
+	}
+
+	/*
+	 * Parses a header from a buffer holding (at least) the header and signature, starting at its position.
+	 * Returns null if the buffer does not start with the magic.
+	 */
+	public static SignedFile read(ByteBuffer data) throws IOException{
+		if(data.remaining() < HEADER_LENGTH || data.getInt(data.position()) != MAGIC)
+			return null;
+
+		ByteBuffer header = data.duplicate();
+		header.limit(header.position() + HEADER_LENGTH);
+
+		int signatureLength = data.getInt(data.position() + 40);
+		if(signatureLength <= 0 || signatureLength > MAX_SIGNATURE_LENGTH
+				|| data.remaining() < HEADER_LENGTH + signatureLength)
+			throw new IOException("Bad signature length in .signed header: " + signatureLength);
+
+		ByteBuffer signatureBuffer = data.duplicate();
+		signatureBuffer.position(data.position() + HEADER_LENGTH);
+		signatureBuffer.limit(data.position() + HEADER_LENGTH + signatureLength);
+
+		return parse(header.slice(), signatureBuffer);
+	}
+
+	private static SignedFile parse(ByteBuffer header, ByteBuffer signatureBuffer) throws IOException{
+		header.position(4);
+		int version = header.get() & 0xff;
+		if(version != VERSION)
+			throw new IOException("Unsupported .signed format version: " + version);
+
+		int digestAlgorithm = header.get() & 0xff;
+		int flags = header.getShort() & 0xffff;
+		if((flags & ~KNOWN_FLAGS) != 0)
+			throw new IOException("Unknown flags in .signed header: " + flags);
+
+		byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+		header.get(fingerprint);
+
+		int signatureLength = header.getInt();
+		long payloadLength = header.getLong();
+		if(payloadLength < 0 || payloadLength / TreeHash.CHUNK_SIZE >= Integer.MAX_VALUE)
+			throw new IOException("Bad payload length in .signed header: " + payloadLength);
+		if((flags & FLAG_CHUNK_INDEX) != 0
+				&& ((flags & FLAG_TREE_HASH) == 0 || DigestAlgorithm.fromId(digestAlgorithm) == null))
+			throw new IOException("Chunk index without a known tree hash in .signed header");
+
+		byte[] signatureBytes = new byte[signatureLength];
+		signatureBuffer.get(signatureBytes);
+
+		return new SignedFile(version, digestAlgorithm, flags, fingerprint, new BigInteger(1, signatureBytes),
+				signatureLength, payloadLength);
+	}
+
+	/*
+	 * Signatures are stored with the same number of bytes as the key modulus.
+	 */
+	public static int signatureLength(RSAKey key){
+		return (key.getModulus().bitLength() + 7) / 8;
+	}
+
+	/*
+	 * Returns the unsigned big-endian bytes of value, left padded with zeros to width bytes.
+	 */
+	static byte[] toFixedWidth(BigInteger value, int width){
+		byte[] raw = value.toByteArray();
+		int start = 0;
+		while(start < raw.length - 1 && raw[start] == 0){
+			start++;
+		}
+
+		int length = raw.length - start;
+		if(length > width)
+			throw new IllegalArgumentException("Value does not fit in " + width + " bytes");
+
+		byte[] fixed = new byte[width];
+		System.arraycopy(raw, start, fixed, width - length, length);
+		return fixed;
+	}
+
+	/*
+	 * Fills the buffer from the channel starting at position. Returns false if the file ends first.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			int count = channel.read(buffer, position);
+			if(count < 0)
+				return false;
+			position += count;
+		}
+		return true;
+	}
+}
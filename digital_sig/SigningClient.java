@@ -0,0 +1,339 @@
+package digital_sig;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*	========================================================================================================
+ * 								---- How to use SigningClient class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A SigningClient sends requests to a running SigningDaemon over one connection. Keys are named the way
+ * 			the daemon was started with.
+ *
+ * 		+ The single file methods (sign(), verify(), ...) wait for each reply before sending the next request,
+ * 			so each file costs a round trip. The ...All() methods keep up to MAX_IN_FLIGHT requests on the way
+ * 			and read the replies as they come back (the daemon answers in order), so the daemon never waits for
+ * 			the client between files.
+ *
+ * 		+ Each connection is served by one daemon thread. To use more of the daemon's cores, open several
+ * 			clients and give each its share of the files (the command line does this with --connections).
+ *
+ * 		+ Relative paths are made absolute before they are sent, since the daemon may run in another directory.
+ *
+ * 		+ A client is not safe to share between threads. Open one per thread.
+ *
+ *
+ * 	How to use a client from code:
+ * 		try(SigningClient client = SigningClient.connect()){		// or connect(socketFile)
+ * 			boolean success = client.sign("release", "app.jar");				// writes app.jar.signed
+ * 			boolean success2 = client.signDetached("release", "app.jar");		// writes app.jar.sig
+ * 			VerificationStatus status = client.verify("release-pub", "app.jar.signed");
+ * 			VerificationStatus status2 = client.verifyDetached("release-pub", "app.jar");
+ *
+ * 			boolean[] signed = client.signAll("release", listOfFilenames);		// pipelined
+ * 			VerificationStatus[] statuses = client.verifyAll("release-pub", listOfSignedFilenames);
+ *
+ * 			// SCREENED or INVALID for each, checked in batches by the daemon (see ScreeningVerifier.java for
+ * 			// why SCREENED is not VALID)
+ * 			VerificationStatus[] screened = client.screenAll("release-pub", listOfSignedFilenames);
+ * 		}
+ *
+ * 		// Each method throws an IOException if the daemon can't be reached or rejects a request (the ...All()
+ * 		// methods read every reply first, so the connection stays usable).
+ *
+ *
+ * 	How to use a client from the command line:
+ * 		java digital_sig.SigningClient [--socket <file>] [--connections <n>]
+ * 				sign|sign-detached|verify|verify-detached|screen <key name> <file>...
+ *
+ * 		// Connects to SigningDaemon.DEFAULT_SOCKET unless --socket is given. A file name of "-" reads
+ * 		// more file names from standard input, one per line. Each file gets one line, in the order given:
+ * 		//		<result> <file>
+ * 		// The exit code is 0 if every file was signed (or is VALID, or SCREENED), 1 if not, and 2 if the daemon
+ * 		// could not be reached.
+ *
+ */
+public class SigningClient implements Closeable {
+
+	// Most requests sent ahead of their replies by the ...All() methods. The replies to that many fit in the
+	// socket buffers many times over, so the daemon never blocks writing them while the client is writing.
+	public static final int MAX_IN_FLIGHT = 64;
+
+	private SocketChannel channel;
+	private BufferedReader in;
+	private Writer out;
+
+	private SigningClient(SocketChannel channel){
+		this.channel = channel;
+		in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+		out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Connects to a daemon listening on a Unix domain socket.
+	 */
+	public static SigningClient connect(Path socketFile) throws IOException{
+		return new SigningClient(SocketChannel.open(UnixDomainSocketAddress.of(socketFile)));
+	}
+
+	/*
+	 * Connects to a daemon listening on SigningDaemon.DEFAULT_SOCKET.
+	 */
+	public static SigningClient connect() throws IOException{
+		return connect(SigningDaemon.DEFAULT_SOCKET);
+	}
+
+	public boolean ping() throws IOException{
+		return request("PING").equals("PONG");
+	}
+
+	public boolean sign(String keyName, String filename) throws IOException{
+		return request("SIGN", keyName, filename).equals("OK");
+	}
+
+	public boolean signDetached(String keyName, String filename) throws IOException{
+		return request("SIGN_DETACHED", keyName, filename).equals("OK");
+	}
+
+	public VerificationStatus verify(String keyName, String filename) throws IOException{
+		return toStatus(request("VERIFY", keyName, filename));
+	}
+
+	public VerificationStatus verifyDetached(String keyName, String filename) throws IOException{
+		return toStatus(request("VERIFY_DETACHED", keyName, filename));
+	}
+
+	/*
+	 * Screens one .signed file. Alone it is a batch of one, so screenAll() is the one worth calling.
+	 */
+	public VerificationStatus screen(String keyName, String filename) throws IOException{
+		return toStatus(request("SCREEN", keyName, filename));
+	}
+
+	/*
+	 * Signs each file (writing <file>.signed), with up to MAX_IN_FLIGHT requests on the way at once.
+	 */
+	public boolean[] signAll(String keyName, List<String> filenames) throws IOException{
+		return toBooleans(requestAll("SIGN", keyName, filenames));
+	}
+
+	public boolean[] signDetachedAll(String keyName, List<String> filenames) throws IOException{
+		return toBooleans(requestAll("SIGN_DETACHED", keyName, filenames));
+	}
+
+	public VerificationStatus[] verifyAll(String keyName, List<String> filenames) throws IOException{
+		return toStatuses(requestAll("VERIFY", keyName, filenames));
+	}
+
+	public VerificationStatus[] verifyDetachedAll(String keyName, List<String> filenames) throws IOException{
+		return toStatuses(requestAll("VERIFY_DETACHED", keyName, filenames));
+	}
+
+	/*
+	 * Screens each .signed file. The requests are pipelined like verifyAll(), and the daemon checks the ones
+	 * that have arrived together, so up to MAX_IN_FLIGHT files share one exponentiation.
+	 */
+	public VerificationStatus[] screenAll(String keyName, List<String> filenames) throws IOException{
+		return toStatuses(requestAll("SCREEN", keyName, filenames));
+	}
+
+	public void close() throws IOException{
+		channel.close();
+	}
+
+	private String request(String command, String keyName, String filename) throws IOException{
+		return request(toLine(command, keyName, filename));
+	}
+
+	private String request(String line) throws IOException{
+		out.write(line);
+		out.write('\n');
+		out.flush();
+		return checkReply(readReply());
+	}
+
+	/*
+	 * Sends one request per file, keeping up to MAX_IN_FLIGHT unanswered, and returns the replies in order.
+	 * Every reply is read before an ERROR is thrown, so the replies stay matched to their requests.
+	 */
+	private String[] requestAll(String command, String keyName, List<String> filenames) throws IOException{
+		String[] lines = new String[filenames.size()];
+		for(int i = 0; i < lines.length; i++){
+			lines[i] = toLine(command, keyName, filenames.get(i));
+		}
+
+		String[] replies = new String[lines.length];
+		int sent = 0;
+		int received = 0;
+		while(received < lines.length){
+			while(sent < lines.length && sent - received < MAX_IN_FLIGHT){
+				out.write(lines[sent++]);
+				out.write('\n');
+			}
+			out.flush();
+			replies[received++] = readReply();
+		}
+
+		for(String reply : replies){
+			checkReply(reply);
+		}
+		return replies;
+	}
+
+	private static String toLine(String command, String keyName, String filename){
+		if(keyName.contains(" ") || filename.contains("\n") || filename.contains("\r"))
+			throw new IllegalArgumentException("Key names can't contain spaces, or file names line breaks");
+
+		return command + " " + keyName + " " + Paths.get(filename).toAbsolutePath();
+	}
+
+	private String readReply() throws IOException{
+		String reply = in.readLine();
+		if(reply == null)
+			throw new EOFException("Signing daemon closed the connection");
+		return reply;
+	}
+
+	private static String checkReply(String reply) throws IOException{
+		if(reply.startsWith("ERROR "))
+			throw new IOException("Signing daemon: " + reply.substring(6));
+		return reply;
+	}
+
+	private static boolean[] toBooleans(String[] replies){
+		boolean[] results = new boolean[replies.length];
+		for(int i = 0; i < replies.length; i++){
+			results[i] = replies[i].equals("OK");
+		}
+		return results;
+	}
+
+	private static VerificationStatus[] toStatuses(String[] replies) throws IOException{
+		VerificationStatus[] results = new VerificationStatus[replies.length];
+		for(int i = 0; i < replies.length; i++){
+			results[i] = toStatus(replies[i]);
+		}
+		return results;
+	}
+
+	private static VerificationStatus toStatus(String reply) throws IOException{
+		try{
+			return VerificationStatus.valueOf(reply);
+		}
+		catch(IllegalArgumentException e){
+			throw new IOException("Signing daemon sent an unexpected reply: " + reply);
+		}
+	}
+
+
+	public static void main(String[] args){
+		Path socketFile = null;
+		int connections = 1;
+		List<String> rest = new ArrayList<>();
+
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].equals("--socket"))
+					socketFile = Paths.get(args[++i]);
+				else if(args[i].equals("--connections"))
+					connections = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-") && rest.size() >= 2)
+					CommandLine.readFileList(rest);
+				else
+					rest.add(args[i]);
+			}
+		}
+		catch(IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+			// IllegalArgumentException also covers bad paths and numbers
+			rest.clear();
+		}
+
+		List<String> commands = List.of("sign", "sign-detached", "verify", "verify-detached", "screen");
+		if(rest.size() < 3 || !commands.contains(rest.get(0)) || connections < 1){
+			System.out.println("Usage: java digital_sig.SigningClient [--socket <file>] [--connections <n>]"
+					+ " sign|sign-detached|verify|verify-detached|screen <key name> <file>...");
+			System.exit(2);
+		}
+
+		String command = rest.get(0);
+		String keyName = rest.get(1);
+		List<String> filenames = rest.subList(2, rest.size());
+		connections = Math.min(connections, filenames.size());
+
+		// Each connection gets one contiguous share of the files, so the results can be printed in order
+		String[] results = new String[filenames.size()];
+		ExecutorService threads = Executors.newFixedThreadPool(connections);
+		List<Future<?>> shares = new ArrayList<>();
+		for(int c = 0; c < connections; c++){
+			int from = (int)((long)filenames.size() * c / connections);
+			int to = (int)((long)filenames.size() * (c + 1) / connections);
+			Path socket = socketFile;
+			shares.add(threads.submit(() -> {
+				try(SigningClient client = socket != null ? connect(socket) : connect()){
+					String[] share = client.run(command, keyName, filenames.subList(from, to));
+					System.arraycopy(share, 0, results, from, share.length);
+				}
+				return null;
+			}));
+		}
+
+		try{
+			for(Future<?> share : shares){
+				share.get();
+			}
+		}
+		catch(ExecutionException e){
+			System.out.println("Error: SigningClient " + e.getCause().getMessage());
+			System.exit(2);
+		}
+		catch(InterruptedException e){
+			System.exit(2);
+		}
+		threads.shutdown();
+
+		boolean allGood = true;
+		for(int i = 0; i < results.length; i++){
+			allGood &= results[i].equals("OK") || results[i].equals("VALID") || results[i].equals("SCREENED");
+			System.out.println(results[i] + " " + filenames.get(i));
+		}
+
+		System.exit(allGood ? 0 : 1);
+	}
+
+	/*
+	 * Runs one command line command on filenames, returning the result to print for each.
+	 */
+	private String[] run(String command, String keyName, List<String> filenames) throws IOException{
+		String[] results = new String[filenames.size()];
+		if(command.equals("sign") || command.equals("sign-detached")){
+			boolean[] signed = command.equals("sign") ? signAll(keyName, filenames) : signDetachedAll(keyName, filenames);
+			for(int i = 0; i < results.length; i++){
+				results[i] = signed[i] ? "OK" : "FAILED";
+			}
+		}
+		else{
+			VerificationStatus[] statuses = command.equals("verify") ? verifyAll(keyName, filenames)
+					: command.equals("screen") ? screenAll(keyName, filenames) : verifyDetachedAll(keyName, filenames);
+			for(int i = 0; i < results.length; i++){
+				results[i] = statuses[i].name();
+			}
+		}
+		return results;
+	}
+}
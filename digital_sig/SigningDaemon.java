@@ -0,0 +1,416 @@
+package digital_sig;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*	========================================================================================================
+ * 								---- How to use SigningDaemon class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Signing one file from a script means starting a JVM and loading the key from disk, which takes far
+ * 			longer than the signature itself. A SigningDaemon stays running with its keys loaded, so each
+ * 			request only costs the signature. Use SigningClient to talk to it.
+ *
+ * 		+ Anyone who can connect can sign with its keys, and have it open any file its owner can read. So it
+ * 			only listens on a Unix domain socket only its owner can use: DEFAULT_SOCKET, in a directory only the
+ * 			owner can enter. Any socket it listens on is made owner only (rw-------) before it appears under
+ * 			its name, so no one else can connect even for a moment. Loosen the permissions yourself if a group
+ * 			must share it.
+ *
+ * 		+ There is no TCP mode on purpose: any local user could connect to a port, with no way to tell who they
+ * 			are.
+ *
+ * 		+ A .signed file gets the permissions of the message it copies (see DigitalSignature.signFile()), so
+ * 			SIGN never makes a file readable to someone who couldn't read it before.
+ *
+ * 		+ Each connection gets its own thread (a platform thread, since this builds for Java 17). Requests on
+ * 			one connection are answered in order, so a client may send many before reading the replies (see
+ * 			SigningClient).
+ *
+ * 		+ Each VERIFY request is checked on its own with DigitalSignature.checkSignature(), one exponentiation
+ * 			per file.
+ *
+ * 		+ SCREEN requests are batched: the SCREEN requests with the same key that a client has already sent
+ * 			(up to MAX_SCREEN_BATCH of them in a row) are checked together with ScreeningVerifier.verifyFiles(),
+ * 			one exponentiation for the whole batch. A file that passes is SCREENED, not VALID: see
+ * 			ScreeningVerifier.java for what that does and doesn't prove. Requests from different connections
+ * 			are never batched together, so one client's files can't affect another's results.
+ *
+ * 		+ A request line may be at most MAX_REQUEST_LENGTH characters. A longer one gets an ERROR reply, and
+ * 			the rest of it is skipped without being stored.
+ *
+ * 		+ Paths are opened by the daemon, so send absolute paths (SigningClient does this for you).
+ *
+ *
+ * 	Protocol (one UTF-8 line per request, one line per reply):
+ * 		PING								-> PONG
+ * 		SIGN <key name> <path>				-> OK or FAILED		(writes <path>.signed)
+ * 		SIGN_DETACHED <key name> <path>		-> OK or FAILED		(writes <path>.sig)
+ * 		VERIFY <key name> <path>			-> VALID, INVALID or UNREADABLE		(<path> is the .signed file)
+ * 		VERIFY_DETACHED <key name> <path>	-> VALID, INVALID or UNREADABLE		(checks <path>.sig)
+ * 		SCREEN <key name> <path>			-> SCREENED, INVALID or UNREADABLE	(batched, see above)
+ *
+ * 		// A bad request gets "ERROR <reason>". Paths may contain spaces, but not line breaks.
+ *
+ *
+ * 	How to run a daemon from the command line:
+ * 		java digital_sig.SigningDaemon [--socket <file>] [--digest md5|sha256|sha512] [--tree]
+ * 				<key name>=<key file>...
+ *
+ * 		java digital_sig.SigningDaemon --socket /run/signer/signer.sock release=privkey.rsa release-pub=pubkey.rsa
+ *
+ * 		// Listens on DEFAULT_SOCKET (~/.digital_sig/signer.sock) if --socket is not given.
+ *
+ *
+ * 	How to run a daemon from code:
+ * 		Map<String, RSAKey> keys = new HashMap<>();
+ * 		keys.put("release", privateKey);
+ * 		SigningDaemon daemon = new SigningDaemon(keys);
+ * 		daemon.listen(Paths.get("/run/signer.sock"));
+ * 		daemon.serve();		// returns once close() is called from another thread
+ *
+ */
+public class SigningDaemon implements Closeable {
+
+	// Where the daemon listens, and SigningClient connects, unless told otherwise
+	public static final Path DEFAULT_SOCKET = Paths.get(System.getProperty("user.home"), ".digital_sig", "signer.sock");
+
+	// Longest request line accepted, in characters (room for a PATH_MAX path and then some)
+	public static final int MAX_REQUEST_LENGTH = 16384;
+
+	// Most SCREEN requests checked in one batch
+	public static final int MAX_SCREEN_BATCH = 1024;
+
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+	private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+	private Map<String, RSAKey> keys;
+	private SigningOptions options = new SigningOptions();
+
+	private ServerSocketChannel server;
+	private Path socketFile;
+	private ExecutorService connections;
+	private volatile boolean closed = false;
+
+	public SigningDaemon(Map<String, RSAKey> keys){
+		this.keys = new HashMap<>(keys);
+		connections = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "signing daemon connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * How SIGN and SIGN_DETACHED requests are signed. Set it before serve().
+	 */
+	public void setOptions(SigningOptions options){
+		this.options = options;
+	}
+
+	/*
+	 * Listens on DEFAULT_SOCKET, creating its directory (owner only) if needed.
+	 */
+	public void listen() throws IOException{
+		Path directory = DEFAULT_SOCKET.getParent();
+		if(!Files.isDirectory(directory))
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+		listen(DEFAULT_SOCKET);
+	}
+
+	/*
+	 * Listens on a Unix domain socket that only the owner can connect to. A leftover socket file (from a
+	 * daemon that was killed) is replaced.
+	 *
+	 * The socket is bound inside a new directory only the owner can enter, made owner only there, and then
+	 * renamed to socketFile, so it never exists under its real name with looser permissions.
+	 */
+	public void listen(Path socketFile) throws IOException{
+		socketFile = socketFile.toAbsolutePath();
+		Path directory = Files.createTempDirectory(socketFile.getParent(), ".signer",
+				PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+		Path bound = directory.resolve("s");
+		try{
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, OWNER_ONLY);
+			Files.move(bound, socketFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.socketFile = socketFile;
+		}
+		catch(IOException | RuntimeException e){
+			if(server != null)
+				server.close();
+			Files.deleteIfExists(bound);
+			throw e;
+		}
+		finally{
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	/*
+	 * Accepts connections until close() is called. Call listen() first.
+	 */
+	public void serve() throws IOException{
+		while(!closed){
+			SocketChannel client;
+			try{
+				client = server.accept();
+			}
+			catch(ClosedChannelException e){
+				break;
+			}
+			connections.execute(() -> handle(client));
+		}
+	}
+
+	/*
+	 * Stops accepting connections, and closes the ones that are open.
+	 */
+	public void close() throws IOException{
+		closed = true;
+		if(server != null)
+			server.close();
+		connections.shutdownNow();
+		if(socketFile != null)
+			Files.deleteIfExists(socketFile);
+	}
+
+	private void handle(SocketChannel client){
+		try(SocketChannel channel = client){
+			BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+			Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+
+			String line = readRequest(in);
+			while(line != null){
+				String following = null;
+				List<String> replies;
+				if(line.length() > MAX_REQUEST_LENGTH){
+					replies = List.of("ERROR request longer than " + MAX_REQUEST_LENGTH + " characters");
+				}
+				else if(isScreen(line)){
+					// Batch the SCREEN requests for the same key that have already arrived, without waiting for more
+					List<String> batch = new ArrayList<>();
+					batch.add(line);
+					while(batch.size() < MAX_SCREEN_BATCH && in.ready()){
+						String next = readRequest(in);
+						if(next == null)
+							break;
+						if(next.length() > MAX_REQUEST_LENGTH || !isScreen(next) || !sameKey(line, next)){
+							following = next;
+							break;
+						}
+						batch.add(next);
+					}
+					replies = screen(batch);
+				}
+				else{
+					replies = List.of(answer(line));
+				}
+
+				for(String reply : replies){
+					out.write(reply);
+					out.write('\n');
+				}
+				out.flush();
+				line = following != null ? following : readRequest(in);
+			}
+		}
+		catch(IOException e){
+			// Client went away, or the daemon is closing
+		}
+	}
+
+	/*
+	 * Reads one line like BufferedReader.readLine(), but keeps at most MAX_REQUEST_LENGTH + 1 characters of
+	 * it, so a client can't fill the heap with an endless line. A result longer than MAX_REQUEST_LENGTH means
+	 * the line was too long (the rest of it has been read and dropped). Returns null at the end of the stream.
+	 */
+	private static String readRequest(Reader in) throws IOException{
+		StringBuilder line = new StringBuilder();
+		int c = in.read();
+		if(c == -1)
+			return null;
+
+		while(c != -1 && c != '\n'){
+			if(line.length() <= MAX_REQUEST_LENGTH)
+				line.append((char)c);
+			c = in.read();
+		}
+
+		int end = line.length();
+		if(end > 0 && end <= MAX_REQUEST_LENGTH && line.charAt(end - 1) == '\r')
+			line.setLength(end - 1);
+		return line.toString();
+	}
+
+	/*
+	 * A well formed SCREEN request with a known key.
+	 */
+	private boolean isScreen(String request){
+		String[] parts = request.split(" ", 3);
+		return parts.length == 3 && parts[0].equals("SCREEN") && keys.containsKey(parts[1]);
+	}
+
+	private static boolean sameKey(String request, String other){
+		return request.split(" ", 3)[1].equals(other.split(" ", 3)[1]);
+	}
+
+	/*
+	 * Screens a batch of SCREEN requests that all use the same key, and returns a reply for each.
+	 */
+	private List<String> screen(List<String> batch){
+		RSAKey key = keys.get(batch.get(0).split(" ", 3)[1]);
+		List<String> filenames = new ArrayList<>();
+		for(String request : batch){
+			filenames.add(request.split(" ", 3)[2]);
+		}
+
+		List<String> replies = new ArrayList<>();
+		try{
+			for(VerificationStatus status : ScreeningVerifier.verifyFiles(filenames, key)){
+				replies.add(status.name());
+			}
+		}
+		catch(RuntimeException e){
+			replies.clear();
+			for(int i = 0; i < batch.size(); i++){
+				replies.add("ERROR " + e);
+			}
+		}
+		return replies;
+	}
+
+	private String answer(String request){
+		String[] parts = request.split(" ", 3);
+		if(parts[0].equals("PING"))
+			return "PONG";
+
+		if(parts.length < 3)
+			return "ERROR expected: " + parts[0] + " <key name> <path>";
+
+		RSAKey key = keys.get(parts[1]);
+		if(key == null)
+			return "ERROR unknown key " + parts[1];
+		String filename = parts[2];
+
+		try{
+			switch(parts[0]){
+			case "SIGN":
+				return DigitalSignature.signFile(filename, key, options) ? "OK" : "FAILED";
+			case "SIGN_DETACHED":
+				return DigitalSignature.signFileDetached(filename, key, options) ? "OK" : "FAILED";
+			case "VERIFY":
+				return DigitalSignature.checkSignature(filename, key, false).name();
+			case "VERIFY_DETACHED":
+				return DigitalSignature.checkDetachedSignature(filename, filename + ".sig", key, false).name();
+			default:
+				return "ERROR unknown request " + parts[0];
+			}
+		}
+		catch(RuntimeException e){
+			return "ERROR " + e;
+		}
+	}
+
+	public static void main(String[] args){
+		Path socketFile = null;
+		SigningOptions options = new SigningOptions();
+		Map<String, RSAKey> keys = new LinkedHashMap<>();
+
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].equals("--socket"))
+					socketFile = Paths.get(args[++i]);
+				else if(args[i].equals("--tree"))
+					options.setTreeHash(true);
+				else if(args[i].equals("--digest")){
+					DigestAlgorithm digest = DigestAlgorithm.fromName(args[++i]);
+					if(digest == null){
+						System.out.println("Error: SigningDaemon unknown digest " + args[i]);
+						System.exit(2);
+					}
+					options.setDigest(digest);
+				}
+				else{
+					int equals = args[i].indexOf('=');
+					if(equals < 1 || args[i].substring(0, equals).contains(" "))
+						throw new IllegalArgumentException(args[i]);
+
+					RSAKey key = RSAKey.loadFromFile(args[i].substring(equals + 1));
+					if(key == null)
+						System.exit(2);
+					keys.put(args[i].substring(0, equals), key);
+				}
+			}
+		}
+		catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+			// IllegalArgumentException also covers bad paths
+			System.out.println("Error: SigningDaemon bad arguments");
+			keys.clear();
+		}
+
+		if(keys.isEmpty()){
+			System.out.println("Usage: java digital_sig.SigningDaemon [--socket <file>] [--digest md5|sha256|sha512]"
+					+ " [--tree] <key name>=<key file>...");
+			System.exit(2);
+		}
+
+		SigningDaemon daemon = new SigningDaemon(keys);
+		daemon.setOptions(options);
+		try{
+			if(socketFile != null)
+				daemon.listen(socketFile);
+			else
+				daemon.listen();
+		}
+		catch(IOException | UnsupportedOperationException e){
+			System.out.println("Error: SigningDaemon could not listen: " + e);
+			System.exit(2);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try{
+				daemon.close();
+			}
+			catch(IOException e){
+				// Exiting anyway
+			}
+		}));
+
+		System.out.println("SigningDaemon ready with " + keys.size() + " keys on "
+				+ (socketFile != null ? socketFile.toAbsolutePath() : DEFAULT_SOCKET));
+		try{
+			daemon.serve();
+		}
+		catch(IOException e){
+			System.out.println("Error: SigningDaemon stopped: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
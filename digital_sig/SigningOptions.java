@@ -0,0 +1,74 @@
+package digital_sig;
+
+/*
+ * How DigitalSignature.signFile() and signFileDetached() should sign a file:
+ * 		digest			which DigestAlgorithm to hash with (MD5 by default)
+ * 		treeHash		hash the file in TreeHash.CHUNK_SIZE chunks on all cores, and sign the root of the chunk
+ * 						hashes (off by default, see TreeHash.java)
+ * 		chunkIndex		also save every chunk hash in the file, so it can be re-signed after an append and
+ * 						tampering can be pinned to a chunk (off by default, turns on treeHash, see ChunkIndex.java)
+ * 		memoryMapping	map big files into memory instead of reading them (off by default)
+ *
+ * 		SigningOptions options = new SigningOptions();
+ * 		options.setDigest(DigestAlgorithm.SHA256);
+ * 		options.setTreeHash(true);
+ * 		boolean success = DigitalSignature.signFile("disk.img", privateKey, options);
+ *
+ * The digest and tree hash choice are recorded in the .signed file, so the verifier does not need to know them.
+ */
+public class SigningOptions {
+
+	private DigestAlgorithm digest = DigestAlgorithm.MD5;
+	private boolean treeHash = false;
+	private boolean chunkIndex = false;
+	private boolean useMemoryMapping = false;
+
+	public SigningOptions(){
+	}
+
+	public SigningOptions(boolean useMemoryMapping){
+		this.useMemoryMapping = useMemoryMapping;
+	}
+
+	public DigestAlgorithm getDigest(){
+		return digest;
+	}
+
+	public void setDigest(DigestAlgorithm digest){
+		if(digest == null)
+			throw new IllegalArgumentException("Digest algorithm must not be null");
+		this.digest = digest;
+	}
+
+	public boolean isTreeHash(){
+		return treeHash || chunkIndex;
+	}
+
+	public void setTreeHash(boolean treeHash){
+		this.treeHash = treeHash;
+	}
+
+	public boolean isChunkIndex(){
+		return chunkIndex;
+	}
+
+	public void setChunkIndex(boolean chunkIndex){
+		this.chunkIndex = chunkIndex;
+	}
+
+	public boolean isMemoryMapping(){
+		return useMemoryMapping;
+	}
+
+	public void setMemoryMapping(boolean useMemoryMapping){
+		this.useMemoryMapping = useMemoryMapping;
+	}
+
+	/*
+	 * The flags field for a header made with these options (see SignedFile.java).
+	 */
+	int headerFlags(){
+		int flags = isTreeHash() ? SignedFile.FLAG_TREE_HASH : 0;
+		return chunkIndex ? flags | SignedFile.FLAG_CHUNK_INDEX : flags;
+	}
+}
@@ -0,0 +1,342 @@
+package digital_sig;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/*	========================================================================================================
+ * 								---- How to use TamperFuzzer class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A TamperFuzzer checks that tampering with a .signed file is always caught. Each cycle damages a copy
+ * 			of a VALID .signed file with one of the Mutations (using the ChangeByte helpers), and checks the copy
+ * 			with DigitalSignature.checkSignature(). Any answer but VALID counts as detected.
+ *
+ * 		+ The file itself is never opened for writing. Each thread makes its copy once per fuzz() run, and after
+ * 			every cycle puts back only the bytes that cycle changed, so a cycle costs one hash of the file and
+ * 			not one copy too. By default the copies are buffers on the heap. In memory mapped mode the file is
+ * 			first copied to a temporary file (in java.io.tmpdir, deleted afterwards), which each thread maps
+ * 			privately (copy on write), so only the pages that are changed are copied, and a file of any size up
+ * 			to 2 GB works with little heap. Nothing is ever written back to the temporary file either. Java
+ * 			has no way to unmap a file, so the mappings (one per thread, not one per cycle) are let go when the
+ * 			garbage collector finds them.
+ *
+ * 		+ The in memory copies add up to the file size times the number of threads. If that would take more
+ * 			than half of the maximum heap, fuzz() switches to memory mapped mode for that file (and says so).
+ *
+ * 		+ Cycles run in parallel on the common ForkJoinPool. Mutations take turns, so each gets a quarter of
+ * 			the cycles.
+ *
+ * 		+ Each cycle draws its random numbers from the seed and its cycle number only, so a run is repeatable
+ * 			with the same seed, whatever the number of cores. Missed cycles are listed with the byte they hit.
+ *
+ *
+ * 	How to fuzz a .signed file from code:
+ * 		RSAKey publicKey = RSAKey.loadFromFile("pubkey.rsa");
+ * 		TamperFuzzer fuzzer = new TamperFuzzer(publicKey);
+ * 		fuzzer.setSeed(42);					// optional, random by default
+ * 		fuzzer.setMemoryMapping(true);		// optional, see above
+ *
+ * 		TamperFuzzer.Report report = fuzzer.fuzz("blah.txt.signed", 10000);	// null if the file isn't VALID
+ * 		report.print(System.out);
+ * 		boolean allCaught = report.allDetected();
+ *
+ *
+ * 	How to fuzz from the command line:
+ * 		java -jar rsa-digital-sig.jar fuzz --key pubkey.rsa [--cycles <n>] [--seed <n>] [--mmap] <file.signed>...
+ *
+ * 		// See CommandLine.java. The exit code is 1 if any tampering went undetected.
+ *
+ */
+public class TamperFuzzer {
+
+	public enum Mutation {
+		BYTE_FLIP,				// one byte anywhere in the file
+		MULTI_BYTE_FLIP,		// 2 to MAX_FLIPS bytes anywhere in the file
+		TRUNCATION,				// one or more bytes cut off the end
+		HEADER_CORRUPTION		// one byte of the header or the signature
+	}
+
+	public static final int MAX_FLIPS = 8;
+
+	// Undetected cycles listed in a report, at most
+	public static final int MAX_MISSED = 20;
+
+	private RSAKey publicKey;
+	private long seed = new SecureRandom().nextLong();
+	private boolean useMemoryMapping = false;
+
+	public TamperFuzzer(RSAKey publicKey){
+		this.publicKey = publicKey;
+	}
+
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+
+	public long getSeed(){
+		return seed;
+	}
+
+	public void setMemoryMapping(boolean useMemoryMapping){
+		this.useMemoryMapping = useMemoryMapping;
+	}
+
+	/*
+	 * Runs cycles mutate and verify cycles against a copy of filename. Returns null if the file can't be read,
+	 * is over 2 GB, or isn't VALID before being tampered with.
+	 */
+	public Report fuzz(String filename, int cycles){
+		ByteBuffer original;
+		FileChannel channel = null;
+		try{
+			Path path = Paths.get(filename);
+			long size = Files.size(path);
+			if(size > Integer.MAX_VALUE){
+				System.out.println("Error: TamperFuzzer.fuzz(...) " + filename + " is over 2 GB");
+				return null;
+			}
+
+			// The original plus one copy per thread (the common pool's, and the caller's)
+			boolean tooBigForHeap = size * (ForkJoinPool.getCommonPoolParallelism() + 2)
+					> Runtime.getRuntime().maxMemory() / 2;
+			if(!useMemoryMapping && tooBigForHeap)
+				System.out.println("TamperFuzzer " + filename + " is too big to copy once per thread, mapping it instead");
+
+			if(useMemoryMapping || tooBigForHeap){
+				// Private mappings need a channel open for writing, even though nothing is written back. So
+				// map a copy, never the user's file
+				Path copy = Files.createTempFile("digital_sig-fuzz", ".signed");
+				try{
+					Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+					channel = FileChannel.open(copy, StandardOpenOption.READ, StandardOpenOption.WRITE,
+							StandardOpenOption.DELETE_ON_CLOSE);
+				}
+				finally{
+					if(channel == null)
+						Files.deleteIfExists(copy);
+				}
+				original = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			else{
+				original = ByteBuffer.wrap(Files.readAllBytes(path));
+			}
+		}
+		catch(IOException | InvalidPathException e){
+			System.out.println("Error: TamperFuzzer.fuzz(...) could not read " + filename);
+			close(channel);
+			return null;
+		}
+
+		try{
+			if(original.limit() == 0
+					|| DigitalSignature.checkSignature(original, publicKey) != VerificationStatus.VALID){
+				System.out.println("Error: TamperFuzzer.fuzz(...) " + filename + " is not a VALID .signed file to begin"
+						+ " with (old style files can't be checked in memory)");
+				return null;
+			}
+			return run(filename, original, channel, cycles);
+		}
+		catch(IOException e){
+			System.out.println("Error: TamperFuzzer.fuzz(...) could not map " + filename + ": " + e.getMessage());
+			return null;
+		}
+		finally{
+			close(channel);
+		}
+	}
+
+	private Report run(String filename, ByteBuffer original, FileChannel channel, int cycles) throws IOException{
+		// A VALID file always has a header
+		int headerLength = SignedFile.HEADER_LENGTH + SignedFile.read(original).getSignatureLength();
+		int length = original.limit();
+		// One copy (or one private mapping) per thread for the whole run, put back after every cycle
+		ThreadLocal<ByteBuffer> copies = ThreadLocal.withInitial(() -> {
+			if(channel == null)
+				return ByteBuffer.allocate(length).put(original.duplicate()).clear();
+			try{
+				return channel.map(FileChannel.MapMode.PRIVATE, 0, length);
+			}
+			catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+		});
+		Mutation[] mutations = Mutation.values();
+
+		Report report = new Report(filename, seed, channel != null);
+		long start = System.nanoTime();
+		try{
+			IntStream.range(0, cycles).parallel().forEach(cycle -> {
+				Random rng = new Random(new SplittableRandom(seed + cycle).nextLong());
+				ByteBuffer copy = copies.get();
+				Mutation mutation = mutations[cycle % mutations.length];
+				int[] changed = mutate(copy, mutation, headerLength, rng);
+				try{
+					int at = mutation == Mutation.TRUNCATION ? copy.limit() : changed[0];
+					report.count(cycle, mutation, at, DigitalSignature.checkSignature(copy, publicKey));
+				}
+				finally{
+					restore(copy, original, changed);
+				}
+			});
+		}
+		catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/*
+	 * Applies mutation to data and returns the indexes of the bytes it changed (none for a truncation, which
+	 * lowers the limit instead).
+	 */
+	private static int[] mutate(ByteBuffer data, Mutation mutation, int headerLength, Random rng){
+		int length = data.limit();
+		switch(mutation){
+		case BYTE_FLIP:
+			return ChangeByte.changeBytesAt(data, 0, length, 1, rng);
+		case MULTI_BYTE_FLIP:
+			return ChangeByte.changeBytesAt(data, 0, length, 2 + rng.nextInt(MAX_FLIPS - 1), rng);
+		case TRUNCATION:
+			ChangeByte.truncate(data, rng);
+			return new int[0];
+		default:
+			return ChangeByte.changeBytesAt(data, 0, Math.min(headerLength, length), 1, rng);
+		}
+	}
+
+	/*
+	 * Undoes a mutate(): copies the changed bytes back from original, and the whole file back into view.
+	 */
+	private static void restore(ByteBuffer copy, ByteBuffer original, int[] changed){
+		for(int index : changed){
+			copy.put(index, original.get(index));
+		}
+		copy.clear();
+	}
+
+	private static void close(FileChannel channel){
+		try{
+			if(channel != null)
+				channel.close();
+		}
+		catch(IOException e){
+			// Only a temporary copy, nothing to lose
+		}
+	}
+
+	/*
+	 * What a fuzz() run found: cycles and detections per Mutation, the first MAX_MISSED cycles that went
+	 * undetected, and how fast it went.
+	 */
+	public static class Report {
+		private String filename;
+		private long seed;
+		private boolean mapped;
+		private AtomicLongArray cycles = new AtomicLongArray(Mutation.values().length);
+		private AtomicLongArray detected = new AtomicLongArray(Mutation.values().length);
+		private AtomicInteger missedCount = new AtomicInteger();
+		private ConcurrentLinkedQueue<String> missed = new ConcurrentLinkedQueue<>();
+		private volatile long elapsedNanos;
+
+		private Report(String filename, long seed, boolean mapped){
+			this.filename = filename;
+			this.seed = seed;
+			this.mapped = mapped;
+		}
+
+		private void count(int cycle, Mutation mutation, int at, VerificationStatus status){
+			cycles.incrementAndGet(mutation.ordinal());
+			if(status != VerificationStatus.VALID)
+				detected.incrementAndGet(mutation.ordinal());
+			else if(missedCount.getAndIncrement() < MAX_MISSED)
+				missed.add("cycle " + cycle + " " + mutation + (mutation == Mutation.TRUNCATION ? " to " : " at byte ") + at);
+		}
+
+		public long getCycles(Mutation mutation){
+			return cycles.get(mutation.ordinal());
+		}
+
+		public long getDetected(Mutation mutation){
+			return detected.get(mutation.ordinal());
+		}
+
+		public long getCycles(){
+			long total = 0;
+			for(Mutation mutation : Mutation.values()){
+				total += getCycles(mutation);
+			}
+			return total;
+		}
+
+		public long getDetected(){
+			long total = 0;
+			for(Mutation mutation : Mutation.values()){
+				total += getDetected(mutation);
+			}
+			return total;
+		}
+
+		/*
+		 * Detected cycles over all cycles, between 0 and 1.
+		 */
+		public double getDetectionRate(){
+			return getCycles() == 0 ? 1 : (double)getDetected() / getCycles();
+		}
+
+		public double getCyclesPerSecond(){
+			return getCycles() / (elapsedNanos / 1e9);
+		}
+
+		public double getElapsedSeconds(){
+			return elapsedNanos / 1e9;
+		}
+
+		/*
+		 * Descriptions of the first MAX_MISSED undetected cycles, like "cycle 17 BYTE_FLIP at byte 6".
+		 */
+		public List<String> getMissed(){
+			return new ArrayList<>(missed);
+		}
+
+		public boolean allDetected(){
+			return getDetected() == getCycles();
+		}
+
+		public void print(PrintStream out){
+			out.println("TamperFuzzer " + filename + " (seed " + seed + ", " + (mapped ? "mapped" : "in memory") + ")");
+			out.printf("  %-20s %10s %10s%n", "mutation", "cycles", "detected");
+			for(Mutation mutation : Mutation.values()){
+				out.printf("  %-20s %10d %10d%n", mutation, getCycles(mutation), getDetected(mutation));
+			}
+			out.printf("  %-20s %10d %10d  (%.3f%%)%n", "total", getCycles(), getDetected(), 100 * getDetectionRate());
+			out.printf("  %.2f s, %.0f cycles/s%n", getElapsedSeconds(), getCyclesPerSecond());
+			for(String description : missed){
+				out.println("  MISSED " + description);
+			}
+			if(missedCount.get() > MAX_MISSED)
+				out.println("  ... and " + (missedCount.get() - MAX_MISSED) + " more");
+		}
+	}
+}
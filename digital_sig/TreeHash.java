@@ -0,0 +1,204 @@
+package digital_sig;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/*	========================================================================================================
+ * 								---- How to use TreeHash class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ A normal digest reads the file from start to end on one thread, so one core's hashing speed is the
+ * 			limit, however many cores the machine has.
+ *
+ * 		+ A tree hash cuts the file into chunks of CHUNK_SIZE bytes (the last one may be shorter), hashes all the
+ * 			chunks at once on the common ForkJoinPool, then hashes the chunk hashes, in order, into one root:
+ *
+ * 			root = H( H(chunk 0) || H(chunk 1) || ... || H(chunk k-1) )
+ *
+ * 			H is the same DigestAlgorithm throughout. An empty file has no chunks, so its root is H of nothing.
+ *
+ * 		+ The root is as strong as the digest itself, but it is a different number from the plain digest of the
+ * 			same file. That is why DigitalSignature records tree hashing in the .signed header (and marks the
+ * 			signed number too), and why CHUNK_SIZE can never change.
+ *
+ * 		+ Each thread reads its chunks through its own CHUNK_SIZE buffer (or maps them, in memory mapped mode),
+ * 			so memory use depends on the number of cores, not on the file size.
+ *
+ *
+ * 	How to tree hash a file:
+ * 		try(FileChannel channel = FileChannel.open(Paths.get("disk.img"))){
+ * 			byte[] root = TreeHash.digest(channel, 0, channel.size(), DigestAlgorithm.SHA256, false);
+ * 		}
+ *
+ * 		// Normally DigitalSignature does this for you, see SigningOptions.setTreeHash().
+ *
+ */
+public class TreeHash {
+
+	// Part of the signed file format: changing it would make every tree hashed signature invalid
+	public static final int CHUNK_SIZE = 1 << 22;
+
+	// One read buffer per thread, reused for every chunk that thread hashes
+	private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHUNK_SIZE));
+
+	public static int chunkCount(long length){
+		long chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if(chunks > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many chunks for a tree hash: " + length + " bytes");
+		return (int)chunks;
+	}
+
+	/*
+	 * The root hash of length bytes of the channel, starting at position.
+	 */
+	public static byte[] digest(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean useMemoryMapping) throws IOException{
+		return root(hashChunks(channel, position, length, algorithm, useMemoryMapping, null), algorithm);
+	}
+
+	/*
+	 * Hashes each chunk of length bytes of the channel (starting at position) in parallel. Element i of the
+	 * result is the hash of chunk i.
+	 */
+	public static byte[][] hashChunks(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean useMemoryMapping) throws IOException{
+		return hashChunks(channel, position, length, algorithm, useMemoryMapping, null);
+	}
+
+	/*
+	 * Same as above, adding the time spent reading and hashing (summed over all threads) to timer, unless it
+	 * is null.
+	 */
+	static byte[][] hashChunks(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean useMemoryMapping, SignatureMetrics.Timer timer) throws IOException{
+		return hashChunks(channel, position, length, algorithm, useMemoryMapping, timer, null, 0);
+	}
+
+	/*
+	 * Same as above, also writing each chunk to copyTo (the chunk at position going to copyPosition) right
+	 * after hashing it, unless copyTo is null. Used to sign and copy a file in the same pass.
+	 */
+	static byte[][] hashChunks(FileChannel channel, long position, long length, DigestAlgorithm algorithm,
+			boolean useMemoryMapping, SignatureMetrics.Timer timer, FileChannel copyTo, long copyPosition)
+			throws IOException{
+
+		int chunks = chunkCount(length);
+		byte[][] hashes = new byte[chunks][];
+		LongAdder readNanos = new LongAdder();
+		LongAdder hashNanos = new LongAdder();
+		LongAdder writeNanos = new LongAdder();
+
+		try{
+			IntStream.range(0, chunks).parallel().forEach(i -> {
+				long start = position + (long)i * CHUNK_SIZE;
+				int size = (int)Math.min(CHUNK_SIZE, position + length - start);
+
+				long readStart = System.nanoTime();
+				ByteBuffer chunk;
+				try{
+					chunk = useMemoryMapping ? channel.map(FileChannel.MapMode.READ_ONLY, start, size)
+							: readChunk(channel, start, size);
+				}
+				catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+
+				long hashStart = System.nanoTime();
+				MessageDigest digestor = algorithm.newDigest();
+				digestor.update(chunk.duplicate());
+				hashes[i] = digestor.digest();
+
+				long writeStart = System.nanoTime();
+				readNanos.add(hashStart - readStart);
+				hashNanos.add(writeStart - hashStart);
+				if(copyTo != null){
+					try{
+						long target = copyPosition + (start - position);
+						while(chunk.hasRemaining()){
+							target += copyTo.write(chunk, target);
+						}
+					}
+					catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+					writeNanos.add(System.nanoTime() - writeStart);
+				}
+			});
+		}
+		catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+
+		if(timer != null){
+			timer.read(readNanos.sum());
+			timer.hashed(hashNanos.sum(), length);
+			timer.write(writeNanos.sum());
+		}
+		return hashes;
+	}
+
+	/*
+	 * Hashes each chunk of the remaining bytes of data in parallel, for a message that is already in memory.
+	 * The buffer's position is not changed.
+	 */
+	public static byte[][] hashChunks(ByteBuffer data, DigestAlgorithm algorithm){
+		return hashChunks(data, algorithm, null);
+	}
+
+	static byte[][] hashChunks(ByteBuffer data, DigestAlgorithm algorithm, SignatureMetrics.Timer timer){
+		int chunks = chunkCount(data.remaining());
+		byte[][] hashes = new byte[chunks][];
+		LongAdder hashNanos = new LongAdder();
+
+		IntStream.range(0, chunks).parallel().forEach(i -> {
+			long hashStart = System.nanoTime();
+			int start = data.position() + i * CHUNK_SIZE;
+			ByteBuffer chunk = data.duplicate();
+			chunk.position(start);
+			chunk.limit((int)Math.min((long)start + CHUNK_SIZE, data.limit()));
+
+			MessageDigest digestor = algorithm.newDigest();
+			digestor.update(chunk);
+			hashes[i] = digestor.digest();
+			hashNanos.add(System.nanoTime() - hashStart);
+		});
+
+		if(timer != null)
+			timer.hashed(hashNanos.sum(), data.remaining());
+		return hashes;
+	}
+
+	/*
+	 * Combines the chunk hashes, in order, into the root hash.
+	 */
+	public static byte[] root(byte[][] chunkHashes, DigestAlgorithm algorithm){
+		MessageDigest digestor = algorithm.newDigest();
+		for(byte[] chunkHash : chunkHashes){
+			digestor.update(chunkHash);
+		}
+		return digestor.digest();
+	}
+
+	/*
+	 * Reads size bytes at position into this thread's buffer.
+	 */
+	private static ByteBuffer readChunk(FileChannel channel, long position, int size) throws IOException{
+		ByteBuffer buffer = BUFFERS.get();
+		buffer.clear();
+		buffer.limit(size);
+		while(buffer.hasRemaining()){
+			int count = channel.read(buffer, position + buffer.position());
+			if(count < 0)
+				throw new EOFException("File ended before the expected length");
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,313 @@
+package digital_sig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*	========================================================================================================
+ * 								---- How to use VerificationCache class ----
+ * 	========================================================================================================
+ *
+ * 	Basics:
+ * 		+ Checking a signature reads and hashes the whole file every time. Programs that check the same files
+ * 			over and over (config bundles, plugins checked on every load, ...) can remember the answer instead.
+ *
+ * 		+ A result is remembered under the identity of the file: its real path (symbolic links resolved), size,
+ * 			last modified time and file key (the inode on Unix), plus the fingerprint and the exponent of the
+ * 			public key. Any change to the file changes at least one of these, so the next check reads the file
+ * 			again.
+ *
+ * 		+ VALID and INVALID results are remembered, UNREADABLE ones are not (the file may just be busy).
+ *
+ * 		+ The file identity is looked at before and after each real check, and the result is only remembered if
+ * 			nothing changed in between. A file modified in the last RACY_WINDOW_MILLIS is not remembered either,
+ * 			since a rewrite of the same size within one tick of the file system clock would keep the same identity.
+ *
+ * 		+ The cache holds at most capacity results, and forgets the least recently used one to make room.
+ *
+ * 		+ The cache is safe to share between threads.
+ *
+ *
+ * 	How to use a cache:
+ * 		VerificationCache cache = new VerificationCache(1000);	// remembers up to 1000 results
+ *
+ * 		boolean valid = cache.verifySignature("plugin.jar.signed", publicKey);
+ * 		VerificationStatus status = cache.checkSignature("plugin.jar.signed", publicKey, false);
+ * 		VerificationStatus status2 = cache.checkDetachedSignature("plugin.jar", "plugin.jar.sig", publicKey, false);
+ *
+ * 		// Same answers as the DigitalSignature methods with the same names.
+ *
+ * 		cache.printStats();		// hits, misses, evictions
+ *
+ *
+ * 	How to keep a cache across restarts:
+ * 		cache.save("verify.cache");
+ * 		...
+ * 		VerificationCache cache = new VerificationCache(1000);
+ * 		cache.load("verify.cache");		// false (and an empty cache) if the file is missing or damaged
+ *
+ * 		// Caution: whoever can write the cache file can mark any file as VALID. Keep it somewhere only trusted
+ * 		// users can write to, just like the public keys themselves.
+ *
+ */
+public class VerificationCache {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	// Results for files modified this recently are not remembered (see above)
+	public static final long RACY_WINDOW_MILLIS = 2000;
+
+	// "RVC2". Version 1 wrote the keys with writeUTF(), which can't hold a key over 64 KB
+	private static final int FILE_MAGIC = 0x52564332;
+
+	// A longer string in a cache file means the file is damaged
+	private static final int MAX_STRING_BYTES = 1 << 24;
+
+	private int capacity;
+	private LinkedHashMap<String, VerificationStatus> entries;	// guarded by this
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	public VerificationCache(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	public VerificationCache(int capacity){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Cache capacity must be at least 1");
+
+		this.capacity = capacity;
+
+		// Access ordered, so the eldest entry is the least recently used one
+		entries = new LinkedHashMap<String, VerificationStatus>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, VerificationStatus> eldest){
+				if(size() <= VerificationCache.this.capacity)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	public boolean verifySignature(String filename, RSAKey publicKey){
+		return checkSignature(filename, publicKey, false) == VerificationStatus.VALID;
+	}
+
+	public VerificationStatus checkSignature(String filename, RSAKey publicKey, boolean useMemoryMapping){
+		return check(new String[]{filename}, publicKey,
+				() -> DigitalSignature.checkSignature(filename, publicKey, useMemoryMapping));
+	}
+
+	public boolean verifyDetachedSignature(String filename, RSAKey publicKey){
+		return checkDetachedSignature(filename, filename + ".sig", publicKey, false) == VerificationStatus.VALID;
+	}
+
+	public VerificationStatus checkDetachedSignature(String filename, String signatureFilename, RSAKey publicKey,
+			boolean useMemoryMapping){
+		return check(new String[]{filename, signatureFilename}, publicKey,
+				() -> DigitalSignature.checkDetachedSignature(filename, signatureFilename, publicKey, useMemoryMapping));
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	public double getHitRate(){
+		long total = getHits() + getMisses();
+		return total == 0 ? 0 : (double)getHits() / total;
+	}
+
+	public void printStats(){
+		System.out.println("VerificationCache: " + size() + "/" + capacity + " entries, " + getHits() + " hits, "
+				+ getMisses() + " misses (" + String.format("%.1f", 100 * getHitRate()) + "% hit rate), "
+				+ getEvictions() + " evictions");
+	}
+
+	/*
+	 * Writes every entry to filename (through a temporary file, so a crash never leaves half a cache behind).
+	 */
+	public boolean save(String filename){
+		Map<String, VerificationStatus> copy;
+		synchronized(this){
+			copy = new LinkedHashMap<>(entries);	// least recently used first, so load() keeps the order
+		}
+
+		try{
+			Path path = Paths.get(filename);
+			Path tempPath = Paths.get(filename + ".tmp");
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename + ".tmp")))){
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(copy.size());
+				for(Map.Entry<String, VerificationStatus> entry : copy.entrySet()){
+					writeString(out, entry.getKey());
+					writeString(out, entry.getValue().name());
+				}
+			}
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(IOException | InvalidPathException e){
+			System.out.println("Error: VerificationCache.save(...) could not write " + filename);
+			return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Adds the entries saved in filename to this cache. Returns false, and adds nothing, if the file is
+	 * missing or damaged.
+	 */
+	public boolean load(String filename){
+		Map<String, VerificationStatus> loaded = new LinkedHashMap<>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))){
+			if(in.readInt() != FILE_MAGIC)
+				throw new IOException("Not a verification cache");
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				String key = readString(in);
+				loaded.put(key, VerificationStatus.valueOf(readString(in)));
+			}
+		}
+		catch(FileNotFoundException e){
+			return false;
+		}
+		catch(IOException | IllegalArgumentException e){
+			// IllegalArgumentException: a status name that doesn't exist
+			System.out.println("Error: VerificationCache.load(...) " + filename + " is damaged, ignoring it");
+			return false;
+		}
+
+		synchronized(this){
+			entries.putAll(loaded);
+		}
+		return true;
+	}
+
+	/*
+	 * Strings are saved as their length in bytes, then the bytes in UTF-8, so a key is never too long to save.
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException{
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < 0 || length > MAX_STRING_BYTES)
+			throw new IOException("Bad string length " + length);
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private VerificationStatus check(String[] filenames, RSAKey publicKey, Supplier<VerificationStatus> verifier){
+		Identity before = identify(filenames, publicKey);
+		if(before == null){
+			misses.incrementAndGet();
+			return verifier.get();
+		}
+
+		VerificationStatus cached;
+		synchronized(this){
+			cached = entries.get(before.key);
+		}
+		if(cached != null){
+			hits.incrementAndGet();
+			return cached;
+		}
+
+		misses.incrementAndGet();
+		long checkStart = System.currentTimeMillis();
+		VerificationStatus status = verifier.get();
+
+		Identity after = identify(filenames, publicKey);
+		if(status != VerificationStatus.UNREADABLE && after != null && after.key.equals(before.key)
+				&& after.lastModifiedMillis < checkStart - RACY_WINDOW_MILLIS){
+			synchronized(this){
+				entries.put(before.key, status);
+			}
+		}
+		return status;
+	}
+
+	/*
+	 * A cache key for checking the files with publicKey, and when the newest of them was last modified.
+	 */
+	private static class Identity {
+		String key;
+		long lastModifiedMillis;
+	}
+
+	/*
+	 * Returns null if one of the files cannot be looked at. The parts are separated with NUL, which cannot
+	 * appear in a path, so two different identities never make the same key.
+	 */
+	private static Identity identify(String[] filenames, RSAKey publicKey){
+		Identity identity = new Identity();
+		// The fingerprint only covers the modulus, so the exponent is part of the key too: the same modulus with
+		// another exponent is another key, and its results must not be shared
+		StringBuilder key = new StringBuilder(String.format("%064x", new BigInteger(1, publicKey.getFingerprint())));
+		key.append('\0').append(publicKey.getExponent().toString(16));
+
+		try{
+			for(String filename : filenames){
+				Path path = Paths.get(filename).toRealPath();
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				long modified = attributes.lastModifiedTime().toMillis();
+
+				key.append('\0').append(path).append('\0').append(attributes.size())
+						.append('\0').append(attributes.lastModifiedTime().toInstant())
+						.append('\0').append(attributes.fileKey());
+				identity.lastModifiedMillis = Math.max(identity.lastModifiedMillis, modified);
+			}
+		}
+		catch(IOException | InvalidPathException e){
+			return null;
+		}
+
+		identity.key = key.toString();
+		return identity;
+	}
+}
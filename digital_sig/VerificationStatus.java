@@ -0,0 +1,18 @@
+package digital_sig;
+
+/*
+ * The outcome of checking a signature (see DigitalSignature.checkSignature()):
+ * 		VALID		the signature matches the message and key
+ * 		INVALID		the file was read fine, but the signature does not match (tampered, truncated, or signed
+ * 					with a different key)
+ * 		UNREADABLE	the file is missing, could not be read, or is not a signed file at all
+ * 		SCREENED	only given by batch screening (see ScreeningVerifier): the signature passed together with the
+ * 					rest of its batch, which shows the key holder signed the message, but it was not checked
+ * 					on its own and may not be VALID
+ */
+public enum VerificationStatus {
+	VALID,
+	INVALID,
+	UNREADABLE,
+	SCREENED
+}
@@ -0,0 +1,53 @@
+package digital_sig;
+
+import java.nio.ByteBuffer;
+
+/*
+ * What DigitalSignature.verifyAndExtract() found in a .signed file: the VerificationStatus, and the message
+ * itself. The message is only handed out when the status is VALID, so unverified bytes can't be used by
+ * mistake.
+ *
+ * 		VerifiedMessage received = DigitalSignature.verifyAndExtract("blah.txt.signed", alicePublicKey);
+ * 		if(received.isValid()){
+ * 			ByteBuffer message = received.getMessage();		// read only, from position 0 to limit
+ * 			byte[] copy = received.getMessageBytes();		// or as a byte array
+ * 		}
+ */
+public class VerifiedMessage {
+
+	private VerificationStatus status;
+	private ByteBuffer message;
+
+	VerifiedMessage(VerificationStatus status, ByteBuffer message){
+		this.status = status;
+		this.message = status == VerificationStatus.VALID ? message.asReadOnlyBuffer() : null;
+	}
+
+	public VerificationStatus getStatus(){
+		return status;
+	}
+
+	public boolean isValid(){
+		return status == VerificationStatus.VALID;
+	}
+
+	/*
+	 * The message, or null unless the signature is valid. Each call returns a new view of the same bytes, so
+	 * callers can move its position freely.
+	 */
+	public ByteBuffer getMessage(){
+		return message == null ? null : message.duplicate();
+	}
+
+	/*
+	 * A copy of the message, or null unless the signature is valid.
+	 */
+	public byte[] getMessageBytes(){
+		if(message == null)
+			return null;
+
+		byte[] bytes = new byte[message.remaining()];
+		message.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,109 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Signing a tree: which files are picked, where the report goes, and what happens to the parts that can't be
+ * read.
+ */
+class BatchSignerTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void signsMatchingFilesAtAnyDepth() throws IOException{
+		Path top = write("top.txt");
+		Path nested = write("a/b/nested.txt");
+		Path other = write("a/other.bin");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		BatchSigner signer = new BatchSigner(privateKey, 2);
+		signer.setOutput(new PrintStream(output, true));
+		BatchSigner.Summary summary = signer.signTree(directory.toString(), "glob:*.txt");
+		summary.print();
+
+		assertEquals(2, summary.getFiles());
+		assertEquals(0, summary.getFailures());
+		assertTrue(DigitalSignature.verifySignature(top + ".signed", publicKey));
+		assertTrue(DigitalSignature.verifySignature(nested + ".signed", publicKey));
+		assertFalse(Files.exists(Path.of(other + ".signed")));
+
+		String report = output.toString();
+		assertTrue(report.contains("OK      "));
+		assertTrue(report.contains("Signed 2 files (0 failed)"));
+
+		// The .signed files are never signed themselves
+		assertEquals(3, signer.signTree(directory.toString(), "glob:**").getFiles());
+	}
+
+	@Test
+	void patternRelativeToDirectory() throws IOException{
+		write("lib/a.jar");
+		write("lib/sub/b.jar");
+		write("c.jar");
+
+		BatchSigner signer = new BatchSigner(privateKey, 1);
+		signer.setOutput(new PrintStream(new ByteArrayOutputStream()));
+		signer.setDetached(true);
+
+		assertEquals(1, signer.signTree(directory.toString(), "glob:lib/*.jar").getFiles());
+		assertTrue(Files.exists(directory.resolve("lib/a.jar.sig")));
+		assertEquals(2, signer.signTree(directory.toString(), "glob:lib/**.jar").getFiles());
+	}
+
+	@Test
+	void unreadableDirectoryFailsOnItsOwn() throws IOException{
+		write("readable.txt");
+		Path locked = Files.createDirectories(directory.resolve("locked"));
+		write("locked/hidden.txt");
+		Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+		try{
+			// Permissions don't stop root
+			assumeFalse(Files.isReadable(locked));
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			BatchSigner signer = new BatchSigner(privateKey, 2);
+			signer.setOutput(new PrintStream(output, true));
+			BatchSigner.Summary summary = signer.signTree(directory.toString(), "glob:**");
+
+			assertEquals(1, summary.getFiles());
+			assertEquals(1, summary.getFailures());
+			assertTrue(output.toString().contains("FAILED  " + locked));
+		}
+		finally{
+			Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+		}
+	}
+
+	private Path write(String name) throws IOException{
+		Path path = directory.resolve(name);
+		Files.createDirectories(path.getParent());
+		return Files.write(path, name.getBytes());
+	}
+}
@@ -0,0 +1,116 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The report must have one line per signature file with the right status, including files that are missing
+ * or can't be read.
+ */
+class BatchVerifierTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void csvReport() throws IOException{
+		Path valid = write("valid.txt");
+		DigitalSignature.signFile(valid.toString(), privateKey);
+		Path detached = write("sub/detached.txt");
+		DigitalSignature.signFileDetached(detached.toString(), privateKey);
+		Path tampered = write("sub/tampered.txt");
+		DigitalSignature.signFile(tampered.toString(), privateKey);
+		ChangeByte.changeByte(tampered + ".signed", Files.size(Path.of(tampered + ".signed")) - 1);
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		BatchVerifier verifier = new BatchVerifier(publicKey, 2);
+		verifier.setReport(new PrintStream(report, true));
+		BatchVerifier.Summary summary = verifier.verify(List.of(directory.toString(),
+				directory.resolve("missing.signed").toString()));
+
+		assertEquals(2, summary.getValid());
+		assertEquals(1, summary.getInvalid());
+		assertEquals(1, summary.getUnreadable());
+		assertFalse(summary.allValid());
+
+		List<String> lines = report.toString().lines().toList();
+		assertEquals("status,path,bytes,millis", lines.get(0));
+		assertEquals(5, lines.size());
+		assertTrue(lines.contains("UNREADABLE,\"" + directory.resolve("missing.signed") + "\",0,0"));
+		assertTrue(lines.stream().anyMatch(line -> line.startsWith("VALID,\"" + detached + ".sig\"")));
+		assertTrue(lines.stream().anyMatch(line -> line.startsWith("INVALID,\"" + tampered + ".signed\"")));
+	}
+
+	@Test
+	void jsonReport() throws IOException{
+		Path valid = write("quote\"d.txt");
+		DigitalSignature.signFile(valid.toString(), privateKey);
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		BatchVerifier verifier = new BatchVerifier(publicKey, 1);
+		verifier.setFormat(BatchVerifier.Format.JSON);
+		verifier.setReport(new PrintStream(report, true));
+		assertTrue(verifier.verifyTree(directory.toString()).allValid());
+
+		String json = report.toString();
+		assertTrue(json.startsWith("{\"files\":["));
+		assertTrue(json.contains("\"status\":\"VALID\",\"path\":\"" + directory + "/quote\\\"d.txt.signed\""));
+		assertTrue(json.contains("\"summary\":{\"valid\":1,\"invalid\":0,\"unreadable\":0,"));
+	}
+
+	@Test
+	void unreadableDirectoryIsReported() throws IOException{
+		Path valid = write("valid.txt");
+		DigitalSignature.signFile(valid.toString(), privateKey);
+		Path locked = Files.createDirectories(directory.resolve("locked"));
+		DigitalSignature.signFile(write("locked/hidden.txt").toString(), privateKey);
+		Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+		try{
+			// Permissions don't stop root
+			assumeFalse(Files.isReadable(locked));
+
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			BatchVerifier verifier = new BatchVerifier(publicKey, 2);
+			verifier.setReport(new PrintStream(report, true));
+			BatchVerifier.Summary summary = verifier.verifyTree(directory.toString());
+
+			assertEquals(1, summary.getValid());
+			assertEquals(1, summary.getUnreadable());
+			assertTrue(report.toString().contains("UNREADABLE,\"" + locked + "\",0,0"));
+		}
+		finally{
+			Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+		}
+	}
+
+	private Path write(String name) throws IOException{
+		Path path = directory.resolve(name);
+		Files.createDirectories(path.getParent());
+		return Files.write(path, name.getBytes());
+	}
+}
@@ -0,0 +1,81 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The in-memory tampering helpers used by TamperFuzzer.
+ */
+class ChangeByteTest {
+
+	@Test
+	void changesEveryPickedByte(){
+		Random rng = new Random(3);
+		for(int count = 1; count <= 10; count++){
+			ByteBuffer data = ByteBuffer.allocate(10);
+			int first = ChangeByte.changeBytes(data, 0, 10, count, rng);
+
+			int changed = 0;
+			for(int i = 0; i < 10; i++){
+				if(data.get(i) != 0)
+					changed++;
+			}
+			assertEquals(count, changed);
+			assertNotEquals(0, data.get(first));
+		}
+	}
+
+	@Test
+	void reportsEveryChangedByte(){
+		ByteBuffer data = ByteBuffer.allocate(100);
+		int[] changed = ChangeByte.changeBytesAt(data, 10, 90, 8, new Random(4));
+
+		assertEquals(8, changed.length);
+		assertEquals(8, Arrays.stream(changed).distinct().count());
+		for(int i = 0; i < 100; i++){
+			final int index = i;
+			boolean picked = Arrays.stream(changed).anyMatch(at -> at == index);
+			assertEquals(picked, data.get(i) != 0, "byte " + i);
+		}
+	}
+
+	@Test
+	void singleByteRange(){
+		ByteBuffer data = ByteBuffer.allocate(5);
+		assertEquals(3, ChangeByte.changeBytes(data, 3, 4, 2, new Random(1)));
+		assertNotEquals(0, data.get(3));
+	}
+
+	@Test
+	void badRangesAreRefused(){
+		ByteBuffer data = ByteBuffer.allocate(5);
+		Random rng = new Random(1);
+
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.changeBytes(data, 2, 2, 1, rng));
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.changeBytes(data, 3, 2, 1, rng));
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.changeBytes(data, -1, 2, 1, rng));
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.changeBytes(data, 0, 6, 1, rng));
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.changeBytes(data, 0, 5, 0, rng));
+	}
+
+	@Test
+	void truncateCutsAtLeastOneByte(){
+		Random rng = new Random(5);
+		for(int length = 1; length < 50; length++){
+			ByteBuffer data = ByteBuffer.allocate(length);
+			int newLength = ChangeByte.truncate(data, rng);
+			assertTrue(newLength >= 0 && newLength < length);
+			assertEquals(newLength, data.limit());
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> ChangeByte.truncate(ByteBuffer.allocate(0), rng));
+	}
+}
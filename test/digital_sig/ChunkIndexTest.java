@@ -0,0 +1,125 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Re-signing with a chunk index must give the same signature a fresh signFile() would, and the reports must
+ * only trust the index when they could use it.
+ */
+class ChunkIndexTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void resignAfterAppending() throws IOException{
+		Path message = writeMessage("append", TreeHash.CHUNK_SIZE + 1000);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey, indexOptions()));
+		append(message, TreeHash.CHUNK_SIZE);
+
+		assertTrue(ChunkIndex.resign(message.toString(), privateKey));
+		assertEquals(VerificationStatus.VALID, DigitalSignature.checkSignature(message + ".signed", publicKey, false));
+		assertSameAsFreshSignature(message, ".signed");
+	}
+
+	@Test
+	void resignDetachedAfterChange() throws IOException{
+		Path message = writeMessage("change", 3 * TreeHash.CHUNK_SIZE);
+		assertTrue(DigitalSignature.signFileDetached(message.toString(), privateKey, indexOptions()));
+		assertTrue(ChangeByte.changeByte(message.toString(), TreeHash.CHUNK_SIZE + 10));
+
+		assertTrue(ChunkIndex.resignDetached(message.toString(), privateKey, TreeHash.CHUNK_SIZE + 10));
+		assertEquals(VerificationStatus.VALID,
+				DigitalSignature.checkDetachedSignature(message.toString(), message + ".sig", publicKey, false));
+		assertSameAsFreshSignature(message, ".sig");
+	}
+
+	@Test
+	void failedResignLeavesSignatureAlone() throws IOException{
+		Path message = writeMessage("failed", 1000);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));		// no chunk index
+		byte[] before = Files.readAllBytes(Path.of(message + ".signed"));
+
+		assertFalse(ChunkIndex.resign(message.toString(), privateKey));
+		assertTrue(Arrays.equals(before, Files.readAllBytes(Path.of(message + ".signed"))));
+		assertFalse(Files.exists(Path.of(message + ".signed.tmp")));
+	}
+
+	@Test
+	void locateTamperedChunk() throws IOException{
+		Path message = writeMessage("locate", 3 * TreeHash.CHUNK_SIZE);
+		assertTrue(DigitalSignature.signFileDetached(message.toString(), privateKey, indexOptions()));
+		assertTrue(ChangeByte.changeByte(message.toString(), 2 * TreeHash.CHUNK_SIZE + 5));
+
+		ChunkIndex.Report report = ChunkIndex.locateDetachedTampering(message.toString(), message + ".sig", publicKey);
+		assertEquals(VerificationStatus.INVALID, report.getStatus());
+		assertTrue(report.isIndexTrusted());
+		assertEquals(1, report.getTamperedRanges().size());
+		assertEquals(2L * TreeHash.CHUNK_SIZE, report.getTamperedRanges().get(0).getStart());
+	}
+
+	@Test
+	void unreadableMessageIsNotTrusted() throws IOException{
+		Path message = writeMessage("missing", 1000);
+		assertTrue(DigitalSignature.signFileDetached(message.toString(), privateKey, indexOptions()));
+		Files.delete(message);
+
+		ChunkIndex.Report report = ChunkIndex.locateDetachedTampering(message.toString(), message + ".sig", publicKey);
+		assertEquals(VerificationStatus.UNREADABLE, report.getStatus());
+		assertFalse(report.isIndexTrusted());
+	}
+
+	private void assertSameAsFreshSignature(Path message, String extension) throws IOException{
+		byte[] resigned = Files.readAllBytes(Path.of(message + extension));
+		if(extension.equals(".sig"))
+			DigitalSignature.signFileDetached(message.toString(), privateKey, indexOptions());
+		else
+			DigitalSignature.signFile(message.toString(), privateKey, indexOptions());
+
+		assertTrue(Arrays.equals(Files.readAllBytes(Path.of(message + extension)), resigned));
+		assertFalse(Files.exists(Path.of(message + extension + ".tmp")));
+	}
+
+	private Path writeMessage(String name, int length) throws IOException{
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return Files.write(directory.resolve(name), bytes);
+	}
+
+	private static void append(Path path, int length) throws IOException{
+		byte[] bytes = new byte[length];
+		new Random(-length).nextBytes(bytes);
+		Files.write(path, bytes, StandardOpenOption.APPEND);
+	}
+
+	private static SigningOptions indexOptions(){
+		SigningOptions options = new SigningOptions();
+		options.setDigest(DigestAlgorithm.SHA256);
+		options.setChunkIndex(true);
+		return options;
+	}
+}
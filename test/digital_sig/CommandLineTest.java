@@ -0,0 +1,155 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Each command must print one line per file and give the documented exit code, for scripts to rely on.
+ */
+class CommandLineTest {
+
+	private static String jmxProperty;
+
+	@TempDir
+	Path directory;
+
+	// What the last run() printed
+	private String output;
+
+	@BeforeAll
+	static void keepJmx(){
+		// CommandLine.run() turns JMX off for the rest of the JVM unless the property is set
+		jmxProperty = System.getProperty(SignatureMetrics.JMX_PROPERTY);
+		System.setProperty(SignatureMetrics.JMX_PROPERTY, "true");
+	}
+
+	@AfterAll
+	static void restoreJmx(){
+		if(jmxProperty == null)
+			System.clearProperty(SignatureMetrics.JMX_PROPERTY);
+		else
+			System.setProperty(SignatureMetrics.JMX_PROPERTY, jmxProperty);
+	}
+
+	@Test
+	void badArgumentsAreUsageErrors(){
+		assertEquals(CommandLine.EXIT_USAGE, run());
+		assertEquals(CommandLine.EXIT_USAGE, run("frobnicate"));
+		assertEquals(CommandLine.EXIT_USAGE, run("verify", "--bogus", "file"));
+		assertEquals(CommandLine.EXIT_USAGE, run("verify", "--key"));
+		assertEquals(CommandLine.EXIT_USAGE, run("sign", "file"));
+		assertEquals(CommandLine.EXIT_USAGE, run("verify", "--key", directory.resolve("missing.rsa").toString(), "file"));
+		assertEquals(CommandLine.EXIT_USAGE, run("keygen", "--bits", "many"));
+		assertTrue(output.contains("Usage:"));
+	}
+
+	@Test
+	void signVerifyAndTamper() throws IOException{
+		String[] keys = keygen();
+		String message = Files.write(directory.resolve("message.txt"), "hello".getBytes()).toString();
+
+		assertEquals(CommandLine.EXIT_OK, run("sign", "--key", keys[0], message));
+		assertEquals("OK " + message, output.strip());
+		assertEquals(CommandLine.EXIT_OK, run("sign", "--key", keys[0], "--detached", "--digest", "sha256", message));
+		assertEquals(CommandLine.EXIT_OK, run("verify", "--key", keys[1], message + ".signed"));
+		assertEquals("VALID " + message + ".signed", output.strip());
+		assertEquals(CommandLine.EXIT_OK, run("verify", "--key", keys[1], "--detached", message));
+
+		String missing = directory.resolve("missing.signed").toString();
+		assertEquals(CommandLine.EXIT_UNREADABLE, run("verify", "--key", keys[1], message + ".signed", missing));
+		assertTrue(output.contains("UNREADABLE " + missing));
+
+		long last = Files.size(Path.of(message + ".signed")) - 1;
+		assertEquals(CommandLine.EXIT_OK, run("tamper", "--at", "" + last, message + ".signed"));
+		// INVALID wins over UNREADABLE
+		assertEquals(CommandLine.EXIT_FAILED, run("verify", "--key", keys[1], message + ".signed", missing));
+		assertTrue(output.contains("INVALID " + message + ".signed"));
+
+		assertEquals(CommandLine.EXIT_FAILED, run("sign", "--key", keys[0], directory.resolve("missing").toString()));
+	}
+
+	@Test
+	void extract() throws IOException{
+		String[] keys = keygen();
+		byte[] bytes = "The quick brown fox".getBytes();
+		String message = Files.write(directory.resolve("message.txt"), bytes).toString();
+		run("sign", "--key", keys[0], message);
+
+		Path out = directory.resolve("out.txt");
+		assertEquals(CommandLine.EXIT_OK, run("extract", "--key", keys[1], "--out", out.toString(), message + ".signed"));
+		assertArrayEquals(bytes, Files.readAllBytes(out));
+
+		Files.delete(out);
+		run("tamper", "--at", "" + (Files.size(Path.of(message + ".signed")) - 1), message + ".signed");
+		assertEquals(CommandLine.EXIT_FAILED, run("extract", "--key", keys[1], "--out", out.toString(), message + ".signed"));
+		assertFalse(Files.exists(out));
+
+		assertEquals(CommandLine.EXIT_OK, run("extract", "--unverified", "--out", out.toString(), message + ".signed"));
+		assertEquals(CommandLine.EXIT_UNREADABLE, run("extract", "--unverified", "--out", out.toString(),
+				directory.resolve("missing.signed").toString()));
+	}
+
+	@Test
+	void tamperChecksTheFile() throws IOException{
+		String empty = Files.createFile(directory.resolve("empty")).toString();
+		assertEquals(CommandLine.EXIT_FAILED, run("tamper", empty));
+		assertTrue(output.contains(empty + " is empty"));
+
+		String missing = directory.resolve("missing").toString();
+		assertEquals(CommandLine.EXIT_UNREADABLE, run("tamper", missing));
+
+		Path file = Files.write(directory.resolve("file"), new byte[10]);
+		assertEquals(CommandLine.EXIT_USAGE, run("tamper", "--at", "10", file.toString()));
+		assertTrue(output.contains("between 0 and 9"));
+		assertEquals(CommandLine.EXIT_OK, run("tamper", file.toString()));
+		assertFalse(Arrays.equals(new byte[10], Files.readAllBytes(file)));
+	}
+
+	@Test
+	void keygenKeepsExistingKeys() throws IOException{
+		String[] keys = keygen();
+		byte[] before = Files.readAllBytes(Path.of(keys[0]));
+
+		assertEquals(CommandLine.EXIT_USAGE, run("keygen", "--bits", "512", "--private", keys[0], "--public", keys[1]));
+		assertArrayEquals(before, Files.readAllBytes(Path.of(keys[0])));
+		assertEquals(CommandLine.EXIT_OK, run("keygen", "--bits", "512", "--private", keys[0], "--public", keys[1],
+				"--force"));
+		assertFalse(Arrays.equals(before, Files.readAllBytes(Path.of(keys[0]))));
+	}
+
+	/*
+	 * Makes a 1024 bit key pair with the keygen command, and returns the private and public key file names.
+	 */
+	private String[] keygen(){
+		String[] keys = {directory.resolve("privkey.rsa").toString(), directory.resolve("pubkey.rsa").toString()};
+		assertEquals(CommandLine.EXIT_OK, run("keygen", "--bits", "1024", "--private", keys[0], "--public", keys[1]));
+		return keys;
+	}
+
+	private int run(String... args){
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(captured, true));
+		try{
+			return CommandLine.run(args);
+		}
+		finally{
+			System.setOut(stdout);
+			output = captured.toString();
+		}
+	}
+}
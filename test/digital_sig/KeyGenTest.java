@@ -0,0 +1,157 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Generated keys must have the asked for public exponent and size, different primes, and a private exponent
+ * that undoes the public one. The parallel prime search must stop with generate(), and fail with it.
+ */
+class KeyGenTest {
+
+	@Test
+	void defaultExponent(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+
+		assertEquals(KeyGen.DEFAULT_PUBLIC_EXPONENT, keyGen.getPublicKey().getExponent());
+		assertValidKeyPair(keyGen, 1024, 2);
+	}
+
+	@Test
+	void chosenExponent(){
+		BigInteger three = BigInteger.valueOf(3);
+		for(int i = 0; i < 5; i++){
+			KeyGen keyGen = new KeyGen(three);
+			keyGen.generate();
+
+			assertEquals(three, keyGen.getPublicKey().getExponent());
+			assertValidKeyPair(keyGen, KeyGen.DEFAULT_KEY_SIZE, 2);
+		}
+	}
+
+	@Test
+	void everySizeIsExact(){
+		for(int keySize : new int[]{512, 514, 1026, 2048}){
+			KeyGen keyGen = new KeyGen(keySize);
+			keyGen.generate();
+			assertValidKeyPair(keyGen, keySize, 2);
+		}
+	}
+
+	@Test
+	void badArgumentsAreRefused(){
+		assertThrows(IllegalArgumentException.class, () -> new KeyGen(256));
+		assertThrows(IllegalArgumentException.class, () -> new KeyGen(1023));
+		assertThrows(IllegalArgumentException.class, () -> new KeyGen(BigInteger.valueOf(65536)));
+		assertThrows(IllegalArgumentException.class, () -> new KeyGen(BigInteger.ONE));
+	}
+
+	@Test
+	void ownExecutor(){
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try{
+			KeyGen keyGen = new KeyGen(2048, 3);
+			keyGen.setExecutor(executor, 3);
+			keyGen.generate();
+			assertValidKeyPair(keyGen, 2048, 3);
+		}
+		finally{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void failedSearchFailsGenerate(){
+		KeyGen keyGen = new KeyGen(1024);
+		ArithmeticException broken = new ArithmeticException("broken");
+		keyGen.setPrimeGenerator(new PrimeGenerator(new Random()){
+			@Override
+			public BigInteger nextPrime(int bits, BigInteger exponent, BooleanSupplier stop){
+				throw broken;
+			}
+		});
+
+		IllegalStateException thrown = assertTimeoutPreemptively(Duration.ofSeconds(30),
+				() -> assertThrows(IllegalStateException.class, keyGen::generate));
+		assertSame(broken, thrown.getCause());
+	}
+
+	@Test
+	void searchersStopWithGenerate() throws InterruptedException{
+		AtomicInteger running = new AtomicInteger();
+		KeyGen keyGen = new KeyGen(2048);
+		keyGen.setPrimeGenerator(new PrimeGenerator(new SecureRandom()){
+			@Override
+			public BigInteger nextPrime(int bits, BigInteger exponent, BooleanSupplier stop){
+				running.incrementAndGet();
+				try{
+					return super.nextPrime(bits, exponent, stop);
+				}
+				finally{
+					running.decrementAndGet();
+				}
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try{
+			keyGen.setExecutor(executor, 4);
+			keyGen.generate();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(0, running.get());
+		}
+		finally{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void stoppedSearchGivesUp(){
+		PrimeGenerator generator = new PrimeGenerator(new SecureRandom());
+		assertNull(generator.nextPrime(1024, KeyGen.DEFAULT_PUBLIC_EXPONENT, () -> true));
+	}
+
+	static void assertValidKeyPair(KeyGen keyGen, int keySize, int primeCount){
+		RSAKey privateKey = keyGen.getPrivateKey();
+		RSAKey publicKey = keyGen.getPublicKey();
+		BigInteger[] primes = privateKey.getPrimes();
+		BigInteger e = publicKey.getExponent();
+
+		assertEquals(keySize, publicKey.getModulus().bitLength());
+		assertEquals(publicKey.getModulus(), privateKey.getModulus());
+		assertEquals(primeCount, primes.length);
+
+		BigInteger product = BigInteger.ONE;
+		BigInteger totient = BigInteger.ONE;
+		for(int i = 0; i < primes.length; i++){
+			assertTrue(primes[i].isProbablePrime(64));
+			for(int j = 0; j < i; j++){
+				assertNotEquals(primes[j], primes[i]);
+			}
+			product = product.multiply(primes[i]);
+			totient = totient.multiply(primes[i].subtract(BigInteger.ONE));
+		}
+		assertEquals(publicKey.getModulus(), product);
+
+		assertEquals(BigInteger.ONE, e.gcd(totient));
+		assertEquals(BigInteger.ONE, e.multiply(privateKey.getExponent()).mod(totient));
+	}
+}
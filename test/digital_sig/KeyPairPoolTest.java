@@ -0,0 +1,65 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * take() must always end with a key pair or an exception, whether the pool is filling, closed, or its
+ * background thread has died.
+ */
+class KeyPairPoolTest {
+
+	@Test
+	void takeFromFilledPool() throws InterruptedException{
+		KeyPairPool pool = new KeyPairPool(2, 512);
+		try{
+			while(pool.getAvailable() < 2){
+				Thread.sleep(10);
+			}
+
+			assertWorkingPair(pool.take());
+			assertWorkingPair(pool.take());
+			assertEquals(2, pool.getHits());
+			assertNull(pool.getRefillFailure());
+		}
+		finally{
+			pool.close();
+		}
+	}
+
+	@Test
+	void takeFromClosedPool(){
+		KeyPairPool pool = new KeyPairPool(1, 512);
+		pool.close();
+
+		assertWorkingPair(assertTimeoutPreemptively(Duration.ofSeconds(30), pool::take));
+		assertNull(pool.getRefillFailure());
+	}
+
+	@Test
+	void takeAfterRefillFailed(){
+		// KeyGen refuses the size, so the background thread dies on its first pair
+		KeyPairPool pool = new KeyPairPool(1, 511);
+		try{
+			assertThrows(IllegalArgumentException.class,
+					() -> assertTimeoutPreemptively(Duration.ofSeconds(30), pool::take));
+			assertTrue(pool.getRefillFailure() instanceof IllegalArgumentException);
+		}
+		finally{
+			pool.close();
+		}
+	}
+
+	private static void assertWorkingPair(RSAKey[] pair){
+		BigInteger message = BigInteger.valueOf(123456789);
+		assertEquals(message, pair[1].encrypt(pair[0].encrypt(message)));
+	}
+}
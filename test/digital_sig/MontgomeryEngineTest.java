@@ -0,0 +1,134 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * MontgomeryEngine.modPow() must give exactly what BigInteger.modPow() gives, for moduli at and around limb
+ * boundaries, exponents with every window shape, and bases outside [0, n).
+ */
+class MontgomeryEngineTest {
+
+	private static final BigInteger TWO = BigInteger.TWO;
+
+	@Test
+	void edgeModuli(){
+		List<BigInteger> moduli = new ArrayList<>();
+		moduli.add(BigInteger.valueOf(3));
+		moduli.add(BigInteger.valueOf(5));
+		moduli.add(BigInteger.valueOf(Long.MAX_VALUE));
+		for(int bits : new int[]{63, 64, 65, 127, 128, 129, 191, 192, 193, 1024}){
+			moduli.add(TWO.pow(bits).subtract(BigInteger.ONE));		// every limb all ones
+			moduli.add(TWO.pow(bits).add(BigInteger.ONE));			// a lone top bit in a new limb
+			moduli.add(TWO.pow(bits - 1).add(BigInteger.ONE));		// just enough bits for the limbs
+		}
+
+		Random rng = new Random(11);
+		for(BigInteger modulus : moduli){
+			for(BigInteger exponent : exponents(modulus.bitLength(), rng)){
+				assertMatchesModPow(modulus, exponent, rng);
+			}
+		}
+	}
+
+	@Test
+	void randomModuli(){
+		Random rng = new Random(12);
+		for(int bits : new int[]{100, 512, 1023, 1536, 2049}){
+			BigInteger modulus = new BigInteger(bits, rng).setBit(bits - 1).setBit(0);
+			for(BigInteger exponent : exponents(bits, rng)){
+				assertMatchesModPow(modulus, exponent, rng);
+			}
+		}
+	}
+
+	@Test
+	void rsaKeyNumbers(){
+		KeyGen keyGen = new KeyGen(2048);
+		keyGen.generate();
+		RSAKey privateKey = keyGen.getPrivateKey();
+		Random rng = new Random(13);
+
+		assertMatchesModPow(privateKey.getModulus(), privateKey.getExponent(), rng);
+		assertMatchesModPow(privateKey.getModulus(), keyGen.getPublicKey().getExponent(), rng);
+		for(BigInteger prime : privateKey.getPrimes()){
+			assertMatchesModPow(prime, privateKey.getExponent().mod(prime.subtract(BigInteger.ONE)), rng);
+		}
+	}
+
+	@Test
+	void sharedBetweenThreads(){
+		Random rng = new Random(14);
+		BigInteger modulus = new BigInteger(1024, rng).setBit(1023).setBit(0);
+		BigInteger exponent = new BigInteger(1024, rng);
+		MontgomeryEngine engine = new MontgomeryEngine(modulus, exponent);
+
+		BigInteger[] bases = new BigInteger[200];
+		for(int i = 0; i < bases.length; i++){
+			bases[i] = new BigInteger(1024, rng);
+		}
+
+		IntStream.range(0, bases.length).parallel().forEach(i ->
+				assertEquals(bases[i].modPow(exponent, modulus), engine.modPow(bases[i]), "base " + i));
+	}
+
+	@Test
+	void badArgumentsAreRefused(){
+		assertThrows(IllegalArgumentException.class, () -> new MontgomeryEngine(BigInteger.valueOf(10), BigInteger.ONE));
+		assertThrows(IllegalArgumentException.class, () -> new MontgomeryEngine(BigInteger.ONE, BigInteger.ONE));
+		assertThrows(IllegalArgumentException.class, () -> new MontgomeryEngine(BigInteger.valueOf(-7), BigInteger.ONE));
+		assertThrows(IllegalArgumentException.class, () -> new MontgomeryEngine(BigInteger.valueOf(7), BigInteger.ZERO));
+		assertThrows(IllegalArgumentException.class,
+				() -> new MontgomeryEngine(BigInteger.valueOf(7), BigInteger.valueOf(-3)));
+	}
+
+	/*
+	 * Exponents of every window shape: tiny, powers of two (one window, then only squarings), all ones (every
+	 * window full), sparse, the RSA public exponents, random ones of the modulus size, and one bigger than
+	 * the modulus.
+	 */
+	private static List<BigInteger> exponents(int bits, Random rng){
+		List<BigInteger> exponents = new ArrayList<>();
+		exponents.add(BigInteger.ONE);
+		exponents.add(TWO);
+		exponents.add(BigInteger.valueOf(3));
+		exponents.add(KeyGen.DEFAULT_PUBLIC_EXPONENT);
+		exponents.add(TWO.pow(bits));
+		exponents.add(TWO.pow(bits).subtract(BigInteger.ONE));
+		exponents.add(TWO.pow(bits).add(BigInteger.ONE));
+		exponents.add(new BigInteger(bits, rng).add(BigInteger.ONE));
+		exponents.add(new BigInteger(bits + 70, rng).setBit(bits + 69));
+		return exponents;
+	}
+
+	private static void assertMatchesModPow(BigInteger modulus, BigInteger exponent, Random rng){
+		MontgomeryEngine engine = new MontgomeryEngine(modulus, exponent);
+
+		List<BigInteger> bases = new ArrayList<>();
+		bases.add(BigInteger.ZERO);
+		bases.add(BigInteger.ONE);
+		bases.add(TWO);
+		bases.add(modulus.subtract(BigInteger.ONE));
+		bases.add(modulus);
+		bases.add(modulus.add(BigInteger.ONE));
+		bases.add(modulus.multiply(BigInteger.TEN).add(BigInteger.valueOf(7)));
+		bases.add(BigInteger.valueOf(-2));
+		bases.add(modulus.negate().subtract(BigInteger.ONE));
+		for(int i = 0; i < 3; i++){
+			bases.add(new BigInteger(modulus.bitLength(), rng));
+		}
+
+		for(BigInteger base : bases){
+			assertEquals(base.modPow(exponent, modulus), engine.modPow(base),
+					"modulus " + modulus.toString(16) + ", exponent " + exponent.toString(16) + ", base " + base);
+		}
+	}
+}
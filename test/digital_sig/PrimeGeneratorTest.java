@@ -0,0 +1,133 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Primes must be prime, exactly the asked size with the top two bits set, and fit the exponent. The sieve must
+ * never cross out a prime, so the search finds the first fitting prime after its random start.
+ */
+class PrimeGeneratorTest {
+
+	@Test
+	void primesHaveExactlyTheBits(){
+		PrimeGenerator generator = new PrimeGenerator(new Random(21));
+		for(int bits : new int[]{64, 65, 127, 128, 129, 300, 512, 1024}){
+			for(int i = 0; i < 5; i++){
+				BigInteger prime = generator.nextPrime(bits);
+				assertEquals(bits, prime.bitLength());
+				assertTrue(prime.testBit(bits - 1) && prime.testBit(bits - 2), "top two bits of " + prime);
+				assertTrue(prime.isProbablePrime(100), prime + " is not prime");
+			}
+		}
+	}
+
+	@Test
+	void primesFitTheExponent(){
+		PrimeGenerator generator = new PrimeGenerator(new Random(22));
+		for(BigInteger exponent : new BigInteger[]{BigInteger.valueOf(3), KeyGen.DEFAULT_PUBLIC_EXPONENT,
+				BigInteger.valueOf(3 * 5 * 7 * 11 * 13)}){
+			for(int i = 0; i < 20; i++){
+				BigInteger prime = generator.nextPrime(256, exponent);
+				assertEquals(BigInteger.ONE, exponent.gcd(prime.subtract(BigInteger.ONE)), "prime " + prime);
+			}
+		}
+	}
+
+	@Test
+	void firstPrimeAfterTheStart(){
+		Random seeds = new Random(23);
+		int checked = 0;
+		for(int bits : new int[]{64, 100, 512}){
+			for(int i = 0; i < 10; i++){
+				byte[] startBytes = new byte[(bits + 7) / 8];
+				seeds.nextBytes(startBytes);
+				// The same number new BigInteger(bits, rng) draws from these bytes, with the bits nextPrime() sets
+				BigInteger start = new BigInteger(bits, new FixedStart(startBytes, 0))
+						.setBit(bits - 1).setBit(bits - 2).setBit(0);
+				BigInteger exponent = BigInteger.valueOf(3);
+
+				BigInteger expected = start;
+				while(!expected.isProbablePrime(100) || !exponent.gcd(expected.subtract(BigInteger.ONE)).equals(BigInteger.ONE)){
+					expected = expected.add(BigInteger.TWO);
+				}
+
+				// Without a fitting prime among the 4 * bits odd numbers of the window, the search draws a new start
+				if(expected.subtract(start).compareTo(BigInteger.valueOf(8L * bits)) >= 0)
+					continue;
+
+				PrimeGenerator generator = new PrimeGenerator(new FixedStart(startBytes, i));
+				assertEquals(expected, generator.nextPrime(bits, exponent), "start " + start);
+				checked++;
+			}
+		}
+		assertTrue(checked >= 25);
+	}
+
+	@Test
+	void millerRabinRoundsTable(){
+		assertEquals(27, PrimeGenerator.millerRabinRounds(PrimeGenerator.MIN_BITS));
+		assertEquals(3, PrimeGenerator.millerRabinRounds(1024));
+		assertEquals(2, PrimeGenerator.millerRabinRounds(2048));
+		assertEquals(2, PrimeGenerator.millerRabinRounds(PrimeGenerator.MAX_BITS));
+
+		// Bigger candidates never need more rounds
+		for(int bits = PrimeGenerator.MIN_BITS; bits < PrimeGenerator.MAX_BITS; bits++){
+			assertTrue(PrimeGenerator.millerRabinRounds(bits + 1) <= PrimeGenerator.millerRabinRounds(bits), "bits " + bits);
+		}
+	}
+
+	@Test
+	void millerRabinCatchesComposites(){
+		Random rng = new Random(24);
+		// Carmichael numbers, strong pseudoprimes to the smallest bases, and an RSA modulus
+		long[] composites = {561, 1105, 41041, 2047, 1373653, 25326001, 3215031751L, 3825123056546413051L};
+		for(long composite : composites){
+			assertFalse(PrimeGenerator.passesMillerRabin(BigInteger.valueOf(composite), 27, rng), "" + composite);
+		}
+		BigInteger modulus = BigInteger.probablePrime(512, rng).multiply(BigInteger.probablePrime(512, rng));
+		assertFalse(PrimeGenerator.passesMillerRabin(modulus, 3, rng));
+
+		for(long prime : new long[]{5, 7, 65537, 2147483647, 2305843009213693951L}){
+			assertTrue(PrimeGenerator.passesMillerRabin(BigInteger.valueOf(prime), 27, rng), "" + prime);
+		}
+	}
+
+	@Test
+	void badSizesAreRefused(){
+		PrimeGenerator generator = new PrimeGenerator(new Random(25));
+		assertThrows(IllegalArgumentException.class, () -> generator.nextPrime(PrimeGenerator.MIN_BITS - 1));
+		assertThrows(IllegalArgumentException.class, () -> generator.nextPrime(PrimeGenerator.MAX_BITS + 1));
+	}
+
+	/*
+	 * A Random whose first nextBytes() gives startBytes, so the search starts at a known number. The Miller-Rabin
+	 * bases after that are random.
+	 */
+	private static class FixedStart extends Random {
+		private byte[] startBytes;
+
+		FixedStart(byte[] startBytes, long seed){
+			super(seed);
+			this.startBytes = startBytes;
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes){
+			if(startBytes != null && bytes.length == startBytes.length){
+				System.arraycopy(startBytes, 0, bytes, 0, bytes.length);
+				startBytes = null;
+			}
+			else{
+				super.nextBytes(bytes);
+			}
+		}
+	}
+}
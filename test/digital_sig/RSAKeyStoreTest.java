@@ -0,0 +1,110 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Keys written with RSAKeyStore.save() come back unchanged from RSAKeyStore.open(), found by fingerprint.
+ */
+class RSAKeyStoreTest {
+
+	private static List<KeyGen> keyPairs = new ArrayList<>();
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		for(int primes : new int[]{2, 2, 3}){
+			KeyGen keyGen = new KeyGen(1024, primes);
+			keyGen.generate();
+			keyPairs.add(keyGen);
+		}
+	}
+
+	@Test
+	void saveAndOpen(){
+		List<RSAKey> publicKeys = new ArrayList<>();
+		List<RSAKey> privateKeys = new ArrayList<>();
+		for(KeyGen keyGen : keyPairs){
+			publicKeys.add(keyGen.getPublicKey());
+			privateKeys.add(keyGen.getPrivateKey());
+		}
+		String filename = directory.resolve("keys.rsks").toString();
+
+		assertTrue(RSAKeyStore.save(filename, publicKeys, privateKeys));
+		RSAKeyStore store = RSAKeyStore.open(filename);
+		assertNotNull(store);
+		assertEquals(6, store.size());
+
+		for(KeyGen keyGen : keyPairs){
+			byte[] fingerprint = keyGen.getPublicKey().getFingerprint();
+			assertArrayEquals(keyGen.getPublicKey().getNumbers(), store.getPublicKey(fingerprint).getNumbers());
+			assertArrayEquals(keyGen.getPrivateKey().getNumbers(), store.getPrivateKey(fingerprint).getNumbers());
+		}
+	}
+
+	@Test
+	void missingKeys(){
+		String filename = directory.resolve("public.rsks").toString();
+		RSAKey publicKey = keyPairs.get(0).getPublicKey();
+		assertTrue(RSAKeyStore.save(filename, Arrays.asList(publicKey), Collections.emptyList()));
+		RSAKeyStore store = RSAKeyStore.open(filename);
+
+		assertNull(store.getPrivateKey(publicKey.getFingerprint()));
+		assertNull(store.getPublicKey(keyPairs.get(1).getPublicKey().getFingerprint()));
+		assertNull(store.getPublicKey(new byte[3]));
+		assertNull(store.getPublicKey(null));
+	}
+
+	@Test
+	void emptyStore(){
+		String filename = directory.resolve("empty.rsks").toString();
+		assertTrue(RSAKeyStore.save(filename, Collections.emptyList(), Collections.emptyList()));
+		RSAKeyStore store = RSAKeyStore.open(filename);
+
+		assertEquals(0, store.size());
+		assertNull(store.getPublicKey(keyPairs.get(0).getPublicKey().getFingerprint()));
+	}
+
+	@Test
+	void verifyAndExtractWithSignerKey() throws IOException{
+		String filename = directory.resolve("signers.rsks").toString();
+		RSAKeyStore.save(filename, Arrays.asList(keyPairs.get(0).getPublicKey(), keyPairs.get(2).getPublicKey()),
+				Collections.emptyList());
+		RSAKeyStore store = RSAKeyStore.open(filename);
+
+		byte[] bytes = "signed by a multi-prime key".getBytes();
+		Path message = Files.write(directory.resolve("message"), bytes);
+		DigitalSignature.signFile(message.toString(), keyPairs.get(2).getPrivateKey());
+		VerifiedMessage received = DigitalSignature.verifyAndExtract(message + ".signed", store);
+		assertEquals(VerificationStatus.VALID, received.getStatus());
+		assertArrayEquals(bytes, received.getMessageBytes());
+
+		// Signed by a key the store doesn't have
+		DigitalSignature.signFile(message.toString(), keyPairs.get(1).getPrivateKey());
+		assertEquals(VerificationStatus.INVALID, DigitalSignature.verifyAndExtract(message + ".signed", store).getStatus());
+	}
+
+	@Test
+	void notAKeystore() throws IOException{
+		Path garbage = Files.write(directory.resolve("garbage.rsks"), new byte[1000]);
+		assertNull(RSAKeyStore.open(garbage.toString()));
+		assertNull(RSAKeyStore.open(directory.resolve("missing.rsks").toString()));
+	}
+}
@@ -0,0 +1,121 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The CRT and multi-prime shortcuts in RSAKey.encrypt() must give exactly what plain modPow gives, and keys
+ * must survive being saved and loaded.
+ */
+class RSAKeyTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void crtMatchesModPow(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+
+		assertEquals(2, keyGen.getPrivateKey().getPrimeCount());
+		assertMatchesModPow(keyGen.getPrivateKey(), keyGen.getPublicKey());
+	}
+
+	@Test
+	void multiPrimeMatchesModPow(){
+		KeyGen keyGen = new KeyGen(1024, 3);
+		keyGen.generate();
+
+		assertEquals(3, keyGen.getPrivateKey().getPrimeCount());
+		assertMatchesModPow(keyGen.getPrivateKey(), keyGen.getPublicKey());
+	}
+
+	@Test
+	void precomputedMatchesModPow(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		RSAKey privateKey = keyGen.getPrivateKey();
+		RSAKey publicKey = keyGen.getPublicKey();
+		privateKey.precomputeExponentiation();
+		publicKey.precomputeExponentiation();
+
+		assertMatchesModPow(privateKey, publicKey);
+	}
+
+	@Test
+	void numbersRoundTrip(){
+		KeyGen keyGen = new KeyGen(1024, 3);
+		keyGen.generate();
+
+		for(RSAKey key : new RSAKey[]{keyGen.getPrivateKey(), keyGen.getPublicKey()}){
+			RSAKey copy = RSAKey.fromNumbers(key.getNumbers());
+			assertNotNull(copy);
+			assertArrayEquals(key.getNumbers(), copy.getNumbers());
+			assertEquals(key.hasCrtParameters(), copy.hasCrtParameters());
+		}
+	}
+
+	@Test
+	void numbersWithWrongPrimesAreRefused(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+
+		BigInteger[] numbers = keyGen.getPrivateKey().getNumbers();
+		numbers[2] = numbers[2].nextProbablePrime();
+		assertNull(RSAKey.fromNumbers(numbers));
+
+		assertNull(RSAKey.fromNumbers(new BigInteger[]{BigInteger.ONE, BigInteger.TEN, BigInteger.TWO}));
+	}
+
+	@Test
+	void saveAndLoad(){
+		KeyGen keyGen = new KeyGen(1024, 3);
+		keyGen.generate();
+		String privateFile = directory.resolve("privkey.rsa").toString();
+		String publicFile = directory.resolve("pubkey.rsa").toString();
+
+		assertTrue(keyGen.getPrivateKey().saveToFile(privateFile));
+		assertTrue(keyGen.getPublicKey().saveToFile(publicFile));
+		RSAKey privateKey = RSAKey.loadFromFile(privateFile);
+		RSAKey publicKey = RSAKey.loadFromFile(publicFile);
+
+		assertArrayEquals(keyGen.getPrivateKey().getNumbers(), privateKey.getNumbers());
+		assertArrayEquals(keyGen.getPublicKey().getNumbers(), publicKey.getNumbers());
+		assertFalse(publicKey.hasCrtParameters());
+		assertMatchesModPow(privateKey, publicKey);
+	}
+
+	@Test
+	void loadMissingFile(){
+		assertNull(RSAKey.loadFromFile(directory.resolve("missing.rsa").toString()));
+	}
+
+	private static void assertMatchesModPow(RSAKey privateKey, RSAKey publicKey){
+		BigInteger modulus = privateKey.getModulus();
+		Random rng = new Random(1);
+		for(int i = 0; i < 50; i++){
+			BigInteger message = new BigInteger(modulus.bitLength() - 1, rng);
+			BigInteger signature = privateKey.encrypt(message);
+
+			assertEquals(message.modPow(privateKey.getExponent(), modulus), signature);
+			assertEquals(message, publicKey.encrypt(signature));
+		}
+
+		// Edge values that are their own powers
+		assertEquals(BigInteger.ZERO, privateKey.encrypt(BigInteger.ZERO));
+		assertEquals(BigInteger.ONE, privateKey.encrypt(BigInteger.ONE));
+		assertEquals(modulus.subtract(BigInteger.ONE).modPow(privateKey.getExponent(), modulus),
+				privateKey.encrypt(modulus.subtract(BigInteger.ONE)));
+	}
+}
@@ -0,0 +1,112 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Screening must agree with checking each signature on its own, whatever the mix of good, bad and out of
+ * range signatures. Files that pass are SCREENED, not VALID.
+ */
+class ScreeningVerifierTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void findsBadSignatures(){
+		Random rng = new Random(7);
+		int count = 200;
+		BigInteger[] signatures = new BigInteger[count];
+		BigInteger[] digests = new BigInteger[count];
+		boolean[] expected = new boolean[count];
+		for(int i = 0; i < count; i++){
+			digests[i] = new BigInteger(256, rng);
+			signatures[i] = privateKey.encrypt(digests[i]);
+			expected[i] = i % 37 != 5;
+			if(!expected[i])
+				signatures[i] = signatures[i].add(BigInteger.ONE);
+		}
+
+		assertResults(expected, ScreeningVerifier.screen(signatures, digests, publicKey));
+	}
+
+	@Test
+	void outOfRangeSignaturesNeverPass(){
+		BigInteger modulus = publicKey.getModulus();
+		BigInteger digest = BigInteger.valueOf(12345);
+		BigInteger signature = privateKey.encrypt(digest);
+
+		// Tens of thousands of them used to recurse once each, and overflow the stack
+		int count = 50000;
+		BigInteger[] signatures = new BigInteger[count];
+		BigInteger[] digests = new BigInteger[count];
+		boolean[] expected = new boolean[count];
+		for(int i = 0; i < count; i++){
+			digests[i] = digest;
+			switch(i % 4){
+			case 0:
+				signatures[i] = signature.add(modulus);		// same value mod n, but out of range
+				break;
+			case 1:
+				signatures[i] = BigInteger.ZERO;
+				break;
+			case 2:
+				signatures[i] = signature.negate();
+				break;
+			default:
+				signatures[i] = signature;
+				expected[i] = true;
+			}
+		}
+
+		assertResults(expected, ScreeningVerifier.screen(signatures, digests, publicKey));
+	}
+
+	@Test
+	void filesThatPassAreOnlyScreened() throws IOException{
+		List<String> filenames = new ArrayList<>();
+		for(int i = 0; i < 5; i++){
+			Path message = Files.write(directory.resolve("message" + i), new byte[100 * i]);
+			DigitalSignature.signFile(message.toString(), privateKey);
+			filenames.add(message + ".signed");
+		}
+		ChangeByte.changeByte(filenames.get(3), Files.size(Path.of(filenames.get(3))) - 1);
+		filenames.add(directory.resolve("missing.signed").toString());
+
+		VerificationStatus[] results = ScreeningVerifier.verifyFiles(filenames, publicKey);
+
+		assertArrayEquals(new VerificationStatus[]{VerificationStatus.SCREENED, VerificationStatus.SCREENED,
+				VerificationStatus.SCREENED, VerificationStatus.INVALID, VerificationStatus.SCREENED,
+				VerificationStatus.UNREADABLE}, results);
+	}
+
+	private static void assertResults(boolean[] expected, boolean[] valid){
+		assertEquals(expected.length, valid.length);
+		for(int i = 0; i < expected.length; i++){
+			assertEquals(expected[i], valid[i], "pair " + i);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Signing, verifying and key generation must show up in the counters, in JMX and as JFR events. The metrics
+ * are shared by the whole JVM, so the counter checks look at how much they changed.
+ */
+class SignatureMetricsTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void operationsAreCounted() throws IOException{
+		SignatureMetrics metrics = SignatureMetrics.get();
+		long signs = metrics.getSignCount();
+		long signFailures = metrics.getSignFailures();
+		long verifications = metrics.getVerifyCount();
+		long invalid = metrics.getVerifyInvalid();
+		long unreadable = metrics.getVerifyUnreadable();
+		long bytesHashed = metrics.getBytesHashed();
+		long signLatencies = metrics.getSignLatency().getCount();
+		long rsaLatencies = metrics.getRsaLatency().getCount();
+
+		Path message = Files.write(directory.resolve("message"), new byte[100000]);
+		String signed = message + ".signed";
+		DigitalSignature.signFile(message.toString(), privateKey);
+		DigitalSignature.signFile(directory.resolve("missing").toString(), privateKey);
+		DigitalSignature.checkSignature(signed, publicKey, false);
+		ChangeByte.changeByte(signed, Files.size(Path.of(signed)) - 1);
+		DigitalSignature.checkSignature(signed, publicKey, false);
+		DigitalSignature.checkSignature(directory.resolve("missing.signed").toString(), publicKey, false);
+
+		assertEquals(signs + 2, metrics.getSignCount());
+		assertEquals(signFailures + 1, metrics.getSignFailures());
+		assertEquals(verifications + 3, metrics.getVerifyCount());
+		assertEquals(invalid + 1, metrics.getVerifyInvalid());
+		assertEquals(unreadable + 1, metrics.getVerifyUnreadable());
+		assertTrue(metrics.getBytesHashed() >= bytesHashed + 3 * 100000);
+		assertEquals(signLatencies + 2, metrics.getSignLatency().getCount());
+		assertTrue(metrics.getRsaLatency().getCount() >= rsaLatencies + 3);
+	}
+
+	@Test
+	void keyGenerationIsCounted(){
+		SignatureMetrics metrics = SignatureMetrics.get();
+		long keyGens = metrics.getKeyGenCount();
+		long primeSearches = metrics.getPrimeSearchLatency().getCount();
+
+		new KeyGen(512).generate();
+
+		assertEquals(keyGens + 1, metrics.getKeyGenCount());
+		assertEquals(primeSearches + 1, metrics.getPrimeSearchLatency().getCount());
+		assertTrue(metrics.getKeyGenLatency().getMaxMicros() > 0);
+	}
+
+	@Test
+	void readableThroughJmx() throws JMException, IOException{
+		Path message = Files.write(directory.resolve("jmx"), new byte[1000]);
+		DigitalSignature.signFile(message.toString(), privateKey);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(SignatureMetrics.OBJECT_NAME);
+		SignatureMetrics metrics = SignatureMetrics.get();
+
+		assertEquals(metrics.getSignCount(), server.getAttribute(name, "SignCount"));
+		CompositeData latency = (CompositeData)server.getAttribute(name, "SignLatency");
+		assertEquals(metrics.getSignLatency().getCount(), latency.get("count"));
+	}
+
+	@Test
+	void recordedByJfr() throws IOException{
+		Path message = Files.write(directory.resolve("jfr"), new byte[1000]);
+		Path recordingFile = directory.resolve("recording.jfr");
+
+		try(Recording recording = new Recording()){
+			recording.enable("digital_sig.Signature");
+			recording.enable("digital_sig.KeyGen");
+			recording.start();
+			DigitalSignature.signFile(message.toString(), privateKey);
+			DigitalSignature.checkSignature(message + ".signed", publicKey, false);
+			new KeyGen(512).generate();
+			recording.stop();
+			recording.dump(recordingFile);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+		assertTrue(events.stream().anyMatch(event -> event.getEventType().getName().equals("digital_sig.Signature")
+				&& message.toString().equals(event.getString("file")) && "OK".equals(event.getString("result"))));
+		assertTrue(events.stream().anyMatch(event -> event.getEventType().getName().equals("digital_sig.Signature")
+				&& (message + ".signed").equals(event.getString("file")) && "VALID".equals(event.getString("result"))));
+		assertTrue(events.stream().anyMatch(event -> event.getEventType().getName().equals("digital_sig.KeyGen")
+				&& event.getInt("keySize") == 512));
+	}
+}
@@ -0,0 +1,344 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Round trips and tampering for the binary .signed and .sig formats (header, detached mode, tree hashing and
+ * the chunk index), and getting the message back out of them.
+ */
+class SignedFileTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void headerRoundTrip() throws IOException{
+		byte[] fingerprint = publicKey.getFingerprint();
+		SignedFile written = new SignedFile(SignedFile.DIGEST_SHA256, SignedFile.FLAG_TREE_HASH | SignedFile.FLAG_CHUNK_INDEX,
+				fingerprint, BigInteger.valueOf(123456789), 128, 5L << 22);
+
+		SignedFile read = SignedFile.read(written.toByteBuffer());
+
+		assertEquals(SignedFile.VERSION, read.getVersion());
+		assertEquals(SignedFile.DIGEST_SHA256, read.getDigestAlgorithm());
+		assertEquals(SignedFile.FLAG_TREE_HASH | SignedFile.FLAG_CHUNK_INDEX, read.getFlags());
+		assertArrayEquals(fingerprint, read.getFingerprint());
+		assertEquals(BigInteger.valueOf(123456789), read.getSignature());
+		assertEquals(128, read.getSignatureLength());
+		assertEquals(5L << 22, read.getPayloadLength());
+		assertEquals(SignedFile.HEADER_LENGTH + 128, read.getPayloadOffset());
+	}
+
+	@Test
+	void headerWithoutMagicIsLegacy() throws IOException{
+		assertNull(SignedFile.read(ByteBuffer.allocate(SignedFile.HEADER_LENGTH + 128)));
+	}
+
+	@Test
+	void unknownFlagsAreRefused(){
+		for(int bit = 3; bit < 16; bit++){
+			ByteBuffer header = new SignedFile(SignedFile.DIGEST_MD5, 0, publicKey.getFingerprint(), BigInteger.ONE,
+					128, 10).toByteBuffer();
+			header.putShort(6, (short)(1 << bit));
+			assertThrows(IOException.class, () -> SignedFile.read(header), "flag bit " + bit);
+		}
+	}
+
+	@Test
+	void signAndVerifyEveryFormat() throws IOException{
+		for(SigningOptions options : allOptions()){
+			Path message = writeMessage("message-" + describe(options), 3 * 1024 * 1024 + 17);
+
+			assertTrue(DigitalSignature.signFile(message.toString(), privateKey, options), describe(options));
+			assertEquals(VerificationStatus.VALID, DigitalSignature.checkSignature(message + ".signed", publicKey, false),
+					describe(options));
+			assertEquals(VerificationStatus.VALID, DigitalSignature.checkSignature(message + ".signed", publicKey, true),
+					describe(options));
+
+			VerifiedMessage extracted = DigitalSignature.verifyAndExtract(message + ".signed", publicKey);
+			assertEquals(VerificationStatus.VALID, extracted.getStatus());
+			assertArrayEquals(Files.readAllBytes(message), extracted.getMessageBytes());
+
+			assertTrue(DigitalSignature.signFileDetached(message.toString(), privateKey, options), describe(options));
+			assertEquals(VerificationStatus.VALID, DigitalSignature.checkDetachedSignature(message.toString(),
+					message + ".sig", publicKey, false), describe(options));
+		}
+	}
+
+	@Test
+	void extractedMessageIsACopy() throws IOException{
+		Path message = writeMessage("copy", 3 * 1024 * 1024);
+		byte[] original = Files.readAllBytes(message);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+
+		VerifiedMessage extracted = DigitalSignature.verifyAndExtract(message + ".signed", publicKey);
+		assertTrue(extracted.isValid());
+		try(RandomAccessFile file = new RandomAccessFile(message + ".signed", "rw")){
+			file.seek(file.length() - 1000);
+			file.write(new byte[1000]);
+		}
+
+		assertArrayEquals(original, extracted.getMessageBytes());
+	}
+
+	@Test
+	void emptyMessage() throws IOException{
+		Path message = writeMessage("empty", 0);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		assertTrue(DigitalSignature.verifySignature(message + ".signed", publicKey));
+	}
+
+	@Test
+	void changedPayloadIsInvalid() throws IOException{
+		for(SigningOptions options : allOptions()){
+			Path message = writeMessage("payload-" + describe(options), 100000);
+			DigitalSignature.signFile(message.toString(), privateKey, options);
+			String signed = message + ".signed";
+
+			assertTrue(ChangeByte.changeByte(signed, Files.size(Path.of(signed)) - 1));
+			assertEquals(VerificationStatus.INVALID, DigitalSignature.checkSignature(signed, publicKey, false),
+					describe(options));
+		}
+	}
+
+	@Test
+	void changedSignatureIsInvalid() throws IOException{
+		Path message = writeMessage("signature", 1000);
+		DigitalSignature.signFile(message.toString(), privateKey);
+		String signed = message + ".signed";
+
+		assertTrue(ChangeByte.changeByte(signed, SignedFile.HEADER_LENGTH + 10));
+		assertEquals(VerificationStatus.INVALID, DigitalSignature.checkSignature(signed, publicKey, false));
+	}
+
+	@Test
+	void truncatedOrExtendedFileIsInvalid() throws IOException{
+		Path message = writeMessage("length", 1000);
+		DigitalSignature.signFile(message.toString(), privateKey);
+		String signed = message + ".signed";
+		long length = Files.size(Path.of(signed));
+
+		try(RandomAccessFile file = new RandomAccessFile(signed, "rw")){
+			file.setLength(length - 1);
+		}
+		assertEquals(VerificationStatus.INVALID, DigitalSignature.checkSignature(signed, publicKey, false));
+
+		try(RandomAccessFile file = new RandomAccessFile(signed, "rw")){
+			file.setLength(length + 1);
+		}
+		assertEquals(VerificationStatus.INVALID, DigitalSignature.checkSignature(signed, publicKey, false));
+	}
+
+	@Test
+	void unknownFlagMakesSignedFileUnreadable() throws IOException{
+		Path message = writeMessage("flags", 1000);
+		DigitalSignature.signFile(message.toString(), privateKey);
+		String signed = message + ".signed";
+
+		try(RandomAccessFile file = new RandomAccessFile(signed, "rw")){
+			file.seek(6);
+			file.write(0x80);
+		}
+		assertEquals(VerificationStatus.UNREADABLE, DigitalSignature.checkSignature(signed, publicKey, false));
+	}
+
+	@Test
+	void changedChunkIndexIsInvalid() throws IOException{
+		SigningOptions options = new SigningOptions();
+		options.setDigest(DigestAlgorithm.SHA256);
+		options.setChunkIndex(true);
+		Path message = writeMessage("index", 2 * TreeHash.CHUNK_SIZE + 5);
+		DigitalSignature.signFile(message.toString(), privateKey, options);
+		String signed = message + ".signed";
+
+		// The chunk index (3 SHA-256 hashes here) ends the file
+		assertTrue(ChangeByte.changeByte(signed, Files.size(Path.of(signed)) - 40));
+		assertEquals(VerificationStatus.INVALID, DigitalSignature.checkSignature(signed, publicKey, false));
+	}
+
+	@Test
+	void changedMessageFailsDetachedSignature() throws IOException{
+		Path message = writeMessage("detached", 5000);
+		DigitalSignature.signFileDetached(message.toString(), privateKey);
+
+		assertTrue(ChangeByte.changeByte(message.toString(), 4000));
+		assertEquals(VerificationStatus.INVALID,
+				DigitalSignature.checkDetachedSignature(message.toString(), message + ".sig", publicKey, false));
+	}
+
+	@Test
+	void wrongKeyIsInvalid() throws IOException{
+		KeyGen other = new KeyGen(1024);
+		other.generate();
+		Path message = writeMessage("wrong-key", 1000);
+		DigitalSignature.signFile(message.toString(), privateKey);
+
+		assertEquals(VerificationStatus.INVALID,
+				DigitalSignature.checkSignature(message + ".signed", other.getPublicKey(), false));
+	}
+
+	@Test
+	void upgradeLegacySignedFile() throws IOException{
+		Path message = writeMessage("legacy", 100000);
+		Path signed = writeLegacySignedFile(message);
+
+		assertTrue(DigitalSignature.upgradeSignedFile(signed.toString(), publicKey));
+		assertFalse(Files.exists(Path.of(signed + ".tmp")));
+		assertEquals(VerificationStatus.VALID, DigitalSignature.checkSignature(signed.toString(), publicKey, false));
+
+		VerifiedMessage extracted = DigitalSignature.verifyAndExtract(signed.toString(), publicKey);
+		assertArrayEquals(Files.readAllBytes(message), extracted.getMessageBytes());
+
+		// Already upgraded
+		assertTrue(DigitalSignature.upgradeSignedFile(signed.toString(), publicKey));
+	}
+
+	@Test
+	void legacyFileWithWrongKeyIsLeftAlone() throws IOException{
+		KeyGen other = new KeyGen(1024);
+		other.generate();
+		Path signed = writeLegacySignedFile(writeMessage("legacy-wrong-key", 1000));
+		byte[] before = Files.readAllBytes(signed);
+
+		assertFalse(DigitalSignature.upgradeSignedFile(signed.toString(), other.getPublicKey()));
+		assertArrayEquals(before, Files.readAllBytes(signed));
+		assertFalse(Files.exists(Path.of(signed + ".tmp")));
+	}
+
+	@Test
+	void extractToFile() throws IOException{
+		Path message = writeMessage("extract", 3 * 1024 * 1024 + 17);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		// A longer file already there is replaced, not partly overwritten
+		Path output = writeMessage("extract.out", 4 * 1024 * 1024);
+
+		assertTrue(DigitalSignature.extractMessageToFile(message + ".signed", output.toString()));
+		assertArrayEquals(Files.readAllBytes(message), Files.readAllBytes(output));
+	}
+
+	@Test
+	void extractToChannelAndStream() throws IOException{
+		Path message = writeMessage("stream", 100000);
+		byte[] bytes = Files.readAllBytes(message);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+
+		// Written from the channel's current position
+		Path output = directory.resolve("stream.out");
+		try(FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+			channel.write(ByteBuffer.wrap("prefix".getBytes()));
+			assertTrue(DigitalSignature.extractMessage(message + ".signed", channel));
+			assertTrue(channel.isOpen());
+		}
+		byte[] written = Files.readAllBytes(output);
+		assertEquals("prefix", new String(written, 0, 6));
+		assertArrayEquals(bytes, Arrays.copyOfRange(written, 6, written.length));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(DigitalSignature.extractMessage(message + ".signed", out));
+		assertArrayEquals(bytes, out.toByteArray());
+
+		ByteArrayOutputStream legacyOut = new ByteArrayOutputStream();
+		assertTrue(DigitalSignature.extractMessage(writeLegacySignedFile(message).toString(), legacyOut));
+		assertArrayEquals(bytes, legacyOut.toByteArray());
+	}
+
+	@Test
+	void extractFailures() throws IOException{
+		Path message = writeMessage("extract-failures", 100000);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		assertTrue(DigitalSignature.signFileDetached(message.toString(), privateKey));
+		OutputStream broken = new OutputStream(){
+			@Override
+			public void write(int b) throws IOException{
+				throw new IOException("Broken");
+			}
+		};
+
+		assertFalse(DigitalSignature.extractMessage(message + ".signed", broken));
+		assertFalse(DigitalSignature.extractMessage(message + ".sig", new ByteArrayOutputStream()));
+		assertFalse(DigitalSignature.extractMessage(directory.resolve("missing.signed").toString(),
+				new ByteArrayOutputStream()));
+
+		try(RandomAccessFile file = new RandomAccessFile(message + ".signed", "rw")){
+			file.setLength(file.length() - 1);
+		}
+		assertFalse(DigitalSignature.extractMessageToFile(message + ".signed", directory.resolve("out").toString()));
+	}
+
+	/*
+	 * The format older versions wrote: a Java serialized signature of the MD5 digest, then the message.
+	 */
+	private static Path writeLegacySignedFile(Path message) throws IOException{
+		byte[] bytes = Files.readAllBytes(message);
+		BigInteger digest = new BigInteger(1, DigestAlgorithm.MD5.newDigest().digest(bytes));
+		Path signed = Path.of(message + ".signed");
+
+		try(ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(signed))){
+			out.writeObject(privateKey.encrypt(digest));
+			out.write(bytes);
+		}
+		return signed;
+	}
+
+	private Path writeMessage(String name, int length) throws IOException{
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return Files.write(directory.resolve(name), bytes);
+	}
+
+	private static SigningOptions[] allOptions(){
+		SigningOptions md5 = new SigningOptions();
+		md5.setDigest(DigestAlgorithm.MD5);
+
+		SigningOptions sha256 = new SigningOptions();
+		sha256.setDigest(DigestAlgorithm.SHA256);
+
+		SigningOptions tree = new SigningOptions();
+		tree.setDigest(DigestAlgorithm.SHA512);
+		tree.setTreeHash(true);
+
+		SigningOptions index = new SigningOptions(true);
+		index.setDigest(DigestAlgorithm.SHA256);
+		index.setChunkIndex(true);
+
+		return new SigningOptions[]{md5, sha256, tree, index};
+	}
+
+	private static String describe(SigningOptions options){
+		return options.getDigest().name() + (options.isTreeHash() ? "-tree" : "") + (options.isChunkIndex() ? "-index" : "");
+	}
+}
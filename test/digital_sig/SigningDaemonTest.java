@@ -0,0 +1,212 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * A daemon on a Unix domain socket in a temporary directory, driven through SigningClient: replies in order
+ * (also for batched SCREEN requests), errors that leave the connection usable, and a socket only the owner
+ * can connect to.
+ */
+class SigningDaemonTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	private SigningDaemon daemon;
+	private Path socket;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@BeforeEach
+	void startDaemon() throws IOException{
+		socket = directory.resolve("signer.sock");
+		daemon = new SigningDaemon(Map.of("release", privateKey, "release-pub", publicKey));
+		daemon.listen(socket);
+		Thread server = new Thread(() -> {
+			try{
+				daemon.serve();
+			}
+			catch(IOException e){
+				// Closed by the test
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+	}
+
+	@AfterEach
+	void stopDaemon() throws IOException{
+		daemon.close();
+	}
+
+	@Test
+	void socketIsOwnerOnly() throws IOException{
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+		try(SigningClient client = SigningClient.connect(socket)){
+			assertTrue(client.ping());
+		}
+
+		daemon.close();
+		assertFalse(Files.exists(socket));
+	}
+
+	@Test
+	void signAndVerify() throws IOException{
+		Path message = write("message.txt");
+
+		try(SigningClient client = SigningClient.connect(socket)){
+			assertTrue(client.sign("release", message.toString()));
+			assertTrue(client.signDetached("release", message.toString()));
+			assertEquals(VerificationStatus.VALID, client.verify("release-pub", message + ".signed"));
+			assertEquals(VerificationStatus.VALID, client.verifyDetached("release-pub", message.toString()));
+			assertEquals(VerificationStatus.UNREADABLE, client.verify("release-pub", directory.resolve("missing").toString()));
+			assertFalse(client.sign("release", directory.resolve("missing").toString()));
+		}
+		assertTrue(DigitalSignature.verifySignature(message + ".signed", publicKey));
+	}
+
+	@Test
+	void pipelinedRepliesStayInOrder() throws IOException{
+		List<String> files = new ArrayList<>();
+		for(int i = 0; i < 3 * SigningClient.MAX_IN_FLIGHT; i++){
+			files.add(write("file" + i).toString());
+		}
+
+		try(SigningClient client = SigningClient.connect(socket)){
+			boolean[] signed = client.signAll("release", files);
+			for(boolean success : signed){
+				assertTrue(success);
+			}
+
+			ChangeByte.changeByte(files.get(7) + ".signed", Files.size(Path.of(files.get(7) + ".signed")) - 1);
+			List<String> signedFiles = new ArrayList<>();
+			for(String file : files){
+				signedFiles.add(file + ".signed");
+			}
+			VerificationStatus[] statuses = client.verifyAll("release-pub", signedFiles);
+			for(int i = 0; i < statuses.length; i++){
+				assertEquals(i == 7 ? VerificationStatus.INVALID : VerificationStatus.VALID, statuses[i], "file " + i);
+			}
+		}
+	}
+
+	@Test
+	void screenInBatches() throws IOException{
+		List<String> signedFiles = new ArrayList<>();
+		for(int i = 0; i < 3 * SigningClient.MAX_IN_FLIGHT; i++){
+			Path file = write("file" + i);
+			assertTrue(DigitalSignature.signFile(file.toString(), privateKey));
+			signedFiles.add(file + ".signed");
+		}
+		ChangeByte.changeByte(signedFiles.get(70), Files.size(Path.of(signedFiles.get(70))) - 1);
+		signedFiles.set(100, directory.resolve("missing.signed").toString());
+
+		try(SigningClient client = SigningClient.connect(socket)){
+			VerificationStatus[] statuses = client.screenAll("release-pub", signedFiles);
+			for(int i = 0; i < statuses.length; i++){
+				VerificationStatus expected = i == 70 ? VerificationStatus.INVALID
+						: i == 100 ? VerificationStatus.UNREADABLE : VerificationStatus.SCREENED;
+				assertEquals(expected, statuses[i], "file " + i);
+			}
+			assertEquals(VerificationStatus.SCREENED, client.screen("release-pub", signedFiles.get(0)));
+		}
+	}
+
+	@Test
+	void batchEndsAtOtherRequests() throws IOException{
+		Path message = write("message.txt");
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		String signed = message + ".signed";
+
+		// All sent at once, so the daemon finds them waiting together
+		String requests = "SCREEN release-pub " + signed + "\n"
+				+ "SCREEN release-pub " + signed + "\n"
+				+ "VERIFY release-pub " + signed + "\n"
+				+ "SCREEN release-pub " + signed + "\n"
+				+ "SCREEN release " + signed + "\n"
+				+ "SCREEN nobody " + signed + "\n"
+				+ "PING\n"
+				+ "SCREEN release-pub " + signed + "\n";
+		try(SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))){
+			channel.write(StandardCharsets.UTF_8.encode(requests));
+			BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+
+			assertEquals("SCREENED", in.readLine());
+			assertEquals("SCREENED", in.readLine());
+			assertEquals("VALID", in.readLine());
+			assertEquals("SCREENED", in.readLine());
+			// The private key can't check a signature, but it is still its own batch
+			assertEquals("INVALID", in.readLine());
+			assertEquals("ERROR unknown key nobody", in.readLine());
+			assertEquals("PONG", in.readLine());
+			assertEquals("SCREENED", in.readLine());
+		}
+	}
+
+	@Test
+	void errorsKeepTheConnection() throws IOException{
+		Path message = write("message.txt");
+
+		try(SigningClient client = SigningClient.connect(socket)){
+			IOException unknownKey = assertThrows(IOException.class, () -> client.sign("nobody", message.toString()));
+			assertTrue(unknownKey.getMessage().contains("unknown key nobody"));
+			assertThrows(IOException.class, () -> client.verify("release-pub", "x".repeat(SigningDaemon.MAX_REQUEST_LENGTH)));
+			assertThrows(IOException.class, () -> client.signAll("nobody", List.of(message.toString())));
+
+			assertTrue(client.ping());
+			assertTrue(client.sign("release", message.toString()));
+		}
+	}
+
+	@Test
+	void signedFileKeepsTheMessagePermissions() throws IOException{
+		Path message = write("secret.txt");
+		Files.setPosixFilePermissions(message, PosixFilePermissions.fromString("rw-------"));
+		// An old copy anyone could read
+		Path signed = Files.write(Path.of(message + ".signed"), new byte[10]);
+		Files.setPosixFilePermissions(signed, PosixFilePermissions.fromString("rw-rw-rw-"));
+
+		try(SigningClient client = SigningClient.connect(socket)){
+			assertTrue(client.sign("release", message.toString()));
+		}
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(signed));
+		assertArrayEquals(Files.readAllBytes(message), DigitalSignature.verifyAndExtract(signed.toString(), publicKey)
+				.getMessageBytes());
+	}
+
+	private Path write(String name) throws IOException{
+		return Files.write(directory.resolve(name), name.getBytes());
+	}
+}
@@ -0,0 +1,71 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Every mutation must be caught, in memory and mapped, and the fuzzed file itself must never change.
+ */
+class TamperFuzzerTest {
+
+	private static RSAKey privateKey;
+	private static RSAKey publicKey;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void makeKeys(){
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		privateKey = keyGen.getPrivateKey();
+		publicKey = keyGen.getPublicKey();
+	}
+
+	@Test
+	void everyMutationIsDetected() throws IOException{
+		byte[] bytes = new byte[200000];
+		new Random(31).nextBytes(bytes);
+		Path message = Files.write(directory.resolve("message"), bytes);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		String signed = message + ".signed";
+		byte[] before = Files.readAllBytes(Path.of(signed));
+
+		TamperFuzzer fuzzer = new TamperFuzzer(publicKey);
+		fuzzer.setSeed(32);
+		TamperFuzzer.Report inMemory = fuzzer.fuzz(signed, 400);
+		fuzzer.setMemoryMapping(true);
+		TamperFuzzer.Report mapped = fuzzer.fuzz(signed, 400);
+
+		for(TamperFuzzer.Report report : new TamperFuzzer.Report[]{inMemory, mapped}){
+			assertEquals(400, report.getCycles());
+			assertTrue(report.allDetected(), report.getMissed().toString());
+			for(TamperFuzzer.Mutation mutation : TamperFuzzer.Mutation.values()){
+				assertEquals(100, report.getCycles(mutation));
+			}
+		}
+		assertArrayEquals(before, Files.readAllBytes(Path.of(signed)));
+	}
+
+	@Test
+	void onlyValidFilesAreFuzzed() throws IOException{
+		Path message = Files.write(directory.resolve("message"), new byte[1000]);
+		assertTrue(DigitalSignature.signFile(message.toString(), privateKey));
+		ChangeByte.changeByte(message + ".signed", 100);
+
+		TamperFuzzer fuzzer = new TamperFuzzer(publicKey);
+		assertNull(fuzzer.fuzz(message + ".signed", 10));
+		assertNull(fuzzer.fuzz(directory.resolve("missing.signed").toString(), 10));
+	}
+}
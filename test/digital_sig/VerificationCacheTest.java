@@ -0,0 +1,85 @@
+package digital_sig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * A cached result must only be given back for the same file and the same public key, and must survive a save
+ * and load.
+ */
+class VerificationCacheTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void resultsAreKeptPerKey() throws IOException{
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		RSAKey publicKey = keyGen.getPublicKey();
+		// Same modulus, so the same fingerprint, but another key
+		RSAKey otherExponent = new RSAKey(BigInteger.valueOf(3), publicKey.getModulus());
+
+		Path message = Files.write(directory.resolve("message"), new byte[1000]);
+		DigitalSignature.signFile(message.toString(), keyGen.getPrivateKey());
+		String signed = message + ".signed";
+		// Older than RACY_WINDOW_MILLIS, so the result may be remembered
+		Files.setLastModifiedTime(Path.of(signed), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+
+		VerificationCache cache = new VerificationCache(10);
+		assertEquals(VerificationStatus.VALID, cache.checkSignature(signed, publicKey, false));
+		assertEquals(VerificationStatus.VALID, cache.checkSignature(signed, publicKey, false));
+		assertEquals(1, cache.getHits());
+
+		assertEquals(VerificationStatus.INVALID, cache.checkSignature(signed, otherExponent, false));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	void saveAndLoad() throws IOException{
+		KeyGen keyGen = new KeyGen(1024);
+		keyGen.generate();
+		RSAKey publicKey = keyGen.getPublicKey();
+		// An exponent this big puts over 64 KB of hex digits in the cache key
+		RSAKey hugeExponent = new RSAKey(BigInteger.TWO.pow(300000).add(BigInteger.ONE), publicKey.getModulus());
+
+		Path message = Files.write(directory.resolve("message"), new byte[1000]);
+		DigitalSignature.signFile(message.toString(), keyGen.getPrivateKey());
+		String signed = message + ".signed";
+		Files.setLastModifiedTime(Path.of(signed), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+
+		VerificationCache cache = new VerificationCache(10);
+		assertEquals(VerificationStatus.VALID, cache.checkSignature(signed, publicKey, false));
+		assertEquals(VerificationStatus.INVALID, cache.checkSignature(signed, hugeExponent, false));
+		String cacheFile = directory.resolve("verify.cache").toString();
+		assertTrue(cache.save(cacheFile));
+
+		VerificationCache loaded = new VerificationCache(10);
+		assertTrue(loaded.load(cacheFile));
+		assertEquals(2, loaded.size());
+		assertEquals(VerificationStatus.VALID, loaded.checkSignature(signed, publicKey, false));
+		assertEquals(VerificationStatus.INVALID, loaded.checkSignature(signed, hugeExponent, false));
+		assertEquals(2, loaded.getHits());
+	}
+
+	@Test
+	void damagedFileIsIgnored() throws IOException{
+		VerificationCache cache = new VerificationCache(10);
+		assertFalse(cache.load(directory.resolve("missing.cache").toString()));
+
+		Path truncated = Files.write(directory.resolve("truncated.cache"), new byte[]{0x52, 0x56, 0x43, 0x32, 0, 0, 0, 1, 0x7f});
+		assertFalse(cache.load(truncated.toString()));
+		assertEquals(0, cache.size());
+	}
+}